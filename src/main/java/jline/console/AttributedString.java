@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.util.Arrays;
+
+import jline.internal.Ansi;
+
+import static jline.internal.Preconditions.checkNotNull;
+
+/**
+ * A string with display attributes.
+ * <p/>
+ * The visible text is kept apart from its styles, which are stored as runs
+ * of characters sharing the same style, so that the text can be compared,
+ * completed or measured without stripping escape sequences again.  The
+ * display width is computed once and cached.
+ * <p/>
+ * A style is a combination of the attribute bits defined in this class and
+ * of optional foreground and background colors, from the 256 colors
+ * palette.
+ *
+ * @since 2.15
+ */
+public final class AttributedString
+    implements CharSequence
+{
+    public static final int BOLD = 0x01;
+    public static final int FAINT = 0x02;
+    public static final int ITALIC = 0x04;
+    public static final int UNDERLINE = 0x08;
+    public static final int BLINK = 0x10;
+    public static final int INVERSE = 0x20;
+    public static final int FOREGROUND = 0x100;
+    public static final int BACKGROUND = 0x200;
+    public static final int FOREGROUND_SHIFT = 16;
+    public static final int BACKGROUND_SHIFT = 24;
+    public static final int COLOR_MASK = 0xff;
+
+    private static final int[] NO_RUNS = new int[0];
+
+    private final String text;
+
+    /**
+     * The start index of each run, the chars before the first run having no
+     * style.
+     */
+    private final int[] starts;
+
+    private final int[] styles;
+
+    /**
+     * The string this one has been parsed from, if any.
+     */
+    private String ansi;
+
+    private int columns = -1;
+
+    private int hash;
+
+    public AttributedString(final CharSequence text) {
+        this(text, 0);
+    }
+
+    public AttributedString(final CharSequence text, final int style) {
+        checkNotNull(text);
+        this.text = text.toString();
+        if (style != 0) {
+            this.starts = new int[] { 0 };
+            this.styles = new int[] { style };
+        } else {
+            this.starts = NO_RUNS;
+            this.styles = NO_RUNS;
+        }
+    }
+
+    private AttributedString(final String text, final int[] starts, final int[] styles) {
+        this.text = text;
+        this.starts = starts;
+        this.styles = styles;
+    }
+
+    /**
+     * Parse a string containing ANSI escape sequences.  The select graphic
+     * rendition sequences give the styles, the other escape sequences are
+     * dropped.
+     */
+    public static AttributedString fromAnsi(final String str) {
+        checkNotNull(str);
+        if (str.indexOf('\033') < 0) {
+            AttributedString result = new AttributedString(str);
+            result.ansi = str;
+            return result;
+        }
+        StringBuilder text = new StringBuilder(str.length());
+        int[] starts = new int[4];
+        int[] styles = new int[4];
+        int runs = 0;
+        int style = 0;
+        int len = str.length();
+        int i = 0;
+        while (i < len) {
+            int n = Ansi.escapeLength(str, i);
+            if (n == 0) {
+                int next = str.indexOf('\033', i);
+                if (next < 0) {
+                    next = len;
+                }
+                int last = runs > 0 ? styles[runs - 1] : 0;
+                if (style != last) {
+                    if (runs > 0 && starts[runs - 1] == text.length()) {
+                        runs--;
+                    }
+                    if (runs == starts.length) {
+                        starts = grow(starts);
+                        styles = grow(styles);
+                    }
+                    starts[runs] = text.length();
+                    styles[runs++] = style;
+                }
+                text.append(str, i, next);
+                i = next;
+            } else {
+                if (n > 2 && str.charAt(i + 1) == '[' && str.charAt(i + n - 1) == 'm') {
+                    style = applySgr(str, i + 2, i + n - 1, style);
+                }
+                i += n;
+            }
+        }
+        AttributedString result = runs == 0
+                ? new AttributedString(text.toString(), NO_RUNS, NO_RUNS)
+                : new AttributedString(text.toString(), copy(starts, runs), copy(styles, runs));
+        result.ansi = str;
+        return result;
+    }
+
+    /**
+     * Apply the parameters of a select graphic rendition sequence to a style.
+     */
+    private static int applySgr(final String str, final int start, final int end, int style) {
+        int[] params = new int[16];
+        int count = 0;
+        int value = 0;
+        for (int i = start; i <= end; i++) {
+            char c = i < end ? str.charAt(i) : ';';
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+            } else if (c == ';' || c == ':') {
+                if (count == params.length) {
+                    params = grow(params);
+                }
+                params[count++] = value;
+                value = 0;
+            } else {
+                // private or unknown parameters
+                return style;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            int p = params[i];
+            if (p == 0) {
+                style = 0;
+            } else if (p == 1) {
+                style |= BOLD;
+            } else if (p == 2) {
+                style |= FAINT;
+            } else if (p == 3) {
+                style |= ITALIC;
+            } else if (p == 4) {
+                style |= UNDERLINE;
+            } else if (p == 5) {
+                style |= BLINK;
+            } else if (p == 7) {
+                style |= INVERSE;
+            } else if (p == 22) {
+                style &= ~(BOLD | FAINT);
+            } else if (p == 23) {
+                style &= ~ITALIC;
+            } else if (p == 24) {
+                style &= ~UNDERLINE;
+            } else if (p == 25) {
+                style &= ~BLINK;
+            } else if (p == 27) {
+                style &= ~INVERSE;
+            } else if (p >= 30 && p <= 37) {
+                style = foreground(style, p - 30);
+            } else if (p >= 90 && p <= 97) {
+                style = foreground(style, p - 90 + 8);
+            } else if (p >= 40 && p <= 47) {
+                style = background(style, p - 40);
+            } else if (p >= 100 && p <= 107) {
+                style = background(style, p - 100 + 8);
+            } else if (p == 39) {
+                style &= ~(FOREGROUND | (COLOR_MASK << FOREGROUND_SHIFT));
+            } else if (p == 49) {
+                style &= ~(BACKGROUND | (COLOR_MASK << BACKGROUND_SHIFT));
+            } else if (p == 38 || p == 48) {
+                if (i + 2 < count && params[i + 1] == 5) {
+                    int color = params[i + 2] & COLOR_MASK;
+                    style = p == 38 ? foreground(style, color) : background(style, color);
+                    i += 2;
+                } else if (i + 1 < count && params[i + 1] == 2) {
+                    // direct colors are not supported
+                    i += 4;
+                }
+            }
+        }
+        return style;
+    }
+
+    private static int foreground(final int style, final int color) {
+        return (style & ~(COLOR_MASK << FOREGROUND_SHIFT)) | FOREGROUND | (color << FOREGROUND_SHIFT);
+    }
+
+    private static int background(final int style, final int color) {
+        return (style & ~(COLOR_MASK << BACKGROUND_SHIFT)) | BACKGROUND | (color << BACKGROUND_SHIFT);
+    }
+
+    private static int[] grow(final int[] array) {
+        int[] larger = new int[array.length * 2];
+        System.arraycopy(array, 0, larger, 0, array.length);
+        return larger;
+    }
+
+    private static int[] copy(final int[] array, final int length) {
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, length);
+        return result;
+    }
+
+    public int length() {
+        return text.length();
+    }
+
+    public char charAt(final int index) {
+        return text.charAt(index);
+    }
+
+    public AttributedString subSequence(final int start, final int end) {
+        if (start == 0 && end == text.length()) {
+            return this;
+        }
+        String sub = text.substring(start, end);
+        if (starts.length == 0 || start == end) {
+            return new AttributedString(sub, NO_RUNS, NO_RUNS);
+        }
+        int first = Math.max(run(start), 0);
+        int last = run(end - 1);
+        if (last < 0) {
+            return new AttributedString(sub, NO_RUNS, NO_RUNS);
+        }
+        int[] subStarts = new int[last - first + 1];
+        int[] subStyles = new int[subStarts.length];
+        for (int i = first; i <= last; i++) {
+            subStarts[i - first] = Math.max(starts[i] - start, 0);
+            subStyles[i - first] = styles[i];
+        }
+        return new AttributedString(sub, subStarts, subStyles);
+    }
+
+    /**
+     * Returns the style of the character at the given index.
+     */
+    public int styleAt(final int index) {
+        if (index < 0 || index >= text.length()) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        int run = run(index);
+        return run < 0 ? 0 : styles[run];
+    }
+
+    /**
+     * Returns the index of the run containing the given index, or -1 if
+     * there is none.
+     */
+    private int run(final int index) {
+        int run = Arrays.binarySearch(starts, index);
+        return run >= 0 ? run : -run - 2;
+    }
+
+    /**
+     * Returns the number of columns needed to display this string on a
+     * single line, with tabulations stopping every
+     * {@link ConsoleReader#TAB_WIDTH} columns and control characters
+     * displayed in caret notation.
+     */
+    public int columnLength() {
+        if (columns < 0) {
+            int cols = 0;
+            int previous = -1;
+            for (int i = 0; i < text.length(); ) {
+                int ucs = text.codePointAt(i);
+                i += Character.charCount(ucs);
+                if (ucs == '\t') {
+                    cols += ConsoleReader.TAB_WIDTH - cols % ConsoleReader.TAB_WIDTH;
+                } else if (ucs < 32) {
+                    cols += 2;
+                } else {
+                    cols += Math.max(WCWidth.wcwidth(previous, ucs), 0);
+                }
+                previous = ucs;
+            }
+            columns = cols;
+        }
+        return columns;
+    }
+
+    /**
+     * Returns this string with ANSI escape sequences for its styles.  The
+     * original string is returned for strings parsed with
+     * {@link #fromAnsi(String)}.
+     */
+    public String toAnsi() {
+        if (ansi == null) {
+            if (starts.length == 0) {
+                ansi = text;
+            } else {
+                StringBuilder sb = new StringBuilder(text.length() + starts.length * 12);
+                sb.append(text, 0, starts[0]);
+                for (int i = 0; i < starts.length; i++) {
+                    appendSgr(sb, styles[i]);
+                    sb.append(text, starts[i], i + 1 < starts.length ? starts[i + 1] : text.length());
+                }
+                if (styles[styles.length - 1] != 0) {
+                    sb.append("\033[0m");
+                }
+                ansi = sb.toString();
+            }
+        }
+        return ansi;
+    }
+
+    private static void appendSgr(final StringBuilder sb, final int style) {
+        sb.append("\033[0");
+        if ((style & BOLD) != 0) {
+            sb.append(";1");
+        }
+        if ((style & FAINT) != 0) {
+            sb.append(";2");
+        }
+        if ((style & ITALIC) != 0) {
+            sb.append(";3");
+        }
+        if ((style & UNDERLINE) != 0) {
+            sb.append(";4");
+        }
+        if ((style & BLINK) != 0) {
+            sb.append(";5");
+        }
+        if ((style & INVERSE) != 0) {
+            sb.append(";7");
+        }
+        if ((style & FOREGROUND) != 0) {
+            sb.append(";38;5;").append((style >>> FOREGROUND_SHIFT) & COLOR_MASK);
+        }
+        if ((style & BACKGROUND) != 0) {
+            sb.append(";48;5;").append((style >>> BACKGROUND_SHIFT) & COLOR_MASK);
+        }
+        sb.append('m');
+    }
+
+    /**
+     * Returns the visible text.
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AttributedString)) {
+            return false;
+        }
+        AttributedString that = (AttributedString) o;
+        return text.equals(that.text)
+                && Arrays.equals(starts, that.starts)
+                && Arrays.equals(styles, that.styles);
+    }
+
+    @Override
+    public int hashCode() {
+        if (hash == 0) {
+            hash = text.hashCode() * 31 + Arrays.hashCode(styles);
+        }
+        return hash;
+    }
+}
@@ -22,7 +22,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.lang.reflect.InvocationHandler;
@@ -38,6 +37,12 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.ResourceBundle;
 import java.util.Stack;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 import jline.DefaultTerminal2;
 import jline.Terminal;
@@ -50,8 +55,10 @@ import jline.console.completer.CompletionHandler;
 import jline.console.history.History;
 import jline.console.history.MemoryHistory;
 import jline.internal.Ansi;
+import jline.internal.AsyncOutputStream;
 import jline.internal.Configuration;
 import jline.internal.Curses;
+import jline.internal.InfoCmp.Capability;
 import jline.internal.InputStreamReader;
 import jline.internal.Log;
 import jline.internal.NonBlockingInputStream;
@@ -86,6 +93,26 @@ public class ConsoleReader implements Closeable
 
     public static final String JLINE_EXPAND_EVENTS = "jline.expandevents";
 
+    public static final String JLINE_SYNCHRONIZED_UPDATES = "jline.synchronizedupdates";
+
+    public static final String JLINE_DIFF_RENDERING = "jline.diffrendering";
+
+    /**
+     * Set to true to draw the line again as soon as the terminal is resized,
+     * by handling the WINCH signal.  Otherwise the new width is only taken
+     * into account when the next key is handled.
+     */
+    public static final String JLINE_SIGWINCH = "jline.sigwinch";
+
+    /**
+     * Set to true to write the output to the terminal from a separate
+     * thread, so that a slow terminal doesn't hold back the handling of the
+     * keys.
+     *
+     * @since 2.15
+     */
+    public static final String JLINE_ASYNC_OUTPUT = "jline.asyncoutput";
+
     public static final char BACKSPACE = '\b';
 
     public static final char RESET_LINE = '\r';
@@ -102,11 +129,36 @@ public class ConsoleReader implements Closeable
     private static final int ESCAPE = 27;
     private static final int READ_EXPIRED = -2;
 
+    /**
+     * The time to wait for the end of a storm of resize signals, while a
+     * window is dragged, before the line is drawn again.
+     */
+    private static final long RESIZE_DELAY = 50;
+
+    /**
+     * The time during which the lines given to {@link #printAbove} are
+     * collected before being printed at once.
+     */
+    private static final long PRINT_ABOVE_DELAY = 20;
+
+    /** The minimum time between two updates of the status. */
+    private static final long STATUS_INTERVAL = 50;
+
     private final Terminal2 terminal;
 
-    private final Writer out;
+    private final FrameWriter out;
+
+    /** The stream written by a separate thread, or null. */
+    private final AsyncOutputStream asyncOut;
+
+    private final Curses.Program[] capabilities = new Curses.Program[Capability.values().length];
+    private final boolean[] capabilitiesLoaded = new boolean[capabilities.length];
 
     private final CursorBuffer buf = new CursorBuffer();
+    /** The edits of the line being read, which can be undone. */
+    private final EditJournal journal = new EditJournal(buf);
+    /** The word boundaries and brackets of the line being read. */
+    private final TokenIndex tokens = new TokenIndex(buf);
     private boolean cursorOk;
 
     private String prompt;
@@ -122,9 +174,66 @@ public class ConsoleReader implements Closeable
 
     private Character mask;
 
+    private boolean diffRendering = Configuration.getBoolean(JLINE_DIFF_RENDERING, false);
+    private Display display;
+
+    private final CursorMotion motion = new CursorMotion()
+    {
+        @Override
+        protected Curses.Program getCapability(final Capability cap) {
+            return ConsoleReader.this.getCapability(cap);
+        }
+    };
+
+    private boolean displayDirty;
+
+    private boolean multiLine;
+    private String secondaryPrompt = "> ";
+
+    private boolean horizontalScroll;
+
+    private Highlighting highlighting;
+    private Executor highlighterExecutor;
+
+    /** The prompt of the line being read, when it has segments. */
+    private Prompt segmentedPrompt;
+    /** The text last displayed for the segmented prompt. */
+    private String segmentedPromptText;
+    private Executor promptExecutor;
+
+    /**
+     * Held while the line is edited, except when waiting for a key, so that
+     * resize events are handled between two operations.
+     */
+    private final ReentrantLock editLock = new ReentrantLock();
+    private volatile boolean editing;
+    /** True while the next key of the line is read, with the edit lock held. */
+    private boolean waitingForKey;
+    private volatile boolean resizePending;
+    private Timer timer;
+    private TimerTask resizeTask;
+    private SigWinchHandler sigWinch;
+
+    /** The lines to print above the edited line. */
+    private final ConcurrentLinkedQueue<String> printQueue = new ConcurrentLinkedQueue<String>();
+    private final AtomicBoolean printScheduled = new AtomicBoolean();
+    /** True if the queued lines are to be printed when the edit lock is released. */
+    private volatile boolean printBlocked;
+    /** True if the prompt is to be displayed again when the edit lock is released. */
+    private volatile boolean promptBlocked;
+
+    /** The lines displayed below the edited line. */
+    private volatile String status;
+    private final AtomicBoolean statusScheduled = new AtomicBoolean();
+    private volatile long statusUpdated;
+
+    /** The width of the terminal when the line was last drawn. */
+    private int lastWidth;
+
     private Character echoCharacter;
 
-    private CursorBuffer originalBuffer = null;
+    /** The number of undoable edits when the search started, or -1. */
+    private int searchMark = -1;
 
     private StringBuffer searchTerm = null;
 
@@ -165,9 +274,14 @@ public class ConsoleReader implements Closeable
 
     private boolean quotedInsert;
 
-    private boolean recording;
+    /** The macro being recorded, or null. */
+    private KeyboardMacro recordingMacro;
 
-    private String macro = "";
+    private KeyboardMacro lastMacro = new KeyboardMacro();
+
+    /** The macro being replayed, or null, and the index of its next binding. */
+    private KeyboardMacro replayedMacro;
+    private int macroStep;
 
     private String appName;
 
@@ -240,11 +354,23 @@ public class ConsoleReader implements Closeable
         throws IOException
     {
         this.appName = appName != null ? appName : "JLine";
+        // the buffer field is only updated once the buffer has been handed out
+        buf.setMirrored(false);
         this.encoding = encoding != null ? encoding : Configuration.getEncoding();
         Terminal terminal = term != null ? term : TerminalFactory.get();
         this.terminal = terminal instanceof Terminal2 ? (Terminal2) terminal : new DefaultTerminal2(terminal);
         String outEncoding = terminal.getOutputEncoding() != null? terminal.getOutputEncoding() : this.encoding;
-        this.out = new OutputStreamWriter(terminal.wrapOutIfNeeded(out), outEncoding);
+        OutputStream stream = terminal.wrapOutIfNeeded(out);
+        if (Configuration.getBoolean(JLINE_ASYNC_OUTPUT, false)) {
+            asyncOut = new AsyncOutputStream(stream, AsyncOutputStream.DEFAULT_CAPACITY);
+            stream = asyncOut;
+        } else {
+            asyncOut = null;
+        }
+        this.out = new FrameWriter(stream, outEncoding);
+        this.out.setSynchronizedUpdates(this.terminal.isAnsiSupported()
+                && (this.terminal.getStringCapability("Sync") != null
+                    || Configuration.getBoolean(JLINE_SYNCHRONIZED_UPDATES, false)));
         setInput( in );
 
         this.inputrcUrl = getInputRc();
@@ -256,6 +382,11 @@ public class ConsoleReader implements Closeable
                 && Configuration.getBoolean("jline.sigcont", false)) {
             setupSigCont();
         }
+        if (terminal instanceof UnixTerminal
+                && TerminalLineSettings.DEFAULT_TTY.equals(((UnixTerminal) terminal).getSettings().getTtyDevice())
+                && Configuration.getBoolean(JLINE_SIGWINCH, false)) {
+            setupSigWinch(((UnixTerminal) terminal).getSettings());
+        }
     }
 
     private void setupSigCont() {
@@ -269,6 +400,7 @@ public class ConsoleReader implements Closeable
                         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
                             // only method we are proxying is handle()
                             terminal.init();
+                            clearCapabilities();
                             try {
                                 drawLine();
                                 flush();
@@ -288,6 +420,404 @@ public class ConsoleReader implements Closeable
         }
     }
 
+    private void setupSigWinch(final TerminalLineSettings settings) {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> signalHandlerClass = Class.forName("sun.misc.SignalHandler");
+            SigWinchHandler handler = new SigWinchHandler(this, settings, signalHandlerClass);
+            handler.proxy = Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{signalHandlerClass}, handler);
+            handler.handle = signalClass.getMethod("handle", signalClass, signalHandlerClass);
+            handler.signal = signalClass.getConstructor(String.class).newInstance("WINCH");
+            // Signal.handle(new Signal("WINCH"), signalHandler);
+            handler.previous = handler.handle.invoke(null, handler.signal, handler.proxy);
+            sigWinch = handler;
+        } catch (ClassNotFoundException cnfe) {
+            // sun.misc Signal handler classes don't exist
+        } catch (Exception e) {
+            // the signal API is incompatible with what we're expecting, or the signal isn't supported
+        }
+    }
+
+    /**
+     * Handles the WINCH signal for a reader, and lets the handler installed
+     * before know about it too.  Once the reader is closed, the signal is
+     * only passed on to the previous handler, and the reader isn't
+     * referenced anymore.
+     */
+    private static final class SigWinchHandler
+        implements InvocationHandler
+    {
+        private final Class<?> signalHandlerClass;
+        private volatile ConsoleReader reader;
+        private volatile TerminalLineSettings settings;
+        private volatile Object previous;
+        private Object proxy;
+        private Method handle;
+        private Object signal;
+
+        private SigWinchHandler(final ConsoleReader reader, final TerminalLineSettings settings,
+                                final Class<?> signalHandlerClass) {
+            this.reader = reader;
+            this.settings = settings;
+            this.signalHandlerClass = signalHandlerClass;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            // only method we are proxying is handle()
+            ConsoleReader reader = this.reader;
+            TerminalLineSettings settings = this.settings;
+            if (reader != null && settings != null) {
+                settings.invalidate();
+                reader.scheduleResize();
+            }
+            Object handler = previous;
+            if (handler != null
+                    && handler != signalHandlerClass.getField("SIG_DFL").get(null)
+                    && handler != signalHandlerClass.getField("SIG_IGN").get(null)) {
+                method.invoke(handler, args);
+            }
+            return null;
+        }
+
+        /**
+         * Put the previous handler back, unless another one has been
+         * installed since: this one then keeps passing the signal on.
+         */
+        private void restore() {
+            reader = null;
+            settings = null;
+            try {
+                Object current = handle.invoke(null, signal, previous);
+                if (current != proxy) {
+                    handle.invoke(null, signal, current);
+                }
+            } catch (Exception e) {
+                Log.debug("Failed to restore the WINCH signal handler ", e);
+            }
+        }
+    }
+
+    /**
+     * Draw the line again once the resize signals stop coming.  The previous
+     * pending update is cancelled, so that a window dragged around only
+     * causes a single update.
+     */
+    private synchronized void scheduleResize() {
+        if (resizeTask != null) {
+            resizeTask.cancel();
+        }
+        resizeTask = new TimerTask() {
+            @Override
+            public void run() {
+                resizePending = true;
+                // if a key is being handled, the update is done after it
+                if (editLock.tryLock()) {
+                    try {
+                        handleResize();
+                    } catch (IOException e) {
+                        Log.debug("Failed to redraw the line after a resize ", e);
+                    } finally {
+                        unlockEdit();
+                    }
+                }
+            }
+        };
+        getTimer().schedule(resizeTask, RESIZE_DELAY);
+    }
+
+    private synchronized Timer getTimer() {
+        if (timer == null) {
+            timer = new Timer("JLine timer", true);
+        }
+        return timer;
+    }
+
+    private void handleResize() throws IOException {
+        if (resizePending && editing) {
+            resizePending = false;
+            if (out.isInFrame()) {
+                reflow();
+                return;
+            }
+            out.beginFrame();
+            try {
+                reflow();
+            } finally {
+                out.endFrame();
+            }
+        }
+    }
+
+    /**
+     * Draw the line again after the terminal has been resized.  Nothing is
+     * written when the prompt and the buffer fit on the first row at both
+     * widths, since the terminal hasn't moved them.  Otherwise the cursor
+     * goes back to the beginning of the last line of the prompt, the rows
+     * below are cleared and drawn again for the new width.
+     */
+    void reflow() throws IOException {
+        int width = terminal.getWidth();
+        if (display != null) {
+            if (!display.resize(width)) {
+                return;
+            }
+        } else {
+            if (width == lastWidth) {
+                return;
+            }
+            int end = promptLen + buf.columns(buf.length(), promptLen, lastWidth);
+            if (end < Math.min(width, lastWidth)) {
+                lastWidth = width;
+                return;
+            }
+            // the terminal has either kept the rows, or reflowed them with
+            // the new width: don't go above the row the line started on
+            int pos = promptLen + buf.columns(buf.cursor, promptLen, lastWidth);
+            int up = Math.min(pos / lastWidth, pos / width);
+            tputs(Capability.carriage_return);
+            motion.move(out, up * width, 0, width, null);
+        }
+        lastWidth = width;
+        tputs(Capability.clr_eos);
+        drawLastLine();
+    }
+
+    /**
+     * Draw the last line of the prompt and the buffer again, from the
+     * beginning of a cleared row.
+     */
+    private void drawLastLine() throws IOException {
+        rawPrint(lastLine(prompt));
+        if (display != null) {
+            display.clear(promptLen, terminal.getWidth());
+            displayDirty = true;
+            refreshDisplay();
+        } else {
+            fmtPrint(buf, 0, buf.cursor, promptLen);
+            drawBuffer();
+        }
+        flush();
+    }
+
+    /**
+     * Print a line above the line being read, from any thread.  The line is
+     * queued and this method returns at once: the lines queued within a
+     * short delay are printed together, erasing the prompt and the buffer
+     * before them and drawing them again after them, between two operations
+     * of the thread reading the line.  When no line is being read, the
+     * queued lines are simply printed.
+     *
+     * @param str the line to print, without the line separator
+     * @since 2.15
+     */
+    public void printAbove(final CharSequence str) {
+        printQueue.add(checkNotNull(str).toString());
+        if (!editing && editLock.tryLock()) {
+            // print at once, in order with the other output of this thread
+            try {
+                printQueued();
+            } catch (IOException e) {
+                Log.debug("Failed to print a line ", e);
+            } finally {
+                unlockEdit();
+            }
+            return;
+        }
+        if (printScheduled.compareAndSet(false, true)) {
+            schedulePrintQueued();
+        }
+    }
+
+    private void schedulePrintQueued() {
+        getTimer().schedule(new TimerTask()
+        {
+            @Override
+            public void run() {
+                // if a key is being handled, the lines are printed when the
+                // lock is released; try again in case it just has been
+                printBlocked = true;
+                if (!editLock.tryLock()) {
+                    return;
+                }
+                try {
+                    printBlocked = false;
+                    printScheduled.set(false);
+                    printQueued();
+                } catch (IOException e) {
+                    Log.debug("Failed to print the queued lines ", e);
+                } finally {
+                    unlockEdit();
+                }
+            }
+        }, PRINT_ABOVE_DELAY);
+    }
+
+    /**
+     * Release the edit lock, printing first the lines which couldn't be
+     * printed while it was held, and displaying the segments of the prompt
+     * computed meanwhile.
+     */
+    private void unlockEdit() {
+        try {
+            if (promptBlocked && editLock.getHoldCount() == 1) {
+                promptBlocked = false;
+                showSegmentedPrompt(segmentedPrompt);
+            }
+            if (printBlocked && editLock.getHoldCount() == 1) {
+                printBlocked = false;
+                printScheduled.set(false);
+                printQueued();
+            }
+        } catch (IOException e) {
+            Log.debug("Failed to print the queued lines ", e);
+        } finally {
+            editLock.unlock();
+        }
+    }
+
+    /**
+     * Set the lines displayed below the line being read, from any thread,
+     * for instance to show the progress of a background task.  The status
+     * is displayed when the terminal is supported, and may contain ANSI
+     * escape sequences.
+     * <p/>
+     * This method returns at once: the status is displayed at most 20 times
+     * per second, between two operations of the thread reading the line, so
+     * that only the last of the statuses set in the meantime is displayed.
+     * Only the cells which have changed are written.
+     *
+     * @param status the status, or null to remove it
+     * @since 2.15
+     */
+    public void setStatus(final String status) {
+        this.status = status;
+        if (statusScheduled.compareAndSet(false, true)) {
+            long delay = statusUpdated + STATUS_INTERVAL - System.currentTimeMillis();
+            scheduleStatus(Math.max(delay, 0));
+        }
+    }
+
+    /**
+     * @since 2.15
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    private void scheduleStatus(final long delay) {
+        getTimer().schedule(new TimerTask()
+        {
+            @Override
+            public void run() {
+                // if a key is being handled, the status is displayed after it
+                if (!editLock.tryLock()) {
+                    scheduleStatus(STATUS_INTERVAL);
+                    return;
+                }
+                try {
+                    statusScheduled.set(false);
+                    statusUpdated = System.currentTimeMillis();
+                    showStatus();
+                } catch (IOException e) {
+                    Log.debug("Failed to display the status ", e);
+                } finally {
+                    unlockEdit();
+                }
+            }
+        }, delay);
+    }
+
+    private AttributedString statusLines() {
+        String str = status;
+        return str != null ? AttributedString.fromAnsi(str) : null;
+    }
+
+    /**
+     * Display the current status while a line is being read.
+     */
+    private void showStatus() throws IOException {
+        if (!editing || !terminal.isSupported()) {
+            return;
+        }
+        boolean frame = !out.isInFrame();
+        if (frame) {
+            out.beginFrame();
+        }
+        try {
+            if (display == null) {
+                // take over the rendering of the line
+                moveCursorFromTo(getCursorPosition(), promptLen);
+                display = new Display(new DisplayScreen());
+                display.clear(promptLen, terminal.getWidth());
+            }
+            display.setStatus(statusLines());
+            displayDirty = true;
+            flush();
+        } finally {
+            if (frame) {
+                out.endFrame();
+            }
+        }
+    }
+
+    /**
+     * Erase the status from the screen, before printing below the line.
+     */
+    private void hideStatus() throws IOException {
+        if (editing && display != null && display.isStatusShown()) {
+            display.setStatus(null);
+            displayDirty = true;
+            refreshDisplay();
+            // displayed again when the line is drawn again
+            display.setStatus(statusLines());
+        }
+    }
+
+    /**
+     * Print the lines queued by {@link #printAbove}.
+     */
+    private void printQueued() throws IOException {
+        if (printQueue.isEmpty()) {
+            return;
+        }
+        if (!editing) {
+            String line;
+            while ((line = printQueue.poll()) != null) {
+                println(line);
+            }
+            flush();
+            return;
+        }
+        boolean frame = !out.isInFrame();
+        if (frame) {
+            out.beginFrame();
+        }
+        try {
+            // go back to the beginning of the last line of the prompt
+            if (display != null) {
+                refreshDisplay();
+                display.moveToStart();
+            } else {
+                int pos = getCursorPosition();
+                int width = terminal.getWidth();
+                tputs(Capability.carriage_return);
+                motion.move(out, pos - pos % width, 0, width, null);
+            }
+            tputs(Capability.clr_eos);
+            String line;
+            while ((line = printQueue.poll()) != null) {
+                rawPrint(line);
+                rawPrint(LINE_SEPARATOR);
+            }
+            drawLastLine();
+        } finally {
+            if (frame) {
+                out.endFrame();
+            }
+        }
+    }
+
     /**
      * Retrieve the URL for the inputrc configuration file in effect. Intended
      * use is for instantiating ConsoleKeys, to read inputrc variables.
@@ -340,6 +870,29 @@ public class ConsoleReader implements Closeable
         if (in != null) {
             in.shutdown();
         }
+        if (sigWinch != null) {
+            sigWinch.restore();
+            sigWinch = null;
+        }
+        synchronized (this) {
+            // the pending resize, print and status updates
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+            resizeTask = null;
+        }
+        printScheduled.set(false);
+        statusScheduled.set(false);
+        if (asyncOut != null) {
+            try {
+                if (!asyncOut.shutdown()) {
+                    Log.debug("The remaining output hasn't been written in time");
+                }
+            } catch (IOException e) {
+                Log.debug("Failed to write the remaining output ", e);
+            }
+        }
     }
 
     /**
@@ -376,7 +929,32 @@ public class ConsoleReader implements Closeable
         return terminal;
     }
 
+    /**
+     * Returns the name of the encoding used to decode the console input.
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Returns the buffer of the line being read.  Once it has been returned,
+     * its {@link CursorBuffer#buffer} field is kept up to date with each
+     * edit, which makes the edits of long lines slower; use
+     * {@link #getLineBuffer()} if the field isn't needed.
+     */
     public CursorBuffer getCursorBuffer() {
+        buf.setMirrored(true);
+        return buf;
+    }
+
+    /**
+     * Returns the buffer of the line being read, for the callers that only
+     * use its methods and its cursor: unless {@link #getCursorBuffer()} has
+     * been called, its {@link CursorBuffer#buffer} field isn't updated.
+     *
+     * @since 2.15
+     */
+    public CursorBuffer getLineBuffer() {
         return buf;
     }
 
@@ -405,6 +983,196 @@ public class ConsoleReader implements Closeable
         return copyPasteDetection;
     }
 
+    /**
+     * Set the chars which are part of words, in addition to letters and
+     * digits, for the commands moving or killing words.  None by default.
+     *
+     * @param chars the chars, like "_-" to include identifiers in words
+     * @since 2.15
+     */
+    public void setWordCharacters(final String chars) {
+        tokens.setWordChars(checkNotNull(chars));
+    }
+
+    /**
+     * @return the chars which are part of words, in addition to letters and
+     *   digits.
+     * @since 2.15
+     */
+    public String getWordCharacters() {
+        return tokens.getWordChars();
+    }
+
+    /**
+     * Set whether large redraws are wrapped in synchronized update markers,
+     * so that the terminal never displays a partially drawn line.  This is
+     * enabled by default for terminals advertising the <code>Sync</code>
+     * capability, or when the <code>jline.synchronizedupdates</code> property
+     * is set.
+     *
+     * @param enabled true if enabled; false otherwise
+     * @since 2.15
+     */
+    public void setSynchronizedUpdatesEnabled(boolean enabled) {
+        out.setSynchronizedUpdates(enabled);
+    }
+
+    /**
+     * Get whether large redraws are wrapped in synchronized update markers.
+     *
+     * @return true if enabled; false otherwise
+     * @since 2.15
+     */
+    public boolean isSynchronizedUpdatesEnabled() {
+        return out.isSynchronizedUpdates();
+    }
+
+    /**
+     * Set whether the edited line is rendered by comparing it with a model of
+     * the screen, so that only the cells which changed are written.  This
+     * saves a lot of output when editing long lines, and takes effect on the
+     * next call to {@link #readLine}.
+     *
+     * @param enabled true if enabled; false otherwise
+     * @since 2.15
+     */
+    public void setDiffRenderingEnabled(boolean enabled) {
+        this.diffRendering = enabled;
+    }
+
+    /**
+     * Get whether the edited line is rendered by comparing it with a model of
+     * the screen.
+     *
+     * @return true if enabled; false otherwise
+     * @since 2.15
+     */
+    public boolean isDiffRenderingEnabled() {
+        return diffRendering;
+    }
+
+    /**
+     * Set whether the buffer can hold several lines.  The
+     * {@link Operation#INSERT_NEWLINE} operation then inserts a line break,
+     * displayed as a new row beginning with the secondary prompt, and the
+     * keys moving through the history first move the cursor between the
+     * lines of the buffer.  The line is rendered as with
+     * {@link #setDiffRenderingEnabled(boolean)}, so that only the edited
+     * lines are written again.  This takes effect on the next call to
+     * {@link #readLine}.
+     *
+     * @since 2.15
+     */
+    public void setMultiLineEnabled(final boolean enabled) {
+        this.multiLine = enabled;
+    }
+
+    /**
+     * @since 2.15
+     */
+    public boolean isMultiLineEnabled() {
+        return multiLine;
+    }
+
+    /**
+     * Set whether the edited line is displayed on a single row, scrolling
+     * horizontally when it is too long, instead of wrapping on several rows.
+     * Only the part of the line around the cursor is rendered, with a
+     * <code>'<'</code> or <code>'>'</code> at the edge where some text is
+     * hidden, so that the cost of each update depends on the width of the
+     * terminal and not on the length of the line.  This is also enabled by
+     * setting <code>horizontal-scroll-mode</code> in the inputrc file, has
+     * no effect on multi-line buffers, and takes effect on the next call to
+     * {@link #readLine}.
+     *
+     * @since 2.15
+     */
+    public void setHorizontalScrollEnabled(final boolean enabled) {
+        this.horizontalScroll = enabled;
+    }
+
+    /**
+     * @since 2.15
+     */
+    public boolean isHorizontalScrollEnabled() {
+        return horizontalScroll;
+    }
+
+    /**
+     * Set the prompt displayed at the beginning of the lines of a multi-line
+     * buffer after the first one.  It may contain ANSI escape sequences.
+     *
+     * @since 2.15
+     */
+    public void setSecondaryPrompt(final String prompt) {
+        this.secondaryPrompt = checkNotNull(prompt);
+    }
+
+    /**
+     * @since 2.15
+     */
+    public String getSecondaryPrompt() {
+        return secondaryPrompt;
+    }
+
+    /**
+     * Set the highlighter giving the styles of the edited line, or null to
+     * display it without styles.  The line is then rendered as with
+     * {@link #setDiffRenderingEnabled(boolean)}, so that only the cells whose
+     * style has changed are written again.  This takes effect on the next
+     * call to {@link #readLine}.
+     *
+     * @since 2.15
+     */
+    public void setHighlighter(final Highlighter highlighter) {
+        this.highlighting = highlighter != null ? new Highlighting(highlighter) : null;
+    }
+
+    /**
+     * @since 2.15
+     */
+    public Highlighter getHighlighter() {
+        return highlighting != null ? highlighting.getHighlighter() : null;
+    }
+
+    /**
+     * Set the executor running the highlighter, or null to run it before the
+     * line is displayed.  With an executor, the line is displayed at once
+     * with the styles known so far, and displayed again when the highlighter
+     * is done, unless the buffer has changed meanwhile: its result is then
+     * discarded.
+     *
+     * @since 2.15
+     */
+    public void setHighlighterExecutor(final Executor executor) {
+        this.highlighterExecutor = executor;
+    }
+
+    /**
+     * @since 2.15
+     */
+    public Executor getHighlighterExecutor() {
+        return highlighterExecutor;
+    }
+
+    /**
+     * Set the executor computing the segments of the prompts given to
+     * {@link #readLine(Prompt)}, or null to compute each segment in a new
+     * thread.
+     *
+     * @since 2.15
+     */
+    public void setPromptExecutor(final Executor executor) {
+        this.promptExecutor = executor;
+    }
+
+    /**
+     * @since 2.15
+     */
+    public Executor getPromptExecutor() {
+        return promptExecutor;
+    }
+
     /**
      * Set whether the console bell is enabled.
      *
@@ -534,20 +1302,7 @@ public class ConsoleReader implements Closeable
             return false;
         }
 
-        StringBuilder killed = new StringBuilder();
-
-        while (buf.cursor > 0) {
-            char c = buf.current();
-            if (c == 0) {
-                break;
-            }
-
-            killed.append(c);
-            backspace();
-        }
-
-        String copy = killed.reverse().toString();
-        killRing.addBackwards(copy);
+        killRing.addBackwards(deleteRange(0, buf.cursor));
 
         return true;
     }
@@ -558,6 +1313,7 @@ public class ConsoleReader implements Closeable
 
     int wcwidth(CharSequence str, int start, int end, int pos) {
         int cur = pos;
+        int previous = start > 0 ? Character.codePointBefore(str, start) : -1;
         for (int i = start; i < end;) {
             int ucs;
             char c1 = str.charAt(i++);
@@ -572,7 +1328,10 @@ public class ConsoleReader implements Closeable
                     ucs = c1;
                 }
             }
-            cur += wcwidth(ucs, cur);
+            if (!WCWidth.joins(previous, ucs)) {
+                cur += wcwidth(ucs, cur);
+            }
+            previous = ucs;
         }
         return cur - pos;
     }
@@ -589,15 +1348,18 @@ public class ConsoleReader implements Closeable
     }
 
     int nextTabStop(int pos) {
-        int tabWidth = TAB_WIDTH;
-        int width = getTerminal().getWidth();
-        int mod = (pos + tabWidth - 1) % tabWidth;
-        int npos = pos + tabWidth - mod;
-        return npos < width ? npos - pos : width - pos;
+        return CursorBuffer.tabWidth(pos, getTerminal().getWidth());
     }
 
     int getCursorPosition() {
-        return promptLen + wcwidth(buf.buffer, 0, buf.cursor, promptLen);
+        return positionOf(buf.cursor);
+    }
+
+    /**
+     * Returns the screen position of the given index of the buffer.
+     */
+    private int positionOf(int index) {
+        return promptLen + buf.columns(index, promptLen, terminal.getWidth());
     }
 
     /**
@@ -635,16 +1397,16 @@ public class ConsoleReader implements Closeable
      */
     private void setBuffer(final String buffer) throws IOException {
         // don't bother modifying it if it is unchanged
-        if (buffer.equals(buf.buffer.toString())) {
+        if (buffer.contentEquals(buf)) {
             return;
         }
 
         // obtain the difference between the current buffer and the new one
         int sameIndex = 0;
 
-        for (int i = 0, l1 = buffer.length(), l2 = buf.buffer.length(); (i < l1)
+        for (int i = 0, l1 = buffer.length(), l2 = buf.length(); (i < l1)
             && (i < l2); i++) {
-            if (buffer.charAt(i) == buf.buffer.charAt(i)) {
+            if (buffer.charAt(i) == buf.charAt(i)) {
                 sameIndex++;
             }
             else {
@@ -655,12 +1417,12 @@ public class ConsoleReader implements Closeable
         int diff = buf.cursor - sameIndex;
         if (diff < 0) { // we can't backspace here so try from the end of the buffer
             moveToEnd();
-            diff = buf.buffer.length() - sameIndex;
+            diff = buf.length() - sameIndex;
         }
 
         backspace(diff); // go back for the differences
         killLine(); // clear to the end of the line
-        buf.buffer.setLength(sameIndex); // the new length
+        buf.setLength(sameIndex); // the new length
         putString(buffer.substring(sameIndex)); // append the differences
     }
 
@@ -682,12 +1444,21 @@ public class ConsoleReader implements Closeable
      * Output put the prompt + the current buffer
      */
     public void drawLine() throws IOException {
+        // the buffer is about to be drawn again
+        displayDirty = false;
         String prompt = getPrompt();
         if (prompt != null) {
             rawPrint(prompt);
         }
 
-        fmtPrint(buf.buffer, 0, buf.cursor, promptLen);
+        if (display != null) {
+            display.clear(promptLen, terminal.getWidth());
+            displayDirty = true;
+            refreshDisplay();
+            return;
+        }
+
+        fmtPrint(buf, 0, buf.cursor, promptLen);
 
         // force drawBuffer to check for weird wrap (after clear screen)
         drawBuffer();
@@ -697,7 +1468,7 @@ public class ConsoleReader implements Closeable
      * Clear the line and redraw it.
      */
     public void redrawLine() throws IOException {
-        tputs("carriage_return");
+        tputs(Capability.carriage_return);
         drawLine();
     }
 
@@ -707,7 +1478,7 @@ public class ConsoleReader implements Closeable
      * @return the former contents of the buffer.
      */
     final String finishBuffer() throws IOException { // FIXME: Package protected because used by tests
-        String str = buf.buffer.toString();
+        String str = buf.toString();
         String historyLine = str;
 
         if (expandEvents) {
@@ -739,7 +1510,7 @@ public class ConsoleReader implements Closeable
 
         history.moveToEnd();
 
-        buf.buffer.setLength(0);
+        buf.setLength(0);
         buf.cursor = 0;
 
         return str;
@@ -912,9 +1683,37 @@ public class ConsoleReader implements Closeable
      */
     public void putString(final CharSequence str) throws IOException {
         int pos = getCursorPosition();
+        // in overwrite mode, the cells of the replaced chars and of the line
+        boolean replacing = buf.isOverTyping() && buf.cursor < buf.length();
+        int replaced = 0;
+        int end = 0;
+        if (replacing) {
+            replaced = positionOf(Math.min(buf.cursor + str.length(), buf.length())) - pos;
+            end = positionOf(buf.length());
+        }
         buf.write(str);
+        if (display != null) {
+            displayDirty = true;
+            return;
+        }
+        if (mask == null && replacing) {
+            // the chars are printed over the ones they replace, the rest of
+            // the line is only drawn again if it has moved
+            fmtPrint(str, pos);
+            int cursorPos = positionOf(buf.cursor);
+            int width = terminal.getWidth();
+            if (cursorPos - pos == replaced && pos / width == cursorPos / width) {
+                return;
+            }
+            drawBuffer(Math.max(end - positionOf(buf.length()), 0));
+            return;
+        }
         if (mask == null) {
             // no masking
+            if (buf.cursor < buf.length() && insertCells(pos, positionOf(buf.cursor) - pos)) {
+                fmtPrint(str, pos);
+                return;
+            }
             fmtPrint(str, pos);
         } else if (mask == NULL_MASK) {
             // don't print anything
@@ -924,6 +1723,85 @@ public class ConsoleReader implements Closeable
         drawBuffer();
     }
 
+    /**
+     * Returns true if the characters after the cursor can be shifted in place
+     * on the terminal: the end of the line must be on the cursor row, and the
+     * width of the shifted characters must not depend on their position.
+     *
+     * @param pos the cursor position
+     * @param end the position of the end of the line, after the edit
+     */
+    private boolean canShiftCells(final int pos, final int end) {
+        if (display != null || mask != null) {
+            return false;
+        }
+        int width = terminal.getWidth();
+        if (pos / width != end / width || (pos > 0 && pos % width == 0)) {
+            // the cursor may be waiting to wrap at the end of the previous row
+            return false;
+        }
+        for (int i = buf.cursor; i < buf.length(); i++) {
+            if (buf.charAt(i) == '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Insert blank cells at the cursor, shifting the rest of the row to the
+     * right, if the terminal supports it.
+     *
+     * @param pos the cursor position
+     * @param num the number of cells to insert
+     * @return true if the cells have been inserted
+     */
+    private boolean insertCells(final int pos, final int num) throws IOException {
+        if (num <= 0 || !canShiftCells(pos, positionOf(buf.length()))) {
+            return false;
+        }
+        if (num == 1 && tputs(Capability.insert_character)) {
+            return true;
+        }
+        if (tputs(Capability.parm_ich, num)) {
+            return true;
+        }
+        if (hasCapability(Capability.insert_character)) {
+            for (int i = 0; i < num; i++) {
+                tputs(Capability.insert_character);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Delete cells at the cursor, shifting the rest of the row to the left,
+     * if the terminal supports it.
+     *
+     * @param pos the cursor position
+     * @param num the number of cells to delete
+     * @return true if the cells have been deleted
+     */
+    private boolean deleteCells(final int pos, final int num) throws IOException {
+        if (num <= 0 || !canShiftCells(pos, positionOf(buf.length()) + num)) {
+            return false;
+        }
+        if (num == 1 && tputs(Capability.delete_character)) {
+            return true;
+        }
+        if (tputs(Capability.parm_dch, num)) {
+            return true;
+        }
+        if (hasCapability(Capability.delete_character)) {
+            for (int i = 0; i < num; i++) {
+                tputs(Capability.delete_character);
+            }
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Redraw the rest of the buffer from the cursor onwards. This is necessary
      * for inserting text into the buffer.
@@ -932,6 +1810,10 @@ public class ConsoleReader implements Closeable
      */
     private void drawBuffer(final int clear) throws IOException {
         // debug ("drawBuffer: " + clear);
+        if (display != null) {
+            displayDirty = true;
+            return;
+        }
         int nbChars = buf.length() - buf.cursor;
         if (buf.cursor != buf.length() || clear != 0) {
             if (mask != null) {
@@ -941,10 +1823,10 @@ public class ConsoleReader implements Closeable
                     nbChars = 0;
                 }
             } else {
-                fmtPrint(buf.buffer, buf.cursor, buf.length());
+                fmtPrint(buf, buf.cursor, buf.length());
             }
         }
-        int cursorPos = promptLen + wcwidth(buf.buffer, 0, buf.length(), promptLen);
+        int cursorPos = positionOf(buf.length());
         if (terminal.hasWeirdWrap() && !cursorOk) {
             int width = terminal.getWidth();
             // best guess on whether the cursor is in that weird location...
@@ -954,7 +1836,7 @@ public class ConsoleReader implements Closeable
                 // the following workaround is reverse-engineered from looking
                 // at what bash sent to the terminal in the same situation
                 rawPrint(' '); // move cursor to next line by printing dummy space
-                tputs("carriage_return"); // CR / not newline.
+                tputs(Capability.carriage_return); // CR / not newline.
             }
             cursorOk = true;
         }
@@ -978,15 +1860,19 @@ public class ConsoleReader implements Closeable
      */
     private void clearAhead(int num, final int pos) throws IOException {
         if (num == 0) return;
+        if (display != null) {
+            displayDirty = true;
+            return;
+        }
 
         int width = terminal.getWidth();
         // Use kill line
-        if (terminal.getStringCapability("clr_eol") != null) {
+        if (hasCapability(Capability.clr_eol)) {
             int cur = pos;
             int c0 = cur % width;
             // Erase end of current line
             int nb = Math.min(num, width - c0);
-            tputs("clr_eol");
+            tputs(Capability.clr_eol);
             num -= nb;
             // Loop
             while (num > 0) {
@@ -996,7 +1882,7 @@ public class ConsoleReader implements Closeable
                 moveCursorFromTo(prev, cur);
                 // Erase
                 nb = Math.min(num, width);
-                tputs("clr_eol");
+                tputs(Capability.clr_eol);
                 num -= nb;
             }
             moveCursorFromTo(cur, pos);
@@ -1034,8 +1920,12 @@ public class ConsoleReader implements Closeable
      */
     protected void back(final int num) throws IOException {
         if (num == 0) return;
-        int i0 = promptLen + wcwidth(buf.buffer, 0, buf.cursor, promptLen);
-        int i1 = i0 + ((mask != null) ? num : wcwidth(buf.buffer, buf.cursor, buf.cursor + num, i0));
+        if (display != null) {
+            displayDirty = true;
+            return;
+        }
+        int i0 = positionOf(buf.cursor);
+        int i1 = (mask != null) ? i0 + num : positionOf(buf.cursor + num);
         moveCursorFromTo(i1, i0);
     }
 
@@ -1044,9 +1934,66 @@ public class ConsoleReader implements Closeable
      * keyboard) that we want the console to handle immediately.
      */
     public void flush() throws IOException {
+        refreshDisplay();
         out.flush();
     }
 
+    /**
+     * Update the screen to show the current buffer, when the line is
+     * rendered through the display.
+     */
+    private void refreshDisplay() throws IOException {
+        if (display != null && displayDirty) {
+            displayDirty = false;
+            display.update(promptLen, buf, highlight(), mask, terminal.getWidth());
+        }
+    }
+
+    /**
+     * Returns the styles of the buffer, highlighting the chars which have
+     * changed, or null if there is no highlighter.
+     */
+    private int[] highlight() {
+        final Highlighting highlighting = this.highlighting;
+        if (highlighting == null || mask != null) {
+            return null;
+        }
+        boolean changed = highlighting.update(buf);
+        if (highlighterExecutor == null) {
+            return highlighting.highlight(buf);
+        }
+        final Highlighting.Job job = changed ? highlighting.newJob(buf) : null;
+        if (job != null) {
+            highlighterExecutor.execute(new Runnable()
+            {
+                public void run() {
+                    job.run();
+                    editLock.lock();
+                    try {
+                        if (editing && display != null && highlighting.apply(job)) {
+                            displayDirty = true;
+                            if (out.isInFrame()) {
+                                refreshDisplay();
+                            } else {
+                                out.beginFrame();
+                                try {
+                                    refreshDisplay();
+                                } finally {
+                                    out.endFrame();
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        Log.debug("Failed to display the highlighted line ", e);
+                    } finally {
+                        unlockEdit();
+                    }
+                }
+            });
+        }
+        return highlighting.getStyles();
+    }
+
     private int backspaceAll() throws IOException {
         return backspace(Integer.MAX_VALUE);
     }
@@ -1062,13 +2009,53 @@ public class ConsoleReader implements Closeable
         }
 
         int count = - moveCursor(-num);
-        int clear = wcwidth(buf.buffer, buf.cursor, buf.cursor + count, getCursorPosition());
-        buf.buffer.delete(buf.cursor, buf.cursor + count);
-
-        drawBuffer(clear);
+        deleteRange(buf.cursor, buf.cursor + count);
         return count;
     }
 
+    /**
+     * Delete the chars between <code>start</code> (inclusive) and
+     * <code>end</code> (exclusive), leaving the cursor at <code>start</code>,
+     * and redraw the rest of the buffer once.
+     *
+     * @return the deleted chars
+     */
+    private String deleteRange(final int start, final int end) throws IOException {
+        setCursorPosition(start);
+        String deleted = buf.substring(start, end);
+        if (start < end) {
+            int pos = getCursorPosition();
+            int clear = positionOf(end) - pos;
+            buf.delete(start, end);
+            if (!deleteCells(pos, clear)) {
+                drawBuffer(clear);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Replace the chars between <code>start</code> (inclusive) and
+     * <code>end</code> (exclusive), leaving the cursor after the replacement,
+     * and redraw the rest of the buffer once.
+     */
+    private void replaceRange(final int start, final int end, final CharSequence str) throws IOException {
+        setCursorPosition(start);
+        int oldEnd = positionOf(buf.length());
+        if (end - start == str.length()) {
+            for (int i = 0; i < str.length(); i++) {
+                if (buf.charAt(start + i) != str.charAt(i)) {
+                    buf.setCharAt(start + i, str.charAt(i));
+                }
+            }
+        } else {
+            buf.delete(start, end);
+            buf.insert(start, str);
+        }
+        drawBuffer(Math.max(oldEnd - positionOf(buf.length()), 0));
+        setCursorPosition(start + str.length());
+    }
+
     /**
      * Issue a backspace.
      *
@@ -1085,6 +2072,42 @@ public class ConsoleReader implements Closeable
         return moveCursor(buf.length() - buf.cursor) > 0;
     }
 
+    /**
+     * Returns true if the buffer is displayed on several lines.
+     */
+    private boolean isMultiLine() {
+        return multiLine && display != null;
+    }
+
+    /**
+     * Move the cursor to the previous or next line of a multi-line buffer,
+     * keeping its column if the line is long enough.
+     *
+     * @return false if there is no such line
+     */
+    private boolean moveLine(final int delta) throws IOException {
+        if (!isMultiLine()) {
+            return false;
+        }
+        int line = buf.getLineOf(buf.cursor) + delta;
+        if (line < 0 || line >= buf.getLineCount()) {
+            return false;
+        }
+        int column = wcwidth(buf, buf.getLineStart(line - delta), buf.cursor, 0);
+        int index = buf.getLineStart(line);
+        int end = buf.getLineEnd(line);
+        int col = 0;
+        while (index < end) {
+            int next = index + Character.charCount(Character.codePointAt(buf, index));
+            col += wcwidth(buf, index, next, col);
+            if (col > column) {
+                break;
+            }
+            index = next;
+        }
+        return setCursorPosition(index);
+    }
+
     /**
      * Delete the character at the current position and redraw the remainder of the buffer.
      */
@@ -1093,8 +2116,7 @@ public class ConsoleReader implements Closeable
             return false;
         }
 
-        buf.buffer.deleteCharAt(buf.cursor);
-        drawBuffer(1);
+        deleteRange(buf.cursor, buf.cursor + 1);
         return true;
     }
 
@@ -1140,11 +2162,9 @@ public class ConsoleReader implements Closeable
      * @return true if it was done.
      */
     private boolean viRubout(int count) throws IOException {
-        boolean ok = true;
-        for (int i = 0; ok && i < count; i++) {
-            ok = backspace();
-        }
-        return ok;
+        int n = Math.min(count, buf.cursor);
+        deleteRange(buf.cursor - n, buf.cursor);
+        return n == count;
     }
 
     /**
@@ -1154,11 +2174,9 @@ public class ConsoleReader implements Closeable
      * @return true if its works, false if it didn't
      */
     private boolean viDelete(int count) throws IOException {
-        boolean ok = true;
-        for (int i = 0; ok && i < count; i++) {
-            ok = deleteCurrentCharacter();
-        }
-        return ok;
+        int n = Math.min(count, buf.length() - buf.cursor);
+        deleteRange(buf.cursor, buf.cursor + n);
+        return n == count;
     }
 
     /**
@@ -1170,24 +2188,21 @@ public class ConsoleReader implements Closeable
      *   case changes could be completed.
      */
     private boolean viChangeCase(int count) throws IOException {
-        boolean ok = true;
-        for (int i = 0; ok && i < count; i++) {
-
-            ok = buf.cursor < buf.buffer.length ();
-            if (ok) {
-                char ch = buf.buffer.charAt(buf.cursor);
-                if (Character.isUpperCase(ch)) {
-                    ch = Character.toLowerCase(ch);
-                }
-                else if (Character.isLowerCase(ch)) {
-                    ch = Character.toUpperCase(ch);
-                }
-                buf.buffer.setCharAt(buf.cursor, ch);
-                drawBuffer(1);
-                moveCursor(1);
+        int start = buf.cursor;
+        int n = Math.min(count, buf.length() - start);
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = start; i < start + n; i++) {
+            char ch = buf.charAt(i);
+            if (Character.isUpperCase(ch)) {
+                ch = Character.toLowerCase(ch);
             }
+            else if (Character.isLowerCase(ch)) {
+                ch = Character.toUpperCase(ch);
+            }
+            sb.append(ch);
         }
-        return ok;
+        replaceRange(start, start + n, sb);
+        return n == count;
     }
 
     /**
@@ -1203,18 +2218,22 @@ public class ConsoleReader implements Closeable
             return true;
         }
 
-        boolean ok = true;
-        for (int i = 0; ok && i < count; i++) {
-            ok = buf.cursor < buf.buffer.length ();
-            if (ok) {
-                buf.buffer.setCharAt(buf.cursor, (char) c);
-                drawBuffer(1);
-                if (i < (count-1)) {
-                    moveCursor(1);
-                }
-            }
+        int start = buf.cursor;
+        int n = Math.min(count, buf.length() - start);
+        if (n == 0) {
+            return false;
         }
-        return ok;
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; i++) {
+            sb.append((char) c);
+        }
+        replaceRange(start, start + n, sb);
+        if (n < count) {
+            return false;
+        }
+        // stay on the last char changed
+        moveCursor(-1);
+        return true;
     }
 
     /**
@@ -1235,11 +2254,11 @@ public class ConsoleReader implements Closeable
         int pos = buf.cursor - 1;
         for (int i = 0; pos > 0 && i < count; i++) {
             // If we are on white space, then move back.
-            while (pos > 0 && isWhitespace(buf.buffer.charAt(pos))) {
+            while (pos > 0 && isWhitespace(buf.charAt(pos))) {
                 --pos;
             }
 
-            while (pos > 0 && !isDelimiter(buf.buffer.charAt(pos-1))) {
+            while (pos > 0 && !isDelimiter(buf.charAt(pos-1))) {
                 --pos;
             }
 
@@ -1272,10 +2291,7 @@ public class ConsoleReader implements Closeable
             startPos = tmp;
         }
 
-        setCursorPosition(startPos);
-        buf.cursor = startPos;
-        buf.buffer.delete(startPos, endPos);
-        drawBuffer(endPos - startPos);
+        deleteRange(startPos, endPos);
         
         // If we are doing a delete operation (e.g. "d$") then don't leave the
         // cursor dangling off the end. In reality the "isChange" flag is silly
@@ -1311,7 +2327,7 @@ public class ConsoleReader implements Closeable
             return true;
         }
 
-        yankBuffer = buf.buffer.substring(startPos, endPos);
+        yankBuffer = buf.substring(startPos, endPos);
 
         /*
          * It was a movement command that moved the cursor to find the
@@ -1332,7 +2348,7 @@ public class ConsoleReader implements Closeable
         if (yankBuffer.length () == 0) {
             return true;
         }
-        if (buf.cursor < buf.buffer.length ()) {
+        if (buf.cursor < buf.length()) {
             moveCursor(1);
         }
         for (int i = 0; i < count; i++) {
@@ -1402,8 +2418,8 @@ public class ConsoleReader implements Closeable
         if (isForward) {
             while (count-- > 0) {
                 int pos = buf.cursor + 1;
-                while (pos < buf.buffer.length()) {
-                    if (buf.buffer.charAt(pos) == searchChar) {
+                while (pos < buf.length()) {
+                    if (buf.charAt(pos) == searchChar) {
                         setCursorPosition(pos);
                         ok = true;
                         break;
@@ -1431,7 +2447,7 @@ public class ConsoleReader implements Closeable
             while (count-- > 0) {
                 int pos = buf.cursor - 1;
                 while (pos >= 0) {
-                    if (buf.buffer.charAt(pos) == searchChar) {
+                    if (buf.charAt(pos) == searchChar) {
                         setCursorPosition(pos);
                         ok = true;
                         break;
@@ -1474,11 +2490,11 @@ public class ConsoleReader implements Closeable
      */
     private boolean viNextWord(int count) throws IOException {
         int pos = buf.cursor;
-        int end = buf.buffer.length();
+        int end = buf.length();
 
         for (int i = 0; pos < end && i < count; i++) {
             // Skip over letter/digits
-            while (pos < end && !isDelimiter(buf.buffer.charAt(pos))) {
+            while (pos < end && !isDelimiter(buf.charAt(pos))) {
                 ++pos;
             }
 
@@ -1489,7 +2505,7 @@ public class ConsoleReader implements Closeable
              * left in tact.
              */
             if (i < (count-1) || !(state == State.VI_CHANGE_TO)) {
-                while (pos < end && isDelimiter(buf.buffer.charAt(pos))) {
+                while (pos < end && isDelimiter(buf.charAt(pos))) {
                     ++pos;
                 }
             }
@@ -1511,21 +2527,21 @@ public class ConsoleReader implements Closeable
      */
     private boolean viEndWord(int count) throws IOException {
         int pos = buf.cursor;
-        int end = buf.buffer.length();
+        int end = buf.length();
 
         for (int i = 0; pos < end && i < count; i++) {
             if (pos < (end-1)
-                    && !isDelimiter(buf.buffer.charAt(pos))
-                    && isDelimiter(buf.buffer.charAt (pos+1))) {
+                    && !isDelimiter(buf.charAt(pos))
+                    && isDelimiter(buf.charAt (pos+1))) {
                 ++pos;
             }
 
             // If we are on white space, then move back.
-            while (pos < end && isDelimiter(buf.buffer.charAt(pos))) {
+            while (pos < end && isDelimiter(buf.charAt(pos))) {
                 ++pos;
             }
 
-            while (pos < (end-1) && !isDelimiter(buf.buffer.charAt(pos+1))) {
+            while (pos < (end-1) && !isDelimiter(buf.charAt(pos+1))) {
                 ++pos;
             }
         }
@@ -1534,26 +2550,12 @@ public class ConsoleReader implements Closeable
     }
 
     private boolean previousWord() throws IOException {
-        while (isDelimiter(buf.current()) && (moveCursor(-1) != 0)) {
-            // nothing
-        }
-
-        while (!isDelimiter(buf.current()) && (moveCursor(-1) != 0)) {
-            // nothing
-        }
-
+        setCursorPosition(tokens.previousWordStart(buf.cursor));
         return true;
     }
 
     private boolean nextWord() throws IOException {
-        while (isDelimiter(buf.nextChar()) && (moveCursor(1) != 0)) {
-            // nothing
-        }
-
-        while (!isDelimiter(buf.nextChar()) && (moveCursor(1) != 0)) {
-            // nothing
-        }
-
+        setCursorPosition(tokens.nextWordEnd(buf.cursor));
         return true;
     }
 
@@ -1568,37 +2570,24 @@ public class ConsoleReader implements Closeable
      */
     private boolean unixWordRubout(int count) throws IOException {
         boolean success = true;
-        StringBuilder killed = new StringBuilder();
+        int start = buf.cursor;
 
         for (; count > 0; --count) {
-            if (buf.cursor == 0) {
+            if (start == 0) {
                 success = false;
                 break;
             }
 
-            while (isWhitespace(buf.current())) {
-                char c = buf.current();
-                if (c == 0) {
-                    break;
-                }
-
-                killed.append(c);
-                backspace();
+            while (start > 0 && isWhitespace(buf.charAt(start - 1))) {
+                start--;
             }
 
-            while (!isWhitespace(buf.current())) {
-                char c = buf.current();
-                if (c == 0) {
-                    break;
-                }
-
-                killed.append(c);
-                backspace();
+            while (start > 0 && !isWhitespace(buf.charAt(start - 1))) {
+                start--;
             }
         }
 
-        String copy = killed.reverse().toString();
-        killRing.addBackwards(copy);
+        killRing.addBackwards(deleteRange(start, buf.cursor));
 
         return success;
     }
@@ -1676,7 +2665,7 @@ public class ConsoleReader implements Closeable
         if (ch == -1 || isAborted) {
             setCursorPosition(0);
             killLine();
-            putString(origBuffer.buffer);
+            putString(origBuffer);
             setCursorPosition(origBuffer.cursor);
             return -1;
         }
@@ -1685,7 +2674,7 @@ public class ConsoleReader implements Closeable
          * The first character of the buffer was the search character itself
          * so we discard it.
          */
-        String searchTerm = buf.buffer.substring(1);
+        String searchTerm = buf.substring(1, buf.length());
         int idx = -1;
 
         /*
@@ -1721,7 +2710,7 @@ public class ConsoleReader implements Closeable
         if (idx == -1) {
             setCursorPosition(0);
             killLine();
-            putString(origBuffer.buffer);
+            putString(origBuffer);
             setCursorPosition(0);
             return -1;
         }
@@ -1797,6 +2786,7 @@ public class ConsoleReader implements Closeable
 
 
         if (in.isNonBlockingEnabled()) {
+            out.endFrame();
             in.peek(parenBlinkTimeout);
         }
 
@@ -1812,118 +2802,34 @@ public class ConsoleReader implements Closeable
      *   character or if there was no matching bracket.
      */
     private boolean viMatch() throws IOException {
-        int pos        = buf.cursor;
-
-        if (pos == buf.length()) {
+        if (buf.cursor == buf.length()) {
             return false;
         }
 
-        int type       = getBracketType(buf.buffer.charAt (pos));
-        int move       = (type < 0) ? -1 : 1;
-        int count      = 1;
-
-        if (type == 0)
+        int pos = tokens.matchingBracket(buf.cursor);
+        if (pos < 0) {
             return false;
-
-        while (count > 0) {
-            pos += move;
-
-            // Fell off the start or end.
-            if (pos < 0 || pos >= buf.buffer.length ()) {
-                return false;
-            }
-
-            int curType = getBracketType(buf.buffer.charAt (pos));
-            if (curType == type) {
-                ++count;
-            }
-            else if (curType == -type) {
-                --count;
-            }
         }
 
         /*
          * Slight adjustment for delete-to, yank-to, change-to to ensure
          * that the matching paren is consumed
          */
-        if (move > 0 && isInViMoveOperationState())
+        if (pos > buf.cursor && isInViMoveOperationState())
             ++pos;
 
         setCursorPosition(pos);
-        flush();
-        return true;
-    }
-
-    /**
-     * Given a character determines what type of bracket it is (paren,
-     * square, curly, or none).
-     * @param ch The character to check
-     * @return 1 is square, 2 curly, 3 parent, or zero for none.  The value
-     *   will be negated if it is the closing form of the bracket.
-     */
-    private static int getBracketType (char ch) {
-        switch (ch) {
-            case '[': return  1;
-            case ']': return -1;
-            case '{': return  2;
-            case '}': return -2;
-            case '(': return  3;
-            case ')': return -3;
-            default:
-                return 0;
-        }
-    }
-
-    private boolean deletePreviousWord() throws IOException {
-        StringBuilder killed = new StringBuilder();
-        char c;
-
-        while (isDelimiter((c = buf.current()))) {
-            if (c == 0) {
-                break;
-            }
-
-            killed.append(c);
-            backspace();
-        }
-
-        while (!isDelimiter((c = buf.current()))) {
-            if (c == 0) {
-                break;
-            }
-
-            killed.append(c);
-            backspace();
-        }
+        flush();
+        return true;
+    }
 
-        String copy = killed.reverse().toString();
-        killRing.addBackwards(copy);
+    private boolean deletePreviousWord() throws IOException {
+        killRing.addBackwards(deleteRange(tokens.previousWordStart(buf.cursor), buf.cursor));
         return true;
     }
 
     private boolean deleteNextWord() throws IOException {
-        StringBuilder killed = new StringBuilder();
-        char c;
-
-        while (isDelimiter((c = buf.nextChar()))) {
-            if (c == 0) {
-                break;
-            }
-            killed.append(c);
-            delete();
-        }
-
-        while (!isDelimiter((c = buf.nextChar()))) {
-            if (c == 0) {
-                break;
-            }
-            killed.append(c);
-            delete();
-        }
-
-        String copy = killed.toString();
-        killRing.add(copy);
-
+        killRing.add(deleteRange(buf.cursor, tokens.nextWordEnd(buf.cursor)));
         return true;
     }
 
@@ -1931,8 +2837,8 @@ public class ConsoleReader implements Closeable
         boolean first = true;
         int i = 1;
         char c;
-        while (buf.cursor + i  - 1< buf.length() && !isDelimiter((c = buf.buffer.charAt(buf.cursor + i - 1)))) {
-            buf.buffer.setCharAt(buf.cursor + i - 1, first ? Character.toUpperCase(c) : Character.toLowerCase(c));
+        while (buf.cursor + i  - 1< buf.length() && !isDelimiter((c = buf.charAt(buf.cursor + i - 1)))) {
+            buf.setCharAt(buf.cursor + i - 1, first ? Character.toUpperCase(c) : Character.toLowerCase(c));
             first = false;
             i++;
         }
@@ -1944,8 +2850,8 @@ public class ConsoleReader implements Closeable
     private boolean upCaseWord() throws IOException {
         int i = 1;
         char c;
-        while (buf.cursor + i - 1 < buf.length() && !isDelimiter((c = buf.buffer.charAt(buf.cursor + i - 1)))) {
-            buf.buffer.setCharAt(buf.cursor + i - 1, Character.toUpperCase(c));
+        while (buf.cursor + i - 1 < buf.length() && !isDelimiter((c = buf.charAt(buf.cursor + i - 1)))) {
+            buf.setCharAt(buf.cursor + i - 1, Character.toUpperCase(c));
             i++;
         }
         drawBuffer();
@@ -1956,8 +2862,8 @@ public class ConsoleReader implements Closeable
     private boolean downCaseWord() throws IOException {
         int i = 1;
         char c;
-        while (buf.cursor + i - 1 < buf.length() && !isDelimiter((c = buf.buffer.charAt(buf.cursor + i - 1)))) {
-            buf.buffer.setCharAt(buf.cursor + i - 1, Character.toLowerCase(c));
+        while (buf.cursor + i - 1 < buf.length() && !isDelimiter((c = buf.charAt(buf.cursor + i - 1)))) {
+            buf.setCharAt(buf.cursor + i - 1, Character.toLowerCase(c));
             i++;
         }
         drawBuffer();
@@ -1975,25 +2881,19 @@ public class ConsoleReader implements Closeable
      *   cannot happen at the beginning of the line).
      */
     private boolean transposeChars(int count) throws IOException {
-        for (; count > 0; --count) {
-            if (buf.cursor == 0 || buf.cursor == buf.buffer.length()) {
-                return false;
-            }
-
-            int first  = buf.cursor-1;
-            int second = buf.cursor;
-
-            char tmp = buf.buffer.charAt (first);
-            buf.buffer.setCharAt(first, buf.buffer.charAt(second));
-            buf.buffer.setCharAt(second, tmp);
-
-            // This could be done more efficiently by only re-drawing at the end.
-            moveInternal(-1);
-            drawBuffer();
-            moveInternal(2);
+        int start = buf.cursor - 1;
+        int n = Math.min(count, buf.length() - buf.cursor);
+        if (start < 0 || n == 0) {
+            return false;
         }
 
-        return true;
+        // the char before the cursor is dragged over the next n chars
+        StringBuilder sb = new StringBuilder(n + 1);
+        sb.append(buf, buf.cursor, buf.cursor + n);
+        sb.append(buf.charAt(start));
+        replaceRange(start, buf.cursor + n, sb);
+
+        return n == count;
     }
 
     public boolean isKeyMap(String name) {
@@ -2025,6 +2925,37 @@ public class ConsoleReader implements Closeable
         return finishBuffer();
     }
 
+    /**
+     * Undo or redo edits of the line, or revert it to its initial content.
+     */
+    private boolean replay(final Operation op) throws IOException {
+        journal.endGroup();
+        int cursor = buf.cursor;
+        int end = 0;
+        if (display == null) {
+            // draw the buffer again from its start
+            end = positionOf(buf.length());
+            setCursorPosition(0);
+        }
+        boolean success;
+        if (op == Operation.UNDO) {
+            success = journal.undo();
+        } else if (op == Operation.REDO) {
+            success = journal.redo();
+        } else {
+            success = journal.revert();
+        }
+        if (display == null) {
+            int target = success ? buf.cursor : cursor;
+            buf.cursor = 0;
+            drawBuffer(Math.max(end - positionOf(buf.length()), 0));
+            setCursorPosition(target);
+        } else {
+            displayDirty = true;
+        }
+        return success;
+    }
+
     private void abort() throws IOException {
         beep();
         buf.clear();
@@ -2045,15 +2976,15 @@ public class ConsoleReader implements Closeable
             return 0;
         }
 
-        if ((buf.cursor == buf.buffer.length()) && (where >= 0)) {
+        if ((buf.cursor == buf.length()) && (where >= 0)) {
             return 0;
         }
 
         if ((buf.cursor + where) < 0) {
             where = -buf.cursor;
         }
-        else if ((buf.cursor + where) > buf.buffer.length()) {
-            where = buf.buffer.length() - buf.cursor;
+        else if ((buf.cursor + where) > buf.length()) {
+            where = buf.length() - buf.cursor;
         }
 
         moveInternal(where);
@@ -2071,15 +3002,19 @@ public class ConsoleReader implements Closeable
         // + buf.cursor + " => " + (buf.cursor + where) + ")");
         buf.cursor += where;
 
+        if (display != null) {
+            displayDirty = true;
+            return;
+        }
+
         int i0;
         int i1;
+        CharSequence text = null;
         if (mask == null) {
-            if (where < 0) {
-                i1 = promptLen + wcwidth(buf.buffer, 0, buf.cursor, promptLen);
-                i0 = i1 + wcwidth(buf.buffer, buf.cursor, buf.cursor - where, i1);
-            } else {
-                i0 = promptLen + wcwidth(buf.buffer, 0, buf.cursor - where, promptLen);
-                i1 = i0 + wcwidth(buf.buffer, buf.cursor - where, buf.cursor, i0);
+            i0 = positionOf(buf.cursor - where);
+            i1 = positionOf(buf.cursor);
+            if (where > 0 && isPlain(buf, buf.cursor - where, buf.cursor)) {
+                text = buf.subSequence(buf.cursor - where, buf.cursor);
             }
         } else if (mask != NULL_MASK) {
             i1 = promptLen + buf.cursor;
@@ -2087,48 +3022,37 @@ public class ConsoleReader implements Closeable
         } else {
             return;
         }
-        moveCursorFromTo(i0, i1);
+        moveCursorFromTo(i0, i1, text);
     }
 
-    private void moveCursorFromTo(int i0, int i1) throws IOException {
-        if (i0 == i1) return;
-        int width = getTerminal().getWidth();
-        int l0 = i0 / width;
-        int c0 = i0 % width;
-        int l1 = i1 / width;
-        int c1 = i1 % width;
-        if (l0 == l1 + 1) {
-            if (!tputs("cursor_up")) {
-                tputs("parm_up_cursor", 1);
-            }
-        } else if (l0 > l1) {
-            if (!tputs("parm_up_cursor", l0 - l1)) {
-                for (int i = l1; i < l0; i++) {
-                    tputs("cursor_up");
-                }
-            }
-        } else if (l0 < l1) {
-            tputs("carriage_return");
-            rawPrint('\n', l1 - l0);
-            c0 = 0;
-        }
-        if (c0 == c1 - 1) {
-            tputs("cursor_right");
-        } else if (c0 == c1 + 1) {
-            tputs("cursor_left");
-        } else if (c0 < c1) {
-            if (!tputs("parm_right_cursor", c1 - c0)) {
-                for (int i = c0; i < c1; i++) {
-                    tputs("cursor_right");
-                }
-            }
-        } else if (c0 > c1) {
-            if (!tputs("parm_left_cursor", c0 - c1)) {
-                for (int i = c1; i < c0; i++) {
-                    tputs("cursor_left");
-                }
+    /**
+     * Returns true if the given chars are displayed as they are, one per
+     * column.
+     */
+    private static boolean isPlain(final CharSequence str, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            char c = str.charAt(i);
+            if (c < 32 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+                    || WCWidth.wcwidth(c) != 1) {
+                return false;
             }
         }
+        return true;
+    }
+
+    private void moveCursorFromTo(int i0, int i1) throws IOException {
+        moveCursorFromTo(i0, i1, null);
+    }
+
+    /**
+     * Move the cursor with the cheapest output.
+     *
+     * @param text the characters displayed between the two positions, which
+     *             can be written again to move right, or null
+     */
+    private void moveCursorFromTo(int i0, int i1, CharSequence text) throws IOException {
+        if (i0 == i1) return;
+        motion.move(out, i0, i1, getTerminal().getWidth(), text);
         cursorOk = true;
     }
 
@@ -2148,7 +3072,10 @@ public class ConsoleReader implements Closeable
      * @return the character, or -1 if an EOF is received.
      */
     public int readCharacter(boolean checkForAltKeyCombo) throws IOException {
-        int c = reader.read();
+        // show the pending output before blocking
+        refreshDisplay();
+        out.endFrame();
+        int c = read();
         if (c >= 0) {
             Log.trace("Keystroke: ", c);
             // clear any echo characters
@@ -2173,6 +3100,23 @@ public class ConsoleReader implements Closeable
         return c;
     }
 
+    /**
+     * Read a char from the input.  While waiting for the next key of the
+     * line, the edit lock is released so that the line can be drawn again
+     * on resize, and lines printed above it, by other threads.
+     */
+    private int read() throws IOException {
+        if (!waitingForKey || !editLock.isHeldByCurrentThread()) {
+            return reader.read();
+        }
+        unlockEdit();
+        try {
+            return reader.read();
+        } finally {
+            editLock.lock();
+        }
+    }
+
     /**
      * Clear the echoed characters for the specified character code.
      */
@@ -2185,6 +3129,11 @@ public class ConsoleReader implements Closeable
         // otherwise, clear
         int pos = getCursorPosition();
         int num = wcwidth(c, pos);
+        if (display != null) {
+            display.echoed(num);
+            displayDirty = true;
+            return num;
+        }
         moveCursorFromTo(pos + num, pos);
         drawBuffer(num);
 
@@ -2229,10 +3178,6 @@ public class ConsoleReader implements Closeable
             }
             opBuffer.appendCodePoint(c);
 
-            if (recording) {
-                macro += new String(Character.toChars(c));
-            }
-
             if (quotedInsert) {
                 o = Operation.SELF_INSERT;
                 quotedInsert = false;
@@ -2240,20 +3185,8 @@ public class ConsoleReader implements Closeable
                 o = keys.getBound(opBuffer);
             }
 
-            /*
-             * The kill ring keeps record of whether or not the
-             * previous command was a yank or a kill. We reset
-             * that state here if needed.
-             */
-            if (!recording && !(o instanceof KeyMap)) {
-                if (o != Operation.YANK_POP && o != Operation.YANK) {
-                    killRing.resetLastYank();
-                }
-                if (o != Operation.KILL_LINE && o != Operation.KILL_WHOLE_LINE
-                        && o != Operation.BACKWARD_KILL_WORD && o != Operation.KILL_WORD
-                        && o != Operation.UNIX_LINE_DISCARD && o != Operation.UNIX_WORD_RUBOUT) {
-                    killRing.resetLastKill();
-                }
+            if (!(o instanceof KeyMap)) {
+                updateKillRing(o);
             }
 
             if (o == Operation.DO_LOWERCASE_VERSION) {
@@ -2333,6 +3266,47 @@ public class ConsoleReader implements Closeable
         return o;
     }
 
+    /**
+     * The kill ring keeps record of whether or not the previous command was
+     * a yank or a kill.  Reset that state here if needed.
+     */
+    private void updateKillRing(final Object o) {
+        if (recordingMacro != null) {
+            return;
+        }
+        if (o != Operation.YANK_POP && o != Operation.YANK) {
+            killRing.resetLastYank();
+        }
+        if (o != Operation.KILL_LINE && o != Operation.KILL_WHOLE_LINE
+                && o != Operation.BACKWARD_KILL_WORD && o != Operation.KILL_WORD
+                && o != Operation.UNIX_LINE_DISCARD && o != Operation.UNIX_WORD_RUBOUT) {
+            killRing.resetLastKill();
+        }
+    }
+
+    /**
+     * Returns the next binding of the macro being replayed, with its keys in
+     * the op buffer.
+     *
+     * @param merge whether the chars inserted in a row can be taken at once
+     */
+    private Object nextMacroBinding(final boolean merge) {
+        KeyboardMacro macro = replayedMacro;
+        Object o = macro.getBinding(macroStep);
+        opBuffer.setLength(0);
+        macro.appendKeys(macroStep++, opBuffer);
+        while (merge && o == Operation.SELF_INSERT
+                && macroStep < macro.size() && macro.getBinding(macroStep) == Operation.SELF_INSERT) {
+            macro.appendKeys(macroStep++, opBuffer);
+        }
+        if (macroStep == macro.size()) {
+            replayedMacro = null;
+        }
+        quotedInsert = false;
+        updateKillRing(o);
+        return o;
+    }
+
     public String getLastBinding() {
         return opBuffer.toString();
     }
@@ -2378,6 +3352,170 @@ public class ConsoleReader implements Closeable
         return readLine(prompt, mask, null);
     }
 
+    /**
+     * Read a line with a prompt whose segments are computed in the
+     * background.  The prompt is displayed at once, with placeholders for
+     * the segments which are not computed yet, and displayed again as they
+     * are computed.
+     *
+     * @see #setPromptExecutor(Executor)
+     * @since 2.15
+     */
+    public String readLine(final Prompt prompt) throws IOException {
+        checkNotNull(prompt);
+        editLock.lock();
+        try {
+            segmentedPrompt = prompt;
+            for (final Prompt.Segment segment : prompt.getSegments()) {
+                if (segment.getValue() == null) {
+                    continue;
+                }
+                final int generation = segment.reset();
+                Runnable task = new Runnable()
+                {
+                    public void run() {
+                        try {
+                            if (!segment.setText(segment.getValue().call(), generation)) {
+                                // the line has been read
+                                return;
+                            }
+                        } catch (Exception e) {
+                            Log.debug("Failed to compute a segment of the prompt ", e);
+                            return;
+                        }
+                        segmentComputed(prompt);
+                    }
+                };
+                if (promptExecutor != null) {
+                    promptExecutor.execute(task);
+                } else {
+                    Thread thread = new Thread(task, "JLine prompt");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+        } finally {
+            unlockEdit();
+        }
+        try {
+            // the segments computed meanwhile are taken into account by readLine
+            return readLine(prompt.toString(), null, null);
+        } finally {
+            // a late value must not show up when the prompt is used again
+            for (Prompt.Segment segment : prompt.getSegments()) {
+                segment.cancel();
+            }
+        }
+    }
+
+    /**
+     * Display the prompt again when one of its segments has been computed.
+     */
+    private void segmentComputed(final Prompt prompt) {
+        // if a key is being handled, the prompt is displayed when the lock is
+        // released; try again in case it just has been
+        promptBlocked = true;
+        if (!editLock.tryLock()) {
+            return;
+        }
+        try {
+            promptBlocked = false;
+            showSegmentedPrompt(prompt);
+        } finally {
+            unlockEdit();
+        }
+    }
+
+    private void showSegmentedPrompt(final Prompt prompt) {
+        try {
+            // if the prompt has been replaced, by a search for instance, the
+            // new text is displayed when it is restored
+            if (prompt == null || segmentedPrompt != prompt || !editing
+                    || !segmentedPromptText.equals(this.prompt)) {
+                return;
+            }
+            String str = prompt.toString();
+            if (str.equals(segmentedPromptText)) {
+                return;
+            }
+            segmentedPromptText = str;
+            boolean frame = !out.isInFrame();
+            if (frame) {
+                out.beginFrame();
+            }
+            try {
+                redrawPrompt(str);
+            } finally {
+                if (frame) {
+                    out.endFrame();
+                }
+            }
+        } catch (IOException e) {
+            Log.debug("Failed to display the prompt ", e);
+        }
+    }
+
+    /**
+     * Print a new prompt over the current one, keeping the buffer and the
+     * cursor.  When the rows of the prompt keep the same width, only the
+     * prompt is written, otherwise the buffer is drawn again after it.
+     */
+    private void redrawPrompt(final String newPrompt) throws IOException {
+        int width = terminal.getWidth();
+        // go back to the beginning of the prompt
+        if (display != null) {
+            refreshDisplay();
+            display.moveToStart();
+        } else {
+            int pos = getCursorPosition();
+            tputs(Capability.carriage_return);
+            motion.move(out, pos - pos % width, 0, width, null);
+        }
+        int rows = rowsAbove(prompt, width);
+        motion.move(out, rows * width, 0, width, null);
+        int oldLen = promptLen;
+        setPrompt(newPrompt);
+        int last = newPrompt.lastIndexOf('\n') + 1;
+        if (rowsAbove(newPrompt, width) != rows || promptLen != oldLen) {
+            tputs(Capability.clr_eos);
+            rawPrint(newPrompt.substring(0, last));
+            drawLastLine();
+            return;
+        }
+        // each line is written over the previous one
+        for (int i = 0; i < last; ) {
+            int end = newPrompt.indexOf('\n', i);
+            rawPrint(newPrompt.substring(i, end));
+            tputs(Capability.clr_eol);
+            rawPrint('\n');
+            i = end + 1;
+        }
+        rawPrint(newPrompt.substring(last));
+        if (display != null) {
+            display.promptPrinted();
+            displayDirty = true;
+        } else {
+            moveCursorFromTo(promptLen, getCursorPosition());
+        }
+        flush();
+    }
+
+    /**
+     * Returns the number of rows used by the lines of a prompt before the
+     * last one.
+     */
+    private int rowsAbove(final String prompt, final int width) {
+        if (prompt == null) {
+            return 0;
+        }
+        int rows = 0;
+        for (int i = prompt.indexOf('\n'), start = 0; i >= 0; start = i + 1, i = prompt.indexOf('\n', start)) {
+            int w = wcwidth(Ansi.stripAnsi(prompt.substring(start, i)), 0);
+            rows += Math.max(1, (w + width - 1) / width);
+        }
+        return rows;
+    }
+
     /**
      * Sets the current keymap by name. Supported keymaps are "emacs",
      * "vi-insert", "vi-move".
@@ -2428,15 +3566,40 @@ public class ConsoleReader implements Closeable
             prompt = getPrompt();
         }
 
+        editLock.lock();
         try {
+            if (segmentedPrompt != null) {
+                // some segments may have been computed since the call
+                prompt = segmentedPrompt.toString();
+                setPrompt(prompt);
+                segmentedPromptText = prompt;
+            }
             if (buffer != null) {
                 buf.write(buffer);
             }
+            // the line reverts to the initial buffer
+            journal.clear();
 
             if (!terminal.isSupported()) {
                 beforeReadLine(prompt, mask);
             }
 
+            boolean scroll = horizontalScroll
+                    || "on".equalsIgnoreCase(consoleKeys.getVariable("horizontal-scroll-mode"));
+            if ((diffRendering || highlighting != null || multiLine || scroll || status != null)
+                    && terminal.isSupported()) {
+                if (display == null) {
+                    display = new Display(new DisplayScreen());
+                }
+                display.setSecondaryPrompt(multiLine ? AttributedString.fromAnsi(secondaryPrompt) : null);
+                display.setHorizontalScroll(scroll);
+                display.setStatus(statusLines());
+                display.clear(promptLen, terminal.getWidth());
+            } else {
+                display = null;
+            }
+            lastWidth = terminal.getWidth();
+
             if (buffer != null && buffer.length() > 0
                     || prompt != null && prompt.length() > 0) {
                 drawLine();
@@ -2456,18 +3619,43 @@ public class ConsoleReader implements Closeable
             }
 
             String originalPrompt = this.prompt;
+            Object lastBinding = null;
 
             state = State.NORMAL;
 
             boolean success = true;
 
             pushBackChar.clear();
+            replayedMacro = null;
+            editing = true;
             while (true) {
+                handleResize();
+                printQueued();
 
-                Object o = readBinding(getKeys());
+                Object o;
+                if (replayedMacro != null) {
+                    o = nextMacroBinding(state == State.NORMAL);
+                } else {
+                    // let the line be drawn again on resize while waiting for a key
+                    waitingForKey = true;
+                    try {
+                        o = readBinding(getKeys());
+                    } finally {
+                        waitingForKey = false;
+                    }
+                }
                 if (o == null) {
+                    hideStatus();
                     return null;
                 }
+                // the keys of the macros bound to strings are recorded as
+                // they are decoded
+                if (recordingMacro != null && !(o instanceof String)) {
+                    recordingMacro.add(o, opBuffer);
+                }
+                // collect the output of the operation, it is written at once
+                // at the end of the loop or when the next key is read
+                out.beginFrame();
                 int c = 0;
                 if (opBuffer.length() > 0) {
                     c = opBuffer.codePointBefore(opBuffer.length());
@@ -2488,13 +3676,19 @@ public class ConsoleReader implements Closeable
                 // Handle custom callbacks
                 if (o instanceof ActionListener) {
                     ((ActionListener) o).actionPerformed(null);
+                    // the listener may have changed the buffer field directly
+                    buf.checkMirrorContent();
                     opBuffer.setLength(0);
                     continue;
                 }
 
-                CursorBuffer oldBuf = new CursorBuffer();
-                oldBuf.buffer.append(buf.buffer);
-                oldBuf.cursor = buf.cursor;
+                // the chars typed in a row, and everything typed in vi insert
+                // mode, are undone at once
+                if (!(o == Operation.SELF_INSERT && lastBinding == Operation.SELF_INSERT)
+                        && !KeyMap.VI_INSERT.equals(getKeyMap())) {
+                    journal.endGroup();
+                }
+                lastBinding = o;
 
                 // Search mode.
                 //
@@ -2503,13 +3697,13 @@ public class ConsoleReader implements Closeable
                 // through to the normal state.
                 if (state == State.SEARCH || state == State.FORWARD_SEARCH) {
                     int cursorDest = -1;
+                    boolean aborted = false;
                     // TODO: check the isearch-terminators variable terminating the search
                     switch ( ((Operation) o )) {
                         case ABORT:
                             state = State.NORMAL;
-                            buf.clear();
-                            buf.write(originalBuffer.buffer);
-                            buf.cursor = originalBuffer.cursor;
+                            journal.rollback(searchMark);
+                            aborted = true;
                             break;
 
                         case REVERSE_SEARCH_HISTORY:
@@ -2591,6 +3785,14 @@ public class ConsoleReader implements Closeable
                     // otherwise, restore the line
                     else {
                         restoreLine(originalPrompt, cursorDest);
+                        if (aborted) {
+                            // the line has only been drawn again
+                            journal.discard(searchMark);
+                        } else {
+                            // the search is undone at once
+                            journal.merge(searchMark);
+                        }
+                        searchMark = -1;
                     }
                 }
                 if (state != State.SEARCH && state != State.FORWARD_SEARCH) {
@@ -2662,7 +3864,7 @@ public class ConsoleReader implements Closeable
                                 break;
 
                             case BEGINNING_OF_LINE:
-                                success = setCursorPosition(0);
+                                success = setCursorPosition(isMultiLine() ? buf.getLineStart(buf.getLineOf(buf.cursor)) : 0);
                                 break;
 
                             case YANK:
@@ -2697,6 +3899,12 @@ public class ConsoleReader implements Closeable
                             case ACCEPT_LINE:
                                 return accept();
 
+                            case UNDO:
+                            case REDO:
+                            case REVERT_LINE:
+                                success = replay(op);
+                                break;
+
                             case ABORT:
                                 if (searchTerm == null) {
                                     abort();
@@ -2707,7 +3915,7 @@ public class ConsoleReader implements Closeable
                                 if (handleUserInterrupt) {
                                     println();
                                     flush();
-                                    String partialLine = buf.buffer.toString();
+                                    String partialLine = buf.toString();
                                     buf.clear();
                                     history.moveToEnd();
                                     throw new UserInterruptException(partialLine);
@@ -2733,7 +3941,7 @@ public class ConsoleReader implements Closeable
                                 break;
 
                             case PREVIOUS_HISTORY:
-                                success = moveHistory(false);
+                                success = moveLine(-1) || moveHistory(false);
                                 break;
 
                             /*
@@ -2748,7 +3956,7 @@ public class ConsoleReader implements Closeable
                                 break;
 
                             case NEXT_HISTORY:
-                                success = moveHistory(true);
+                                success = moveLine(1) || moveHistory(true);
                                 break;
 
                             /*
@@ -2767,7 +3975,7 @@ public class ConsoleReader implements Closeable
                                 break;
 
                             case EXIT_OR_DELETE_CHAR:
-                                if (buf.buffer.length() == 0) {
+                                if (buf.length() == 0) {
                                     return null;
                                 }
                                 success = deleteCurrentCharacter();
@@ -2852,13 +4060,11 @@ public class ConsoleReader implements Closeable
                                 break;
 
                             case REVERSE_SEARCH_HISTORY:
-                                originalBuffer = new CursorBuffer();
-                                originalBuffer.write(buf.buffer);
-                                originalBuffer.cursor = buf.cursor;
+                                searchMark = journal.size();
                                 if (searchTerm != null) {
                                     previousSearchTerm = searchTerm.toString();
                                 }
-                                searchTerm = new StringBuffer(buf.buffer);
+                                searchTerm = new StringBuffer(buf);
                                 state = State.SEARCH;
                                 if (searchTerm.length() > 0) {
                                     searchIndex = searchBackwards(searchTerm.toString());
@@ -2874,13 +4080,11 @@ public class ConsoleReader implements Closeable
                                 break;
 
                             case FORWARD_SEARCH_HISTORY:
-                                originalBuffer = new CursorBuffer();
-                                originalBuffer.write(buf.buffer);
-                                originalBuffer.cursor = buf.cursor;
+                                searchMark = journal.size();
                                 if (searchTerm != null) {
                                     previousSearchTerm = searchTerm.toString();
                                 }
-                                searchTerm = new StringBuffer(buf.buffer);
+                                searchTerm = new StringBuffer(buf);
                                 state = State.FORWARD_SEARCH;
                                 if (searchTerm.length() > 0) {
                                     searchIndex = searchForwards(searchTerm.toString());
@@ -2908,7 +4112,13 @@ public class ConsoleReader implements Closeable
                                 break;
 
                             case END_OF_LINE:
-                                success = moveToEnd();
+                                success = isMultiLine()
+                                    ? setCursorPosition(buf.getLineEnd(buf.getLineOf(buf.cursor)))
+                                    : moveToEnd();
+                                break;
+
+                            case INSERT_NEWLINE:
+                                putString("\n");
                                 break;
 
                             case TAB_INSERT:
@@ -2920,19 +4130,28 @@ public class ConsoleReader implements Closeable
                                 break;
 
                             case START_KBD_MACRO:
-                                recording = true;
+                                recordingMacro = new KeyboardMacro();
                                 break;
 
                             case END_KBD_MACRO:
-                                recording = false;
-                                macro = macro.substring(0, macro.length() - opBuffer.length());
+                                if (recordingMacro != null) {
+                                    recordingMacro.removeLast();
+                                    lastMacro = recordingMacro;
+                                    recordingMacro = null;
+                                }
                                 break;
 
                             case CALL_LAST_KBD_MACRO:
-                                for (int i = 0; i < macro.length(); i++) {
-                                    pushBackChar.push(macro.charAt(macro.length() - 1 - i));
+                                if (recordingMacro != null) {
+                                    // the bindings of the macro are recorded instead
+                                    recordingMacro.removeLast();
+                                }
+                                if (replayedMacro != null) {
+                                    success = false;
+                                } else if (lastMacro.size() > 0) {
+                                    replayedMacro = lastMacro;
+                                    macroStep = 0;
                                 }
-                                opBuffer.setLength(0);
                                 break;
 
                             case VI_EDITING_MODE:
@@ -2973,7 +4192,7 @@ public class ConsoleReader implements Closeable
                              * otherwise it is as if the user hit enter.
                              */
                             case VI_EOF_MAYBE:
-                                if (buf.buffer.length() == 0) {
+                                if (buf.length() == 0) {
                                     return null;
                                 }
                                 return accept();
@@ -3074,7 +4293,7 @@ public class ConsoleReader implements Closeable
                             case VI_YANK_TO:
                                 // Similar to delete-to, a "yy" yanks the whole line.
                                 if (state == State.VI_YANK_TO) {
-                                    yankBuffer = buf.buffer.toString();
+                                    yankBuffer = buf.toString();
                                     state = origState = State.NORMAL;
                                 }
                                 else {
@@ -3126,11 +4345,11 @@ public class ConsoleReader implements Closeable
                                 break;
                             
                             case VI_DELETE_TO_EOL:
-                                success = viDeleteTo(buf.cursor, buf.buffer.length(), false);
+                                success = viDeleteTo(buf.cursor, buf.length(), false);
                                 break;
                                 
                             case VI_CHANGE_TO_EOL:
-                                success = viDeleteTo(buf.cursor, buf.buffer.length(), true);
+                                success = viDeleteTo(buf.cursor, buf.length(), true);
                                 consoleKeys.setKeyMap(KeyMap.VI_INSERT);
                                 break;
 
@@ -3139,7 +4358,7 @@ public class ConsoleReader implements Closeable
                                 break;
 
                             case QUIT:
-                                getCursorBuffer().clear();
+                                buf.clear();
                                 return accept();
 
                             case QUOTED_INSERT:
@@ -3186,7 +4405,6 @@ public class ConsoleReader implements Closeable
                         }
 
                         if (state != State.SEARCH && state != State.FORWARD_SEARCH) {
-                            originalBuffer = null;
                             previousSearchTerm = "";
                             searchTerm = null;
                             searchIndex = -1;
@@ -3198,15 +4416,30 @@ public class ConsoleReader implements Closeable
                 }
                 opBuffer.setLength(0);
 
-                flush();
+                // the line is drawn once the keys of a macro have all been executed
+                if (replayedMacro == null && pushBackChar.isEmpty()) {
+                    refreshDisplay();
+                    out.endFrame();
+                }
             }
         }
         finally {
-            if (!terminal.isSupported()) {
-                afterReadLine();
+            editing = false;
+            segmentedPrompt = null;
+            unlockEdit();
+            try {
+                out.endFrame();
+            } finally {
+                if (!terminal.isSupported()) {
+                    afterReadLine();
+                }
+                if (handleUserInterrupt) {
+                    terminal.enableInterruptCharacter();
+                }
             }
-            if (handleUserInterrupt) {
-                terminal.enableInterruptCharacter();
+            if (asyncOut != null && !asyncOut.drain()) {
+                // the caller may write to the terminal by other means
+                Log.debug("The output hasn't been written in time");
             }
         }
     }
@@ -3226,14 +4459,14 @@ public class ConsoleReader implements Closeable
             } else if (i == '\n') {
                 // ignore
             } else {
-                buf.buffer.append((char) i);
+                buf.write((char) i);
             }
         }
 
         while (true) {
             int i = readCharacter();
 
-            if (i == -1 && buf.buffer.length() == 0) {
+            if (i == -1 && buf.length() == 0) {
               return null;
             }
 
@@ -3243,7 +4476,7 @@ public class ConsoleReader implements Closeable
                 skipLF = true;
                 return finishBuffer();
             } else {
-                buf.buffer.append((char) i);
+                buf.write((char) i);
             }
         }
     }
@@ -3303,7 +4536,7 @@ public class ConsoleReader implements Closeable
         }
 
         List<CharSequence> candidates = new LinkedList<CharSequence>();
-        String bufstr = buf.buffer.toString();
+        String bufstr = buf.toString();
         int cursor = buf.cursor;
 
         int position = -1;
@@ -3324,7 +4557,7 @@ public class ConsoleReader implements Closeable
         }
 
         List<CharSequence> candidates = new LinkedList<CharSequence>();
-        String bufstr = buf.buffer.toString();
+        String bufstr = buf.toString();
         int cursor = buf.cursor;
 
         for (Completer comp : completers) {
@@ -3451,8 +4684,13 @@ public class ConsoleReader implements Closeable
 
     private int fmtPrint(final CharSequence buff, int start, int end, int cursorPos) throws IOException {
         checkNotNull(buff);
+        int previous = start > 0 ? Character.codePointBefore(buff, start) : -1;
         for (int i = start; i < end; i++) {
             char c = buff.charAt(i);
+            int ucs = c;
+            if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(buff.charAt(i + 1))) {
+                ucs = Character.toCodePoint(c, buff.charAt(i + 1));
+            }
             if (c == '\t') {
                 int nb = nextTabStop(cursorPos);
                 cursorPos += nb;
@@ -3464,12 +4702,17 @@ public class ConsoleReader implements Closeable
                 out.write((char) (c + '@'));
                 cursorPos += 2;
             } else {
-                int w = WCWidth.wcwidth(c);
-                if (w > 0) {
+                int w = WCWidth.wcwidth(previous, ucs);
+                if (w >= 0) {
+                    // zero width characters combine with the preceding one
                     out.write(c);
+                    if (ucs != c) {
+                        out.write(buff.charAt(++i));
+                    }
                     cursorPos += w;
                 }
             }
+            previous = ucs;
         }
         cursorOk = false;
         return cursorPos;
@@ -3479,7 +4722,10 @@ public class ConsoleReader implements Closeable
      * Output the specified string to the output stream (but not the buffer).
      */
     public void print(final CharSequence s) throws IOException {
-        rawPrint(s.toString());
+        checkNotNull(s);
+        refreshDisplay();
+        out.append(s);
+        cursorOk = false;
     }
 
     public void println(final CharSequence s) throws IOException {
@@ -3493,6 +4739,8 @@ public class ConsoleReader implements Closeable
      * Output a platform-dependant newline.
      */
     public void println() throws IOException {
+        // the next lines would be written over the status
+        hideStatus();
         rawPrint(LINE_SEPARATOR);
     }
 
@@ -3500,11 +4748,13 @@ public class ConsoleReader implements Closeable
      * Raw output printing
      */
     final void rawPrint(final int c) throws IOException {
+        refreshDisplay();
         out.write(c);
         cursorOk = false;
     }
 
     final void rawPrint(final String str) throws IOException {
+        refreshDisplay();
         out.write(str);
         cursorOk = false;
     }
@@ -3531,11 +4781,11 @@ public class ConsoleReader implements Closeable
      * @return true if successful
      */
     public boolean delete() throws IOException {
-        if (buf.cursor == buf.buffer.length()) {
+        if (buf.cursor == buf.length()) {
           return false;
         }
 
-        buf.buffer.delete(buf.cursor, buf.cursor + 1);
+        buf.delete(buf.cursor, buf.cursor + 1);
         drawBuffer(1);
 
         return true;
@@ -3548,7 +4798,7 @@ public class ConsoleReader implements Closeable
      */
     public boolean killLine() throws IOException {
         int cp = buf.cursor;
-        int len = buf.buffer.length();
+        int len = buf.length();
 
         if (cp >= len) {
             return false;
@@ -3556,14 +4806,12 @@ public class ConsoleReader implements Closeable
 
         int num = len - cp;
         int pos = getCursorPosition();
-        int width = wcwidth(buf.buffer, cp, len, pos);
+        int width = positionOf(len) - pos;
         clearAhead(width, pos);
 
-        char[] killed = new char[num];
-        buf.buffer.getChars(cp, (cp + num), killed, 0);
-        buf.buffer.delete(cp, (cp + num));
+        String copy = buf.substring(cp, len);
+        buf.delete(cp, len);
 
-        String copy = new String(killed);
         killRing.add(copy);
 
         return true;
@@ -3603,7 +4851,7 @@ public class ConsoleReader implements Closeable
      * Clear the screen by issuing the ANSI "clear screen" code.
      */
     public boolean clearScreen() throws IOException {
-        if (!tputs("clear_screen")) {
+        if (!tputs(Capability.clear_screen)) {
             println();
         }
         return true;
@@ -3614,7 +4862,7 @@ public class ConsoleReader implements Closeable
      */
     public void beep() throws IOException {
         if (bellEnabled) {
-            if (tputs("bell")) {
+            if (tputs(Capability.bell)) {
                 // need to flush so the console actually beeps
                 flush();
             }
@@ -3719,6 +4967,10 @@ public class ConsoleReader implements Closeable
 
     /**
      * Output the specified {@link Collection} in proper columns.
+     * <p/>
+     * The items are sorted down the columns, like <tt>ls</tt> does, unless the
+     * <tt>print-completions-horizontally</tt> inputrc variable is set.  Each page
+     * of rows is written to the terminal as soon as it is ready.
      */
     public void printColumns(final Collection<? extends CharSequence> items) throws IOException {
         if (items == null || items.isEmpty()) {
@@ -3728,15 +4980,38 @@ public class ConsoleReader implements Closeable
         int width = getTerminal().getWidth();
         int height = getTerminal().getHeight();
 
+        // measure each item only once
+        String[] texts = new String[items.size()];
+        int[] widths = new int[texts.length];
+        int count = 0;
         int maxWidth = 0;
         for (CharSequence item : items) {
-            // we use 0 here, as we don't really support tabulations inside candidates
-            int len = wcwidth(Ansi.stripAnsi(item.toString()), 0);
+            if (count == texts.length) {
+                break;
+            }
+            String text;
+            int len;
+            if (item instanceof AttributedString) {
+                text = ((AttributedString) item).toAnsi();
+                len = ((AttributedString) item).columnLength();
+            } else {
+                // NOTE: toString() is important here due to AnsiString being retarded
+                text = item.toString();
+                // we use 0 here, as we don't really support tabulations inside candidates
+                len = wcwidth(Ansi.stripAnsi(text), 0);
+            }
+            texts[count] = text;
+            widths[count++] = len;
             maxWidth = Math.max(maxWidth, len);
         }
         maxWidth = maxWidth + 3;
         Log.debug("Max width: ", maxWidth);
 
+        int columns = Math.max(1, width / maxWidth);
+        int rows = (count + columns - 1) / columns;
+        boolean horizontal = "on".equalsIgnoreCase(consoleKeys.getVariable("print-completions-horizontally"));
+
+        int pageSize = Math.max(1, height - 1);
         int showLines;
         if (isPaginationEnabled()) {
             showLines = height - 1; // page limit
@@ -3746,46 +5021,50 @@ public class ConsoleReader implements Closeable
         }
 
         StringBuilder buff = new StringBuilder();
-        int realLength = 0;
-        for (CharSequence item : items) {
-            if ((realLength + maxWidth) > width) {
-                rawPrintln(buff.toString());
-                buff.setLength(0);
-                realLength = 0;
-
-                if (--showLines == 0) {
-                    // Overflow
-                    print(resources.getString("DISPLAY_MORE"));
-                    flush();
-                    int c = readCharacter();
-                    if (c == '\r' || c == '\n') {
-                        // one step forward
-                        showLines = 1;
-                    }
-                    else if (c != 'q') {
-                        // page forward
-                        showLines = height - 1;
-                    }
-
-                    tputs("carriage_return");
-                    if (c == 'q') {
-                        // cancel
-                        break;
+        for (int row = 0; row < rows; row++) {
+            buff.setLength(0);
+            for (int column = 0; column < columns; column++) {
+                int index = horizontal ? row * columns + column : column * rows + row;
+                if (index >= count) {
+                    break;
+                }
+                if (buff.length() > 0) {
+                    int previous = horizontal ? index - 1 : index - rows;
+                    for (int i = widths[previous]; i < maxWidth; i++) {
+                        buff.append(' ');
                     }
                 }
+                buff.append(texts[index]);
             }
+            rawPrintln(buff.toString());
 
-            // NOTE: toString() is important here due to AnsiString being retarded
-            buff.append(item.toString());
-            int strippedItemLength = wcwidth(Ansi.stripAnsi(item.toString()), 0);
-            for (int i = 0; i < (maxWidth - strippedItemLength); i++) {
-                buff.append(' ');
+            if (row == rows - 1) {
+                break;
             }
-            realLength += maxWidth;
-        }
+            if (--showLines == 0) {
+                // Overflow
+                print(resources.getString("DISPLAY_MORE"));
+                flush();
+                int c = readCharacter();
+                if (c == '\r' || c == '\n') {
+                    // one step forward
+                    showLines = 1;
+                }
+                else if (c != 'q') {
+                    // page forward
+                    showLines = height - 1;
+                }
 
-        if (buff.length() > 0) {
-            rawPrintln(buff.toString());
+                tputs(Capability.carriage_return);
+                if (c == 'q') {
+                    // cancel
+                    break;
+                }
+            }
+            else if ((row + 1) % pageSize == 0) {
+                // don't hold back the rows already laid out
+                out.commit();
+            }
         }
     }
 
@@ -3849,13 +5128,32 @@ public class ConsoleReader implements Closeable
      *            -1 for end of line.
      * */
     public void resetPromptLine(String prompt, String buffer, int cursorDest) throws IOException {
+        if (display != null) {
+            // draw the new prompt over the old one and let the display
+            // rewrite everything after it
+            refreshDisplay();
+            display.moveToStart();
+            tputs(Capability.carriage_return);
+            setPrompt(prompt);
+            if (prompt != null) {
+                out.write(prompt);
+            }
+            display.reset(promptLen, terminal.getWidth());
+            buf.setLength(0);
+            buf.insert(0, buffer);
+            buf.cursor = cursorDest < 0 ? buffer.length() : cursorDest;
+            displayDirty = true;
+            flush();
+            return;
+        }
+
         // move cursor to end of line
         moveToEnd();
 
         // backspace all text, including prompt
-        buf.buffer.append(this.prompt);
         int promptLength = 0;
         if (this.prompt != null) {
+            buf.insert(buf.length(), this.prompt);
             promptLength = this.prompt.length();
         }
 
@@ -3891,7 +5189,7 @@ public class ConsoleReader implements Closeable
     public void restoreLine(String originalPrompt, int cursorDest) throws IOException {
         // TODO move cursor to matched string
         String prompt = lastLine(originalPrompt);
-        String buffer = buf.buffer.toString();
+        String buffer = buf.toString();
         resetPromptLine(prompt, buffer, cursorDest);
     }
 
@@ -3989,13 +5287,14 @@ public class ConsoleReader implements Closeable
 
     /**
      * Checks to see if the specified character is a delimiter. We consider a
-     * character a delimiter if it is anything but a letter or digit.
+     * character a delimiter if it is anything but a letter, a digit or one of
+     * the {@link #getWordCharacters() word characters}.
      *
      * @param c     The character to test
      * @return      True if it is a delimiter
      */
-    private static boolean isDelimiter(final char c) {
-        return !Character.isLetterOrDigit(c);
+    private boolean isDelimiter(final char c) {
+        return !tokens.isWordChar(c);
     }
 
     /**
@@ -4011,12 +5310,108 @@ public class ConsoleReader implements Closeable
         return Character.isWhitespace (c);
     }
 
-    private boolean tputs(String cap, Object... params) throws IOException {
-        String str = terminal.getStringCapability(cap);
-        if (str == null) {
+    /**
+     * The output operations used by the {@link Display}.
+     */
+    private final class DisplayScreen
+        implements Display.Screen
+    {
+        public void write(char[] chars, int off, int len) throws IOException {
+            out.write(chars, off, len);
+        }
+
+        public void moveCursor(int from, int to, CharSequence text) throws IOException {
+            moveCursorFromTo(from, to, text);
+        }
+
+        public void carriageReturn() throws IOException {
+            tputs(Capability.carriage_return);
+        }
+
+        public boolean clearToEndOfLine() throws IOException {
+            return tputs(Capability.clr_eol);
+        }
+
+        public boolean clearToEndOfScreen() throws IOException {
+            return tputs(Capability.clr_eos);
+        }
+
+        public void setStyle(int style) throws IOException {
+            tputs(Capability.exit_attribute_mode);
+            if ((style & AttributedString.BOLD) != 0) {
+                tputs(Capability.enter_bold_mode);
+            }
+            if ((style & AttributedString.FAINT) != 0) {
+                tputs(Capability.enter_dim_mode);
+            }
+            if ((style & AttributedString.ITALIC) != 0) {
+                tputs(Capability.enter_italics_mode);
+            }
+            if ((style & AttributedString.UNDERLINE) != 0) {
+                tputs(Capability.enter_underline_mode);
+            }
+            if ((style & AttributedString.BLINK) != 0) {
+                tputs(Capability.enter_blink_mode);
+            }
+            if ((style & AttributedString.INVERSE) != 0) {
+                tputs(Capability.enter_reverse_mode);
+            }
+            if ((style & AttributedString.FOREGROUND) != 0) {
+                tputs(Capability.set_a_foreground, (style >>> AttributedString.FOREGROUND_SHIFT) & AttributedString.COLOR_MASK);
+            }
+            if ((style & AttributedString.BACKGROUND) != 0) {
+                tputs(Capability.set_a_background, (style >>> AttributedString.BACKGROUND_SHIFT) & AttributedString.COLOR_MASK);
+            }
+        }
+
+        public boolean hasAutoMargin() {
+            return terminal.getBooleanCapability("auto_right_margin");
+        }
+
+        public boolean hasWeirdWrap() {
+            return terminal.hasWeirdWrap();
+        }
+    }
+
+    /**
+     * Returns the compiled program of a capability, or null if the terminal
+     * doesn't support it.  Programs are compiled on first use and cached
+     * until the terminal is initialized again.
+     */
+    private Curses.Program getCapability(Capability cap) {
+        int index = cap.ordinal();
+        if (!capabilitiesLoaded[index]) {
+            String str = terminal.getStringCapability(cap.name());
+            capabilities[index] = str != null ? Curses.compile(str) : null;
+            capabilitiesLoaded[index] = true;
+        }
+        return capabilities[index];
+    }
+
+    private void clearCapabilities() {
+        Arrays.fill(capabilities, null);
+        Arrays.fill(capabilitiesLoaded, false);
+    }
+
+    private boolean hasCapability(Capability cap) {
+        return getCapability(cap) != null;
+    }
+
+    private boolean tputs(Capability cap) throws IOException {
+        Curses.Program program = getCapability(cap);
+        if (program == null) {
+            return false;
+        }
+        program.tputs(out);
+        return true;
+    }
+
+    private boolean tputs(Capability cap, int param) throws IOException {
+        Curses.Program program = getCapability(cap);
+        if (program == null) {
             return false;
         }
-        Curses.tputs(out, str, params);
+        program.tputs(out, param);
         return true;
     }
 
@@ -11,29 +11,117 @@ package jline.console;
 import static jline.internal.Preconditions.checkNotNull;
 
 /**
- * A holder for a {@link StringBuilder} that also contains the current cursor position.
+ * A holder for the chars of the line being edited that also contains the current cursor position.
+ * <p/>
+ * The chars are kept in a gap buffer, so that an edit at the cursor doesn't
+ * shift the rest of the line, and the buffer is a {@link CharSequence}
+ * giving access to them without copying.  The {@link #buffer} field is a
+ * copy of them, kept for compatibility: it is updated with each edit unless
+ * the buffer isn't mirrored, see {@link #setMirrored(boolean)}.  If the
+ * {@link #buffer} is modified directly while it is up to date, the chars are
+ * taken from it when the buffer is next used; {@link #invalidate()} must be
+ * called unless its length has changed.
+ * <p/>
+ * The buffer also maintains an index of the display width of its content,
+ * so that the column of a position can be computed without scanning the
+ * whole buffer, and an index of the start of its lines.  The indexes are
+ * updated by the methods of this class.  Only the changes made by the
+ * methods of this class can be undone.
  *
  * @author <a href="mailto:mwp1@cornell.edu">Marc Prud'hommeaux</a>
  * @author <a href="mailto:jason@planet57.com">Jason Dillon</a>
  * @since 2.0
  */
 public class CursorBuffer
+    implements CharSequence
 {
     private boolean overTyping = false;
 
     public int cursor = 0;
 
+    /**
+     * A copy of the chars of the buffer.  The methods of this class give
+     * access to them faster, and whether the buffer is mirrored or not.
+     */
     public final StringBuilder buffer = new StringBuilder();
+
+    private final GapBuffer chars = new GapBuffer();
+
+    /** True if the {@link #buffer} field is updated with each edit. */
+    private boolean mirrored = true;
+
+    /** The length of the {@link #buffer} field when it was last updated, or -1 if it is out of date. */
+    private int mirrorLength = 0;
+
+    private EditJournal journal;
     
     public CursorBuffer copy () {
+        checkMirror();
         CursorBuffer that = new CursorBuffer();
         that.overTyping = this.overTyping;
+        that.insert(0, chars);
         that.cursor = this.cursor;
-        that.buffer.append (this.toString());
         
         return that;
     }
 
+    /**
+     * Record the edits of this buffer in the given journal.
+     */
+    void setJournal(final EditJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Set whether the {@link #buffer} field is updated with each edit, which
+     * is the default.  Otherwise it is updated when the buffer is mirrored
+     * again, and edits aren't slowed down by the copy.
+     */
+    void setMirrored(final boolean mirrored) {
+        checkMirror();
+        this.mirrored = mirrored;
+        if (mirrored && mirrorLength < 0) {
+            buffer.setLength(0);
+            buffer.append(chars);
+            mirrorLength = buffer.length();
+        }
+    }
+
+    boolean isMirrored() {
+        return mirrored;
+    }
+
+    /**
+     * Take the chars from the {@link #buffer} field if it has been modified
+     * directly.
+     */
+    private void checkMirror() {
+        if (mirrorLength >= 0 && mirrorLength != buffer.length()) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Take the chars from the {@link #buffer} field if it has been modified
+     * directly, even without changing its length.  Unlike {@link #invalidate()},
+     * the undo journal is kept when the field is unchanged.
+     */
+    void checkMirrorContent() {
+        if (mirrorLength < 0) {
+            return;
+        }
+        if (mirrorLength != buffer.length()) {
+            invalidate();
+            return;
+        }
+        for (int i = 0; i < mirrorLength; i++) {
+            if (buffer.charAt(i) != chars.charAt(i)) {
+                invalidate();
+                return;
+            }
+        }
+    }
+
     public boolean isOverTyping() {
         return overTyping;
     }
@@ -43,14 +131,41 @@ public class CursorBuffer
     }
 
     public int length() {
-        return buffer.length();
+        checkMirror();
+        return chars.length();
+    }
+
+    /**
+     * @since 2.15
+     */
+    public char charAt(final int index) {
+        checkMirror();
+        return chars.charAt(index);
+    }
+
+    /**
+     * Returns a copy of the chars between <code>start</code> (inclusive) and
+     * <code>end</code> (exclusive).
+     *
+     * @since 2.15
+     */
+    public String substring(final int start, final int end) {
+        checkMirror();
+        return chars.substring(start, end);
+    }
+
+    /**
+     * @since 2.15
+     */
+    public CharSequence subSequence(final int start, final int end) {
+        return substring(start, end);
     }
 
     public char nextChar() {
-        if (cursor == buffer.length()) {
+        if (cursor == length()) {
             return 0;
         } else {
-            return buffer.charAt(cursor);
+            return chars.charAt(cursor);
         }
     }
 
@@ -59,7 +174,7 @@ public class CursorBuffer
             return 0;
         }
 
-        return buffer.charAt(cursor - 1);
+        return charAt(cursor - 1);
     }
 
     /**
@@ -70,9 +185,14 @@ public class CursorBuffer
      * @param c the character to insert
      */
     public void write(final char c) {
-        buffer.insert(cursor++, c);
-        if (isOverTyping() && cursor < buffer.length()) {
-            buffer.deleteCharAt(cursor);
+        checkMirror();
+        chars.insert(cursor, c);
+        if (mirrored) {
+            buffer.insert(cursor, c);
+        }
+        inserted(cursor++, 1);
+        if (isOverTyping() && cursor < chars.length()) {
+            delete(cursor, cursor + 1);
         }
     }
 
@@ -81,27 +201,91 @@ public class CursorBuffer
      */
     public void write(final CharSequence str) {
         checkNotNull(str);
+        int len = str.length();
+        insert(cursor, str);
+
+        cursor += len;
 
-        if (buffer.length() == 0) {
-            buffer.append(str);
+        if (isOverTyping() && cursor < chars.length()) {
+            delete(cursor, Math.min(cursor + len, chars.length()));
         }
-        else {
-            buffer.insert(cursor, str);
+    }
+
+    /**
+     * Insert the specified chars at the given position, without moving the cursor.
+     */
+    public void insert(final int index, final CharSequence str) {
+        checkNotNull(str);
+        checkMirror();
+        chars.insert(index, str);
+        if (mirrored) {
+            buffer.insert(index, str);
         }
+        inserted(index, str.length());
+    }
 
-        cursor += str.length();
+    /**
+     * Remove the chars between <code>start</code> (inclusive) and
+     * <code>end</code> (exclusive), without moving the cursor.
+     */
+    public void delete(final int start, final int end) {
+        checkMirror();
+        if (journal != null) {
+            journal.deleting(start, end);
+        }
+        chars.delete(start, end);
+        if (mirrored) {
+            buffer.delete(start, end);
+        }
+        deleted(start, end - start);
+    }
 
-        if (isOverTyping() && cursor < buffer.length()) {
-            buffer.delete(cursor, cursor + str.length());
+    /**
+     * Replace the char at the given position.
+     */
+    public void setCharAt(final int index, final char c) {
+        checkMirror();
+        if (c == '\n' || chars.charAt(index) == '\n') {
+            linesLength = -1;
+        }
+        if (journal != null) {
+            // recorded as the deletion of the old char and the insertion of the new one
+            journal.deleting(index, index + 1);
+        }
+        chars.setCharAt(index, c);
+        if (mirrored) {
+            buffer.setCharAt(index, c);
+        } else {
+            mirrorLength = -1;
+        }
+        if (journal != null) {
+            journal.inserted(index, 1);
+        }
+        damaged(index, index + 1);
+        changed(index, index + 1);
+    }
+
+    /**
+     * Truncate the buffer to the given length, moving the cursor if needed.
+     */
+    public void setLength(final int length) {
+        int len = length();
+        if (length < len) {
+            delete(length, len);
+        } else if (length > len) {
+            insert(len, new String(new char[length - len]));
+        }
+        if (cursor > length) {
+            cursor = length;
         }
     }
 
     public boolean clear() {
-        if (buffer.length() == 0) {
+        if (length() == 0) {
             return false;
         }
 
-        buffer.delete(0, buffer.length());
+        delete(0, chars.length());
         cursor = 0;
         return true;
     }
@@ -111,11 +295,656 @@ public class CursorBuffer
             return "";
         }
 
-        return buffer.substring(0, cursor);
+        return substring(0, cursor);
     }
 
     @Override
     public String toString() {
-        return buffer.toString();
+        checkMirror();
+        return chars.toString();
+    }
+
+    //
+    // Display width index
+    //
+
+    /**
+     * The buffer is split in chunks of about this many chars.  Each chunk
+     * records its length, the width of its chars other than tabs, and the
+     * number of tabs it contains; binary indexed trees over the chunks give
+     * the sums up to a chunk in logarithmic time.
+     */
+    private static final int CHUNK_SIZE = 256;
+
+    private int chunks;
+    private int[] lengths = new int[0];
+    private int[] widths = new int[0];
+    private int[] tabs = new int[0];
+    private int[] lengthTree = new int[1];
+    private int[] widthTree = new int[1];
+    private int[] tabTree = new int[1];
+
+    /** The length of the buffer when the index was last updated, or -1. */
+    private int indexedLength = -1;
+
+    /**
+     * Discard the indexes, after the {@link #buffer} field has been modified
+     * directly.  The chars are taken from it, unless it is out of date.
+     */
+    public void invalidate() {
+        if (mirrorLength >= 0) {
+            chars.delete(0, chars.length());
+            chars.insert(0, buffer);
+            mirrorLength = buffer.length();
+        }
+        if (journal != null) {
+            // the changes can't be undone
+            journal.clear();
+        }
+        indexedLength = -1;
+        linesLength = -1;
+        damaged(0, chars.length());
+    }
+
+    /**
+     * Returns the number of columns needed to display the chars before
+     * <code>index</code>.
+     *
+     * @param index the position in the buffer
+     * @param pos   the column at which the buffer starts
+     * @param width the width of the terminal, used to expand tabs
+     */
+    int columns(final int index, final int pos, final int width) {
+        checkIndex();
+        // find the chunk containing index
+        int chunk = 0;
+        int start = 0;
+        int mask = Integer.highestOneBit(Math.max(chunks, 1));
+        for (; mask > 0; mask >>= 1) {
+            int next = chunk + mask;
+            if (next <= chunks && start + lengthTree[next] <= index) {
+                chunk = next;
+                start += lengthTree[next];
+            }
+        }
+        if (chunk == chunks && chunks > 0) {
+            // index is the length of the buffer
+            chunk--;
+            start -= lengths[chunk];
+        }
+
+        int col;
+        if (sum(tabTree, chunk) == 0) {
+            col = pos + sum(widthTree, chunk);
+        } else {
+            // tab widths depend on their position
+            col = pos;
+            int offset = 0;
+            for (int i = 0; i < chunk; i++) {
+                col = tabs[i] == 0 ? col + widths[i] : scan(offset, offset + lengths[i], col, width);
+                offset += lengths[i];
+            }
+        }
+        return scan(start, index, col, width) - pos;
+    }
+
+    private int scan(final int start, final int end, int col, final int width) {
+        for (int i = start; i < end; i++) {
+            if (chars.charAt(i) == '\t') {
+                col += tabWidth(col, width);
+            } else {
+                col += charWidth(i);
+            }
+        }
+        return col;
+    }
+
+    /**
+     * Returns the number of columns used by a tab at the given column.
+     */
+    static int tabWidth(final int pos, final int width) {
+        int tabWidth = ConsoleReader.TAB_WIDTH;
+        int mod = (pos + tabWidth - 1) % tabWidth;
+        int npos = pos + tabWidth - mod;
+        return npos < width ? npos - pos : width - pos;
+    }
+
+    /**
+     * Returns the width of the char at the given position, other than a tab.
+     * The whole width of a surrogate pair is given to its high surrogate, and
+     * the code points joining the preceding one don't have any width.
+     */
+    private int charWidth(final int i) {
+        char c = chars.charAt(i);
+        int ucs = c;
+        if (Character.isHighSurrogate(c)) {
+            if (i + 1 < chars.length() && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                ucs = Character.toCodePoint(c, chars.charAt(i + 1));
+            }
+        } else if (Character.isLowSurrogate(c)) {
+            if (i > 0 && Character.isHighSurrogate(chars.charAt(i - 1))) {
+                return 0;
+            }
+        }
+        if (ucs < 32) {
+            return 2;
+        }
+        int previous = i > 0 ? Character.codePointBefore(chars, i) : -1;
+        int w = WCWidth.wcwidth(previous, ucs);
+        return w > 0 ? w : 0;
+    }
+
+    private void checkIndex() {
+        checkMirror();
+        if (indexedLength != chars.length()) {
+            rebuild();
+        }
+    }
+
+    private void rebuild() {
+        int length = chars.length();
+        chunks = 0;
+        ensureChunks(length / CHUNK_SIZE + 1);
+        for (int start = 0; start < length || chunks == 0; start += CHUNK_SIZE) {
+            lengths[chunks] = Math.min(CHUNK_SIZE, length - start);
+            measure(chunks++, start);
+        }
+        rebuildTrees();
+        indexedLength = length;
+    }
+
+    /**
+     * Compute the width and tab count of a chunk starting at the given position.
+     */
+    private void measure(final int chunk, final int start) {
+        int w = 0;
+        int t = 0;
+        for (int i = start, end = start + lengths[chunk]; i < end; i++) {
+            if (chars.charAt(i) == '\t') {
+                t++;
+            } else {
+                w += charWidth(i);
+            }
+        }
+        widths[chunk] = w;
+        tabs[chunk] = t;
+    }
+
+    private void ensureChunks(final int n) {
+        if (lengths.length < n) {
+            int capacity = Math.max(n, lengths.length * 2);
+            lengths = grow(lengths, capacity);
+            widths = grow(widths, capacity);
+            tabs = grow(tabs, capacity);
+        }
+    }
+
+    private static int[] grow(final int[] array, final int capacity) {
+        int[] larger = new int[capacity];
+        System.arraycopy(array, 0, larger, 0, array.length);
+        return larger;
+    }
+
+    private void rebuildTrees() {
+        if (lengthTree.length < chunks + 1) {
+            int capacity = Math.max(chunks + 1, lengthTree.length * 2);
+            lengthTree = new int[capacity];
+            widthTree = new int[capacity];
+            tabTree = new int[capacity];
+        }
+        for (int i = 1; i <= chunks; i++) {
+            lengthTree[i] = lengths[i - 1];
+            widthTree[i] = widths[i - 1];
+            tabTree[i] = tabs[i - 1];
+        }
+        for (int i = 1; i <= chunks; i++) {
+            int parent = i + (i & -i);
+            if (parent <= chunks) {
+                lengthTree[parent] += lengthTree[i];
+                widthTree[parent] += widthTree[i];
+                tabTree[parent] += tabTree[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of the values of the chunks before the given one.
+     */
+    private static int sum(final int[] tree, final int chunk) {
+        int sum = 0;
+        for (int i = chunk; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    private void add(final int[] tree, final int chunk, final int delta) {
+        if (delta != 0) {
+            for (int i = chunk + 1; i <= chunks; i += i & -i) {
+                tree[i] += delta;
+            }
+        }
+    }
+
+    /**
+     * Returns the chunk containing the char at the given position, or the
+     * last chunk for the end of the buffer, and its start in
+     * <code>chunkStart</code>.
+     */
+    private int chunkAt(final int index) {
+        int chunk = 0;
+        int start = 0;
+        while (chunk < chunks - 1 && start + lengths[chunk] <= index) {
+            start += lengths[chunk++];
+        }
+        chunkStart = start;
+        return chunk;
+    }
+
+    private int chunkStart;
+
+    /**
+     * Re-measure the chunks containing the given range of chars.
+     */
+    private void remeasure(final int start, final int end) {
+        int chunk = chunkAt(start);
+        int offset = chunkStart;
+        do {
+            int w = widths[chunk];
+            int t = tabs[chunk];
+            measure(chunk, offset);
+            add(widthTree, chunk, widths[chunk] - w);
+            add(tabTree, chunk, tabs[chunk] - t);
+            offset += lengths[chunk++];
+        } while (chunk < chunks && offset < end);
+    }
+
+    private void changed(final int start, final int end) {
+        if (indexedLength != chars.length()) {
+            return;
+        }
+        // surrogate pairs may span the boundaries of the range
+        remeasure(Math.max(start - 1, 0), Math.min(end + 1, chars.length()));
+    }
+
+    private void inserted(final int index, final int len) {
+        mirrorLength = mirrored ? buffer.length() : -1;
+        if (journal != null) {
+            journal.inserted(index, len);
+        }
+        damageInserted(index, len);
+        linesInserted(index, len);
+        if (indexedLength != chars.length() - len) {
+            indexedLength = -1;
+            return;
+        }
+        indexedLength = chars.length();
+        int chunk = chunkAt(index);
+        lengths[chunk] += len;
+        if (lengths[chunk] > 2 * CHUNK_SIZE) {
+            // split the chunk in pieces of CHUNK_SIZE chars
+            int start = chunkStart;
+            int remaining = lengths[chunk];
+            int pieces = (remaining + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            ensureChunks(chunks + pieces - 1);
+            System.arraycopy(lengths, chunk + 1, lengths, chunk + pieces, chunks - chunk - 1);
+            System.arraycopy(widths, chunk + 1, widths, chunk + pieces, chunks - chunk - 1);
+            System.arraycopy(tabs, chunk + 1, tabs, chunk + pieces, chunks - chunk - 1);
+            chunks += pieces - 1;
+            for (int i = chunk; i < chunk + pieces; i++) {
+                lengths[i] = Math.min(CHUNK_SIZE, remaining);
+                remaining -= lengths[i];
+                measure(i, start);
+                start += lengths[i];
+            }
+            if (chunk + pieces < chunks) {
+                measure(chunk + pieces, start);
+            }
+            if (chunk > 0) {
+                measure(chunk - 1, chunkStart - lengths[chunk - 1]);
+            }
+            rebuildTrees();
+        } else {
+            add(lengthTree, chunk, len);
+            changed(index, index + len);
+        }
+    }
+
+    private void deleted(final int index, final int len) {
+        mirrorLength = mirrored ? buffer.length() : -1;
+        damageDeleted(index, len);
+        linesDeleted(index, len);
+        if (indexedLength != chars.length() + len) {
+            indexedLength = -1;
+            return;
+        }
+        indexedLength = chars.length();
+        if (len == 0) {
+            return;
+        }
+        int chunk = chunkAt(index);
+        int remaining = len;
+        int first = chunk;
+        boolean removed = false;
+        // the chars removed from the first chunk
+        int n = Math.min(remaining, chunkStart + lengths[chunk] - index);
+        lengths[chunk] -= n;
+        remaining -= n;
+        // the following chunks
+        while (remaining > 0) {
+            chunk++;
+            n = Math.min(remaining, lengths[chunk]);
+            lengths[chunk] -= n;
+            remaining -= n;
+        }
+        // drop the empty chunks
+        int to = first;
+        for (int i = first; i < chunks; i++) {
+            if (lengths[i] > 0) {
+                lengths[to] = lengths[i];
+                widths[to] = widths[i];
+                tabs[to] = tabs[i];
+                to++;
+            } else {
+                removed = true;
+            }
+        }
+        if (to == 0) {
+            lengths[0] = 0;
+            to = 1;
+        }
+        chunks = to;
+        if (removed || chunk != first) {
+            rebuildTrees();
+        } else {
+            add(lengthTree, first, -len);
+        }
+        if (chars.length() > 0) {
+            changed(index, index);
+        } else {
+            widths[0] = 0;
+            tabs[0] = 0;
+            rebuildTrees();
+        }
+    }
+
+    //
+    // Line index
+    //
+
+    /** The positions of the '\n' chars, in increasing order. */
+    private int[] newlines = new int[16];
+    private int newlineCount;
+
+    /** The length of the buffer when the line index was last updated, or -1. */
+    private int linesLength = -1;
+
+    /**
+     * Returns the number of lines of the buffer, separated by '\n' chars.
+     */
+    int getLineCount() {
+        checkLines();
+        return newlineCount + 1;
+    }
+
+    /**
+     * Returns the index of the first char of a line.
+     */
+    int getLineStart(final int line) {
+        checkLines();
+        return line == 0 ? 0 : newlines[line - 1] + 1;
+    }
+
+    /**
+     * Returns the index of the '\n' ending a line, or the length of the
+     * buffer for the last line.
+     */
+    int getLineEnd(final int line) {
+        checkLines();
+        return line < newlineCount ? newlines[line] : chars.length();
+    }
+
+    /**
+     * Returns the line containing the given index.  The index of a '\n'
+     * belongs to the line it ends.
+     */
+    int getLineOf(final int index) {
+        checkLines();
+        return newlinesBefore(index);
+    }
+
+    /**
+     * Returns the number of '\n' chars before the given index.
+     */
+    private int newlinesBefore(final int index) {
+        int low = 0;
+        int high = newlineCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (newlines[mid] < index) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void checkLines() {
+        checkMirror();
+        if (linesLength != chars.length()) {
+            newlineCount = 0;
+            for (int i = 0; i < chars.length(); i++) {
+                if (chars.charAt(i) == '\n') {
+                    addNewline(newlineCount, i);
+                }
+            }
+            linesLength = chars.length();
+        }
+    }
+
+    private void addNewline(final int pos, final int index) {
+        if (newlineCount == newlines.length) {
+            newlines = grow(newlines, newlineCount * 2);
+        }
+        System.arraycopy(newlines, pos, newlines, pos + 1, newlineCount - pos);
+        newlines[pos] = index;
+        newlineCount++;
+    }
+
+    private void linesInserted(final int index, final int len) {
+        if (linesLength != chars.length() - len) {
+            linesLength = -1;
+            return;
+        }
+        linesLength = chars.length();
+        int pos = newlinesBefore(index);
+        for (int i = pos; i < newlineCount; i++) {
+            newlines[i] += len;
+        }
+        for (int i = index; i < index + len; i++) {
+            if (chars.charAt(i) == '\n') {
+                addNewline(pos++, i);
+            }
+        }
+    }
+
+    private void linesDeleted(final int index, final int len) {
+        if (linesLength != chars.length() + len) {
+            linesLength = -1;
+            return;
+        }
+        linesLength = chars.length();
+        int pos = newlinesBefore(index);
+        int removed = newlinesBefore(index + len) - pos;
+        if (removed > 0) {
+            System.arraycopy(newlines, pos + removed, newlines, pos, newlineCount - pos - removed);
+            newlineCount -= removed;
+        }
+        for (int i = pos; i < newlineCount; i++) {
+            newlines[i] -= len;
+        }
+    }
+
+    //
+    // Damage tracking
+    //
+
+    private Damage[] trackers = new Damage[0];
+
+    /**
+     * Returns a new record of the changes of this buffer.  Each user of the
+     * changes has its own record, which it resets once it has taken them into
+     * account.
+     */
+    Damage track() {
+        Damage damage = new Damage();
+        Damage[] array = new Damage[trackers.length + 1];
+        System.arraycopy(trackers, 0, array, 0, trackers.length);
+        array[trackers.length] = damage;
+        trackers = array;
+        return damage;
+    }
+
+    /**
+     * Stop recording the changes for the given record.
+     */
+    void untrack(final Damage damage) {
+        for (int i = 0; i < trackers.length; i++) {
+            if (trackers[i] == damage) {
+                Damage[] array = new Damage[trackers.length - 1];
+                System.arraycopy(trackers, 0, array, 0, i);
+                System.arraycopy(trackers, i + 1, array, i, array.length - i);
+                trackers = array;
+                return;
+            }
+        }
+    }
+
+    private void damaged(final int start, final int end) {
+        for (Damage damage : trackers) {
+            damage.damaged(start, end);
+        }
+    }
+
+    private void damageInserted(final int index, final int len) {
+        for (Damage damage : trackers) {
+            damage.inserted(index, len);
+        }
+    }
+
+    private void damageDeleted(final int index, final int len) {
+        for (Damage damage : trackers) {
+            damage.deleted(index, len);
+        }
+    }
+
+    /**
+     * The range of chars changed since {@link #reset()} was called, in the
+     * current content of the buffer.  The chars after it are unchanged, only
+     * shifted by the difference of length.
+     */
+    final class Damage
+    {
+        private int start = 0;
+        private int end = Integer.MAX_VALUE;
+
+        /** The length of the buffer when the damage was reset. */
+        private int undamagedLength;
+
+        /** The length of the buffer expected from the changes recorded since. */
+        private int expectedLength;
+
+        private Damage() {
+            reset();
+            damaged(0, chars.length());
+        }
+
+        CursorBuffer getBuffer() {
+            return CursorBuffer.this;
+        }
+
+        /**
+         * Returns the index of the first char changed since the damage was
+         * reset, or the length of the buffer if there is none.
+         */
+        int getStart() {
+            check();
+            return Math.min(start, chars.length());
+        }
+
+        /**
+         * Returns the index after the last char changed since the damage was
+         * reset.  The chars from this index are those which were at
+         * <code>index - getLengthChange()</code> when it was reset.
+         */
+        int getEnd() {
+            check();
+            return Math.max(Math.min(end, chars.length()), getStart());
+        }
+
+        /**
+         * Returns the difference between the current length of the buffer
+         * and its length when the damage was reset.
+         */
+        int getLengthChange() {
+            return length() - undamagedLength;
+        }
+
+        boolean isDamaged() {
+            check();
+            return start <= end;
+        }
+
+        /**
+         * Forget about the changes, once they have been taken into account.
+         */
+        void reset() {
+            start = Integer.MAX_VALUE;
+            end = -1;
+            undamagedLength = length();
+            expectedLength = undamagedLength;
+        }
+
+        private void check() {
+            checkMirror();
+            if (expectedLength != chars.length()) {
+                // the buffer has been modified directly
+                damaged(0, chars.length());
+            }
+        }
+
+        private void damaged(final int from, final int to) {
+            expectedLength = chars.length();
+            start = Math.min(start, from);
+            end = Math.max(end, to);
+        }
+
+        private void inserted(final int index, final int len) {
+            if (expectedLength != chars.length() - len) {
+                damaged(0, chars.length());
+                return;
+            }
+            if (end > index) {
+                end += len;
+            }
+            damaged(index, index + len);
+        }
+
+        private void deleted(final int index, final int len) {
+            if (expectedLength != chars.length() + len) {
+                damaged(0, chars.length());
+                return;
+            }
+            if (end >= index + len) {
+                end -= len;
+            } else if (end > index) {
+                end = index;
+            }
+            if (start > index) {
+                start = Math.max(start - len, index);
+            }
+            damaged(index, index);
+        }
     }
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import jline.internal.Curses;
+import jline.internal.InfoCmp.Capability;
+
+/**
+ * Chooses the cheapest output moving the cursor between two positions of
+ * the edited line, in the manner of the ncurses <tt>mvcur</tt> function.
+ * <p/>
+ * The cost of a move is the number of characters sent to the terminal.  The
+ * candidates are the relative moves, one column at a time or parameterized,
+ * the absolute column address, a carriage return followed by a move to the
+ * right, and rewriting the characters already displayed on the way.
+ * Moves down still use newlines, so that the screen scrolls when the line
+ * reaches its bottom.
+ *
+ * @since 2.15
+ */
+abstract class CursorMotion
+{
+    private static final int UNAVAILABLE = Integer.MAX_VALUE / 4;
+
+    /**
+     * The candidate horizontal moves, by order of preference when their
+     * costs are equal.
+     */
+    private static final int STEP = 0;
+    private static final int PARM = 1;
+    private static final int TEXT = 2;
+    private static final int COLUMN = 3;
+    private static final int RETURN = 4;
+
+    private final CountingWriter counter = new CountingWriter();
+
+    /**
+     * Returns the compiled capability, or null if the terminal doesn't have it.
+     */
+    protected abstract Curses.Program getCapability(Capability cap);
+
+    /**
+     * Write the cheapest output moving the cursor.
+     *
+     * @param from  the current position, as <code>row * width + column</code>
+     * @param to    the target position
+     * @param width the width of the terminal
+     * @param text  the characters displayed from <code>from</code> to
+     *              <code>to</code>, which can be rewritten when moving right on
+     *              the same row, or null if they are unknown
+     */
+    public void move(final Writer out, final int from, final int to, final int width, final CharSequence text)
+        throws IOException
+    {
+        if (from == to) {
+            return;
+        }
+        int l0 = from / width;
+        int c0 = from % width;
+        int l1 = to / width;
+        int c1 = to % width;
+        CharSequence rewrite = text;
+        if (l0 > l1) {
+            int n = l0 - l1;
+            if (repeatCost(Capability.cursor_up, n) <= cost(Capability.parm_up_cursor, n)) {
+                repeat(out, Capability.cursor_up, n);
+            } else {
+                getCapability(Capability.parm_up_cursor).tputs(out, n);
+            }
+            rewrite = null;
+        } else if (l0 < l1) {
+            put(out, Capability.carriage_return);
+            for (int i = l0; i < l1; i++) {
+                out.write('\n');
+            }
+            c0 = 0;
+            rewrite = null;
+        }
+        if (c0 != c1) {
+            moveColumn(out, c0, c1, rewrite);
+        }
+    }
+
+    private void moveColumn(final Writer out, final int c0, final int c1, final CharSequence text)
+        throws IOException
+    {
+        int best = -1;
+        int bestCost = UNAVAILABLE;
+        for (int option = STEP; option <= RETURN; option++) {
+            int cost = cost(option, c0, c1, text);
+            if (cost < bestCost) {
+                best = option;
+                bestCost = cost;
+            }
+        }
+        boolean right = c1 > c0;
+        switch (best) {
+            case STEP:
+                repeat(out, right ? Capability.cursor_right : Capability.cursor_left, Math.abs(c1 - c0));
+                break;
+            case PARM:
+                getCapability(right ? Capability.parm_right_cursor : Capability.parm_left_cursor)
+                        .tputs(out, Math.abs(c1 - c0));
+                break;
+            case TEXT:
+                out.append(text);
+                break;
+            case COLUMN:
+                getCapability(Capability.column_address).tputs(out, c1);
+                break;
+            case RETURN:
+                put(out, Capability.carriage_return);
+                if (c1 > 0) {
+                    moveColumn(out, 0, c1, null);
+                }
+                break;
+            default:
+                // the terminal can't move the cursor
+                break;
+        }
+    }
+
+    private int cost(final int option, final int c0, final int c1, final CharSequence text) {
+        boolean right = c1 > c0;
+        int n = Math.abs(c1 - c0);
+        switch (option) {
+            case STEP:
+                return repeatCost(right ? Capability.cursor_right : Capability.cursor_left, n);
+            case PARM:
+                return cost(right ? Capability.parm_right_cursor : Capability.parm_left_cursor, n);
+            case TEXT:
+                return right && text != null && text.length() <= n ? text.length() : UNAVAILABLE;
+            case COLUMN:
+                return cost(Capability.column_address, c1);
+            case RETURN:
+                if (right) {
+                    return UNAVAILABLE;
+                }
+                int cr = cost(Capability.carriage_return);
+                return c1 == 0 ? cr : cr + Math.min(cost(STEP, 0, c1, null), cost(PARM, 0, c1, null));
+            default:
+                return UNAVAILABLE;
+        }
+    }
+
+    private int cost(final Capability cap) {
+        Curses.Program program = getCapability(cap);
+        if (program == null) {
+            return UNAVAILABLE;
+        }
+        char[] text = program.getText();
+        if (text != null) {
+            return text.length;
+        }
+        return measure(program, 0, false);
+    }
+
+    private int cost(final Capability cap, final int param) {
+        Curses.Program program = getCapability(cap);
+        if (program == null) {
+            return UNAVAILABLE;
+        }
+        return measure(program, param, true);
+    }
+
+    private int repeatCost(final Capability cap, final int n) {
+        int cost = cost(cap);
+        return cost == UNAVAILABLE ? UNAVAILABLE : (int) Math.min((long) cost * n, UNAVAILABLE);
+    }
+
+    private int measure(final Curses.Program program, final int param, final boolean hasParam) {
+        counter.count = 0;
+        try {
+            if (hasParam) {
+                program.tputs(counter, param);
+            } else {
+                program.tputs(counter);
+            }
+        } catch (IOException e) {
+            return UNAVAILABLE;
+        }
+        return counter.count;
+    }
+
+    private void put(final Writer out, final Capability cap) throws IOException {
+        Curses.Program program = getCapability(cap);
+        if (program != null) {
+            program.tputs(out);
+        }
+    }
+
+    private void repeat(final Writer out, final Capability cap, final int n) throws IOException {
+        Curses.Program program = getCapability(cap);
+        if (program != null) {
+            for (int i = 0; i < n; i++) {
+                program.tputs(out);
+            }
+        }
+    }
+
+    /**
+     * Counts the characters written to it.
+     */
+    private static final class CountingWriter
+        extends Writer
+    {
+        int count;
+
+        @Override
+        public void write(final int c) {
+            count++;
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(final String str, final int off, final int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
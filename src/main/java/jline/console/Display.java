@@ -0,0 +1,1019 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.io.IOException;
+
+/**
+ * A model of the part of the screen showing the line being edited.
+ * <p/>
+ * The display keeps the cells (characters and attributes) currently shown
+ * on the terminal, row by row.  Each update lays out the prompt and buffer
+ * into a new set of rows, and only the cells which differ are written.
+ * <p/>
+ * Positions are counted in cells from the beginning of the last line of the
+ * prompt, which is row 0.  The prompt itself is printed by the caller and is
+ * never rewritten by the display.
+ *
+ * @since 2.15
+ */
+class Display
+{
+    /**
+     * The output operations used by the display.
+     */
+    interface Screen
+    {
+        /**
+         * Write the given characters at the cursor position.
+         */
+        void write(char[] chars, int off, int len) throws IOException;
+
+        /**
+         * Move the cursor between two positions, expressed as
+         * <code>row * width + column</code>.  When moving right on a row, the
+         * characters displayed on the way are given if they can be written
+         * again, in the current style, instead of moving the cursor.
+         *
+         * @param text the characters displayed between the two positions, or null
+         */
+        void moveCursor(int from, int to, CharSequence text) throws IOException;
+
+        /**
+         * Move the cursor to the first column of the current row.
+         */
+        void carriageReturn() throws IOException;
+
+        /**
+         * @return false if the terminal can't clear to the end of the line
+         */
+        boolean clearToEndOfLine() throws IOException;
+
+        /**
+         * @return false if the terminal can't clear to the end of the screen
+         */
+        boolean clearToEndOfScreen() throws IOException;
+
+        void setStyle(int style) throws IOException;
+
+        /**
+         * @return true if the cursor moves to the next row after writing to
+         *         the last column
+         */
+        boolean hasAutoMargin();
+
+        /**
+         * @return true if the terminal delays that move until the next
+         *         character is written (the eat_newline_glitch)
+         */
+        boolean hasWeirdWrap();
+    }
+
+    /** A cell holding the right half of a double width character. */
+    private static final int WIDE_TAIL = -1;
+
+    /** A cell holding part of the prompt. */
+    private static final int PROMPT = -2;
+
+    /** A cell whose content is not known. */
+    private static final int UNKNOWN = -3;
+
+    private static final class Row
+    {
+        int[] cells = new int[80];
+        int[] styles = new int[80];
+        int length;
+
+        void ensureCapacity(int capacity) {
+            if (cells.length < capacity) {
+                int[] c = new int[capacity];
+                int[] s = new int[capacity];
+                System.arraycopy(cells, 0, c, 0, length);
+                System.arraycopy(styles, 0, s, 0, length);
+                cells = c;
+                styles = s;
+            }
+        }
+
+        void copyFrom(Row row) {
+            ensureCapacity(row.length);
+            System.arraycopy(row.cells, 0, cells, 0, row.length);
+            System.arraycopy(row.styles, 0, styles, 0, row.length);
+            length = row.length;
+        }
+    }
+
+    private final Screen screen;
+
+    private final char[] chars = new char[2];
+
+    private final StringBuilder text = new StringBuilder();
+
+    private Row[] current = new Row[0];
+    private int currentRows;
+
+    private Row[] next = new Row[0];
+    private int nextRows;
+
+    private int width;
+
+    private int cursorRow;
+    private int cursorCol;
+
+    /** The cursor is past the last column, waiting for the next character to wrap. */
+    private boolean pendingWrap;
+
+    private int style;
+
+    private int targetRow;
+    private int targetCol;
+
+    /** The prompt of the lines after the first one, null to display '\n' as a control character. */
+    private AttributedString secondaryPrompt;
+
+    private int promptLen;
+
+    /** The first row of each line of the buffer, as laid out in the current rows. */
+    private int[] lineRows = new int[16];
+    private int lines;
+
+    /** The line where the last call to layoutLines stopped. */
+    private int lastLine;
+
+    /**
+     * True if the current rows show the layout of the buffer as of the last
+     * reset of the damage, so that only the lines which have changed since
+     * have to be laid out again.
+     */
+    private boolean laidOut;
+    private CursorBuffer.Damage damage;
+
+    /** Show a window of the buffer on the row of the prompt instead of wrapping it. */
+    private boolean horizontalScroll;
+
+    /** The index of the first char shown when scrolling horizontally. */
+    private int scrollStart;
+
+    /** The lines displayed below the buffer, or null. */
+    private AttributedString status;
+
+    /** The first row of the status, in the current and in the next rows. */
+    private int statusRow;
+    private int statusStart;
+
+    Display(final Screen screen) {
+        this.screen = screen;
+    }
+
+    /**
+     * Forget about the screen content, when the cursor has been moved to the
+     * beginning of a new line and the prompt printed.
+     */
+    void clear(final int promptLen, final int width) {
+        currentRows = 0;
+        reset(promptLen, width);
+    }
+
+    /**
+     * Mark the content of the screen as unknown, keeping the number of rows
+     * used so far, after the prompt has been printed again from row 0.
+     */
+    void reset(final int promptLen, final int width) {
+        this.width = width;
+        forget(promptLen);
+        setCursor(promptLen);
+    }
+
+    private void forget(final int promptLen) {
+        laidOut = false;
+        int rows = Math.max(currentRows, promptLen / width + 1);
+        for (int r = 0; r < rows; r++) {
+            Row row = row(current, r);
+            row.ensureCapacity(width);
+            for (int c = 0; c < width; c++) {
+                row.cells[c] = r * width + c < promptLen ? PROMPT : UNKNOWN;
+                row.styles[c] = 0;
+            }
+            row.length = width;
+        }
+        currentRows = rows;
+        statusRow = rows;
+        style = 0;
+    }
+
+    /**
+     * Returns the cursor position, as <code>row * width + column</code>.
+     */
+    int getCursor() {
+        return cursorRow * width + cursorCol;
+    }
+
+    /**
+     * Some characters have been echoed by the terminal at the cursor position:
+     * forget about the content of those cells and move the cursor back.
+     */
+    void echoed(final int num) throws IOException {
+        laidOut = false;
+        resolvePendingWrap();
+        int pos = getCursor();
+        for (int i = 0; i < num; i++) {
+            int r = (pos + i) / width;
+            int c = (pos + i) % width;
+            if (r < currentRows && c < current[r].length) {
+                current[r].cells[c] = UNKNOWN;
+            }
+        }
+        screen.moveCursor(pos + num, pos, null);
+    }
+
+    /**
+     * Move the cursor to the beginning of row 0.
+     */
+    void moveToStart() throws IOException {
+        resolvePendingWrap();
+        screen.moveCursor(getCursor(), 0, null);
+        cursorRow = 0;
+        cursorCol = 0;
+    }
+
+    /**
+     * The prompt has been printed again from the beginning of row 0 with
+     * the same width, so that the rows of the buffer are still on the screen.
+     */
+    void promptPrinted() {
+        setCursor(promptLen);
+    }
+
+    /**
+     * The terminal has been resized.  When everything displayed fits on row 0
+     * at both widths, the terminal hasn't moved anything and false is
+     * returned.  Otherwise the cursor is moved to the beginning of row 0 and
+     * true is returned: the rows must be drawn again from there.
+     * <p/>
+     * Some terminals reflow the rows for the new width and others keep them
+     * as they are, so the cursor moves up by the smaller number of rows of
+     * both layouts, never above row 0.
+     *
+     * @param width the new width of the terminal
+     */
+    boolean resize(final int width) throws IOException {
+        if (width == this.width) {
+            return false;
+        }
+        laidOut = false;
+        if (currentRows <= 1 && !pendingWrap && cursorCol < width
+                && (currentRows == 0 || current[0].length < Math.min(width, this.width))) {
+            this.width = width;
+            return false;
+        }
+        int pos = pendingWrap ? getCursor() - 1 : getCursor();
+        int up = Math.min(cursorRow, pos / width);
+        screen.carriageReturn();
+        pendingWrap = false;
+        this.width = width;
+        screen.moveCursor(up * width, 0, null);
+        cursorRow = 0;
+        cursorCol = 0;
+        return true;
+    }
+
+    /**
+     * Set the prompt displayed at the beginning of the lines of the buffer
+     * after the first one, or null to display the '\n' chars of the buffer
+     * as control characters.
+     */
+    void setSecondaryPrompt(final AttributedString prompt) {
+        if (prompt == null ? secondaryPrompt != null : !prompt.equals(secondaryPrompt)) {
+            secondaryPrompt = prompt;
+            laidOut = false;
+        }
+    }
+
+    /**
+     * Set the lines displayed below the buffer, or null to display none.
+     * They are displayed by the next update, which only compares their rows
+     * with the screen if the buffer hasn't changed.
+     */
+    void setStatus(final AttributedString status) {
+        this.status = status;
+    }
+
+    /**
+     * Returns true if the rows of the status are on the screen.
+     */
+    boolean isStatusShown() {
+        return statusRow < currentRows;
+    }
+
+    /**
+     * Set whether the buffer is displayed on a single row, scrolling
+     * horizontally to keep the cursor visible, instead of wrapping on as
+     * many rows as needed.  The chars hidden before and after the window
+     * are marked with <code>'<'</code> and <code>'>'</code>, so that only
+     * about the width of the terminal is laid out and compared for each
+     * update, whatever the length of the buffer.  This has no effect on
+     * multi-line buffers.
+     */
+    void setHorizontalScroll(final boolean enabled) {
+        if (enabled != horizontalScroll) {
+            horizontalScroll = enabled;
+            scrollStart = 0;
+            laidOut = false;
+        }
+    }
+
+    /**
+     * Update the screen to show the given buffer after the prompt.
+     *
+     * @param promptLen the width of the last line of the prompt
+     * @param buffer    the buffer
+     * @param styles    the style of each char of the buffer, or null
+     * @param cursor    the position of the cursor in the buffer
+     * @param mask      the mask character, or null
+     * @param width     the width of the terminal
+     */
+    void update(final int promptLen, final CharSequence buffer, final int[] styles, final int cursor,
+                final Character mask, final int width) throws IOException {
+        if (resize(width)) {
+            // we don't know what the terminal shows
+            forget(promptLen);
+        }
+        layout(promptLen, buffer, styles, cursor, mask);
+        // the changes of the buffer are unknown
+        laidOut = false;
+        paint(0);
+    }
+
+    /**
+     * Update the screen to show the buffer after the prompt.  When the
+     * prompt, the width and the mask are the same as for the previous call
+     * and there are no styles, only the lines of the buffer which have
+     * changed since are laid out again, and only their rows are compared with
+     * the screen.  The rows below are only compared again when the number of
+     * rows of the changed lines is different.
+     *
+     * @param promptLen the width of the last line of the prompt
+     * @param buf       the buffer, and the cursor position
+     * @param styles    the style of each char of the buffer, or null
+     * @param mask      the mask character, or null
+     * @param width     the width of the terminal
+     */
+    void update(final int promptLen, final CursorBuffer buf, final int[] styles, final Character mask,
+                final int width) throws IOException {
+        if (damage == null || damage.getBuffer() != buf) {
+            if (damage != null) {
+                damage.getBuffer().untrack(damage);
+            }
+            damage = buf.track();
+            laidOut = false;
+        }
+        if (resize(width)) {
+            forget(promptLen);
+        }
+        if (!laidOut || promptLen != this.promptLen || styles != null || mask != null || isScrolling()) {
+            layout(promptLen, buf, styles, buf.cursor, mask);
+            damage.reset();
+            laidOut = styles == null && mask == null && !isScrolling();
+            paint(0);
+            return;
+        }
+
+        targetRow = -1;
+        if (!damage.isDamaged()) {
+            // only the cursor, or the status, may have changed
+            locate(buf);
+            nextRows = statusRow;
+            newRow(targetRow);
+            layoutStatus();
+            paint(statusStart);
+            return;
+        }
+        boolean multiLine = secondaryPrompt != null;
+        int newLines = multiLine ? buf.getLineCount() : 1;
+        int first = multiLine ? buf.getLineOf(damage.getStart()) : 0;
+        int last = multiLine ? buf.getLineOf(damage.getEnd()) : 0;
+        // the lines after the damaged ones are the same, shifted
+        int oldLast = last - (newLines - lines);
+        if (oldLast < first || oldLast >= lines) {
+            layout(promptLen, buf, null, buf.cursor, null);
+            damage.reset();
+            paint(0);
+            return;
+        }
+        int firstRow = lineRows[first];
+        int oldEnd = oldLast + 1 < lines ? lineRows[oldLast + 1] : statusRow;
+        ensureLines(newLines);
+        System.arraycopy(lineRows, oldLast + 1, lineRows, last + 1, lines - oldLast - 1);
+        lines = newLines;
+
+        nextRows = firstRow;
+        layoutLines(buf, null, buf.cursor, null, multiLine ? buf.getLineStart(first) : 0,
+                first, last, firstRow, true);
+        int shift = nextRows - oldEnd;
+        if (shift != 0) {
+            for (int l = last + 1; l < lines; l++) {
+                lineRows[l] += shift;
+            }
+            for (int r = oldEnd; r < statusRow; r++) {
+                newRow(r + shift).copyFrom(current[r]);
+            }
+        } else {
+            // the rows below are unchanged
+            nextRows = statusRow;
+        }
+        if (targetRow < 0) {
+            locate(buf);
+        }
+        newRow(targetRow);
+        layoutStatus();
+        damage.reset();
+        paint(firstRow, shift != 0 ? statusStart : oldEnd);
+    }
+
+    private void paint(final int from) throws IOException {
+        paint(from, nextRows);
+    }
+
+    /**
+     * Update the rows between <code>from</code> and <code>to</code>, the
+     * new rows and the rows of the status, clear the rows after the new
+     * ones, and move the cursor to its target.
+     */
+    private void paint(final int from, final int to) throws IOException {
+        for (int r = from; r < to; r++) {
+            updateRow(r);
+        }
+        for (int r = Math.max(to, Math.min(currentRows, statusStart)); r < nextRows; r++) {
+            updateRow(r);
+        }
+        statusRow = statusStart;
+        if (currentRows > nextRows) {
+            moveTo(nextRows, 0, false);
+            setStyle(0);
+            if (!screen.clearToEndOfScreen()) {
+                for (int r = nextRows; r < currentRows; r++) {
+                    moveTo(r, 0, false);
+                    clearRow(current[r], 0);
+                }
+            }
+            currentRows = nextRows;
+        }
+        moveTo(targetRow, targetCol, false);
+        setStyle(0);
+    }
+
+    /**
+     * Find the target position of the cursor, by measuring the line
+     * containing it.
+     */
+    private void locate(final CursorBuffer buf) {
+        int line = secondaryPrompt != null ? buf.getLineOf(buf.cursor) : 0;
+        int from = secondaryPrompt != null ? buf.getLineStart(line) : 0;
+        layoutLines(buf, null, buf.cursor, null, from, line, line, lineRows[line], false);
+    }
+
+    private void layout(final int promptLen, final CharSequence buffer, final int[] styles, final int cursor,
+                        final Character mask) {
+        this.promptLen = promptLen;
+        nextRows = 0;
+        int row = promptLen / width;
+        for (int r = 0; r < row; r++) {
+            Row prompt = newRow(r);
+            for (int c = 0; c < width; c++) {
+                prompt.cells[c] = PROMPT;
+                prompt.styles[c] = 0;
+            }
+            prompt.length = width;
+        }
+        targetRow = -1;
+        if (isScrolling() && layoutScrolled(buffer, styles, cursor, mask, row)) {
+            lines = 1;
+        } else {
+            layoutLines(buffer, styles, cursor, mask, 0, 0, Integer.MAX_VALUE, row, true);
+            lines = lastLine + 1;
+            newRow(targetRow);
+        }
+        layoutStatus();
+    }
+
+    /**
+     * Lay out the lines of the status after the rows of the buffer, each on
+     * its own row.
+     */
+    private void layoutStatus() {
+        statusStart = nextRows;
+        if (status == null) {
+            return;
+        }
+        int start = 0;
+        int len = status.length();
+        while (start <= len) {
+            int end = start;
+            while (end < len && status.charAt(end) != '\n') {
+                end++;
+            }
+            Row r = newRow(nextRows);
+            r.length = putString(r, 0, status, start, end);
+            start = end + 1;
+        }
+    }
+
+    private boolean isScrolling() {
+        return horizontalScroll && secondaryPrompt == null;
+    }
+
+    /**
+     * Lay out the window of the buffer shown on the last row of the prompt,
+     * moving it if the cursor would not be visible.  The last column is left
+     * empty, so that the terminal never wraps.
+     *
+     * @return false if there is not enough room after the prompt
+     */
+    private boolean layoutScrolled(final CharSequence buffer, final int[] styles, final int cursor,
+                                   final Character mask, final int row) {
+        int start = promptLen % width;
+        int limit = width - 1;
+        if (limit - start < 4) {
+            return false;
+        }
+        int len = buffer.length();
+        if (measure(buffer, 0, len, mask, start, limit) <= limit) {
+            scrollStart = 0;
+        } else if (scrollStart > cursor || scrollStart > len
+                || measure(buffer, scrollStart, cursor, mask, scrollStart > 0 ? start + 1 : start, limit - 3) > limit - 3) {
+            // the cursor, which may be on a double width char, and the marker
+            // after it are not visible: center the cursor in the window
+            int i = cursor;
+            int cells = 0;
+            int half = (limit - start - 3) / 2;
+            while (i > 0) {
+                int cp = Character.codePointBefore(buffer, i);
+                cells += cp == '\t' ? ConsoleReader.TAB_WIDTH : charWidth(cp, -1, 0, mask);
+                if (cells > half) {
+                    break;
+                }
+                i -= Character.charCount(cp);
+            }
+            scrollStart = i;
+        }
+
+        Row r = newRow(row);
+        int col = startLine(0, row, true);
+        if (scrollStart > 0) {
+            r.cells[col] = '<';
+            r.styles[col++] = 0;
+        }
+        int previous = -1;
+        for (int i = scrollStart; i < len; i++) {
+            int cp = Character.codePointAt(buffer, i);
+            int index = i;
+            if (Character.isSupplementaryCodePoint(cp)) {
+                i++;
+            }
+            int w = charWidth(cp, previous, col, mask);
+            previous = cp;
+            if (col + w > limit || col + w == limit && i + 1 < len) {
+                // the rest is hidden
+                while (col < limit - 1) {
+                    r.cells[col] = ' ';
+                    r.styles[col++] = 0;
+                }
+                r.cells[col] = '>';
+                r.styles[col++] = 0;
+                break;
+            }
+            if (index == cursor) {
+                targetRow = row;
+                targetCol = col;
+            }
+            col = putChar(r, col, mask != null ? mask : cp, w, styles != null ? styles[index] : 0);
+        }
+        r.length = col;
+        if (targetRow < 0) {
+            targetRow = row;
+            targetCol = Math.min(col, limit);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the column after the given chars, or a column after
+     * <code>max</code> as soon as it is reached.
+     */
+    private int measure(final CharSequence buffer, final int from, final int to, final Character mask,
+                        int col, final int max) {
+        int previous = -1;
+        for (int i = from; i < to && col <= max; ) {
+            int cp = Character.codePointAt(buffer, i);
+            col += charWidth(cp, previous, col, mask);
+            previous = cp;
+            i += Character.charCount(cp);
+        }
+        return col;
+    }
+
+    /**
+     * Returns the number of cells used by a char of the buffer displayed at
+     * the given column.
+     */
+    private int charWidth(final int cp, final int previous, final int col, final Character mask) {
+        if (mask != null) {
+            return mask == ConsoleReader.NULL_MASK ? 0 : 1;
+        } else if (cp == '\t') {
+            return Math.min(ConsoleReader.TAB_WIDTH - col % ConsoleReader.TAB_WIDTH, width - col);
+        } else if (cp < 32) {
+            return 2;
+        } else {
+            return Math.max(WCWidth.wcwidth(previous, cp), 0);
+        }
+    }
+
+    /**
+     * Write a char of the buffer in the cells of a row.
+     *
+     * @return the column after the char
+     */
+    private static int putChar(final Row r, final int col, final int cp, final int w, final int st) {
+        if (w == 0) {
+            return col;
+        }
+        if (cp == '\t') {
+            for (int k = 0; k < w; k++) {
+                r.cells[col + k] = ' ';
+                r.styles[col + k] = st;
+            }
+        } else if (cp < 32) {
+            r.cells[col] = '^';
+            r.cells[col + 1] = cp + '@';
+            r.styles[col] = st;
+            r.styles[col + 1] = st;
+        } else {
+            r.cells[col] = cp;
+            r.styles[col] = st;
+            for (int k = 1; k < w; k++) {
+                r.cells[col + k] = WIDE_TAIL;
+                r.styles[col + k] = st;
+            }
+        }
+        r.length = col + w;
+        return col + w;
+    }
+
+    /**
+     * Lay out the chars of the buffer from the beginning of line
+     * <code>line</code>, at index <code>from</code> and row <code>row</code>,
+     * to the end of line <code>last</code>.  The target of the cursor is set
+     * if it is in those lines.
+     *
+     * @param write false to only find the target of the cursor, without
+     *              changing the rows
+     */
+    private void layoutLines(final CharSequence buffer, final int[] styles, final int cursor, final Character mask,
+                             final int from, int line, final int last, int row, final boolean write) {
+        boolean multiLine = secondaryPrompt != null;
+        if (write) {
+            setLineRow(line, row);
+        }
+        int col = startLine(line, row, write);
+        int len = buffer.length();
+        int previous = -1;
+        // the cursor may be in a line before the ones laid out
+        boolean findCursor = cursor >= from;
+        for (int i = from; i < len; i++) {
+            int cp = Character.codePointAt(buffer, i);
+            int index = i;
+            if (Character.isSupplementaryCodePoint(cp)) {
+                i++;
+            }
+            if (cp == '\n' && multiLine) {
+                if (findCursor && index >= cursor && targetRow < 0) {
+                    targetRow = row;
+                    targetCol = col;
+                }
+                if (write) {
+                    newRow(row);
+                }
+                if (line == last) {
+                    lastLine = line;
+                    return;
+                }
+                row++;
+                line++;
+                if (write) {
+                    setLineRow(line, row);
+                }
+                col = startLine(line, row, write);
+                previous = -1;
+                continue;
+            }
+            int st = styles != null ? styles[index] : 0;
+            int w = charWidth(cp, previous, col, mask);
+            previous = cp;
+            if (mask != null) {
+                cp = mask;
+            }
+            if (col + w > width && w <= width) {
+                // characters are not split across rows
+                if (write) {
+                    Row r = newRow(row);
+                    while (col < width) {
+                        r.cells[col] = ' ';
+                        r.styles[col++] = 0;
+                    }
+                    r.length = width;
+                }
+                row++;
+                col = 0;
+            }
+            if (findCursor && index >= cursor && targetRow < 0) {
+                targetRow = row;
+                targetCol = col;
+            }
+            if (w == 0) {
+                continue;
+            }
+            if (write) {
+                putChar(newRow(row), col, cp, w, st);
+            }
+            col += w;
+            if (col >= width) {
+                row++;
+                col = 0;
+            }
+        }
+        if (findCursor && targetRow < 0) {
+            targetRow = row;
+            targetCol = col;
+        }
+        lastLine = line;
+    }
+
+    /**
+     * Lay out the beginning of a line: the end of the prompt for the first
+     * one, the secondary prompt for the others.
+     *
+     * @return the column of the first char of the line
+     */
+    private int startLine(final int line, final int row, final boolean write) {
+        if (line == 0) {
+            int col = promptLen % width;
+            if (write) {
+                Row r = newRow(row);
+                for (int c = 0; c < col; c++) {
+                    r.cells[c] = PROMPT;
+                    r.styles[c] = 0;
+                }
+                r.length = col;
+            }
+            return col;
+        }
+        Row r = write ? newRow(row) : null;
+        int col = putString(r, 0, secondaryPrompt, 0, secondaryPrompt.length());
+        if (r != null) {
+            r.length = col;
+        }
+        return col;
+    }
+
+    /**
+     * Write a string in the cells of a row, from the given column, stopping
+     * before the last column.  Control characters are skipped.
+     *
+     * @param r the row, or null to only measure the string
+     * @return the column after the string
+     */
+    private int putString(final Row r, int col, final AttributedString str, final int start, final int end) {
+        int previous = -1;
+        for (int i = start; i < end; ) {
+            int cp = Character.codePointAt(str, i);
+            int w = cp < 32 ? 0 : Math.max(WCWidth.wcwidth(previous, cp), 0);
+            previous = cp;
+            if (col + w >= width) {
+                break;
+            }
+            if (r != null && w > 0) {
+                r.cells[col] = cp;
+                r.styles[col] = str.styleAt(i);
+                for (int k = 1; k < w; k++) {
+                    r.cells[col + k] = WIDE_TAIL;
+                    r.styles[col + k] = r.styles[col];
+                }
+            }
+            col += w;
+            i += Character.charCount(cp);
+        }
+        return col;
+    }
+
+    private void setLineRow(final int line, final int row) {
+        ensureLines(line + 1);
+        lineRows[line] = row;
+    }
+
+    private void ensureLines(final int n) {
+        if (lineRows.length < n) {
+            int[] array = new int[Math.max(n, lineRows.length * 2)];
+            System.arraycopy(lineRows, 0, array, 0, lineRows.length);
+            lineRows = array;
+        }
+    }
+
+    private Row newRow(final int r) {
+        while (nextRows <= r) {
+            Row row = row(next, nextRows++);
+            row.ensureCapacity(width);
+            row.length = 0;
+        }
+        return next[r];
+    }
+
+    private Row row(final Row[] rows, final int r) {
+        Row[] array = rows;
+        if (r >= array.length) {
+            array = new Row[Math.max(r + 1, array.length * 2)];
+            System.arraycopy(rows, 0, array, 0, rows.length);
+            if (rows == current) {
+                current = array;
+            } else {
+                next = array;
+            }
+        }
+        if (array[r] == null) {
+            array[r] = new Row();
+        }
+        return array[r];
+    }
+
+    private void updateRow(final int r) throws IOException {
+        Row target = next[r];
+        Row row = row(current, r);
+        if (r >= currentRows) {
+            row.length = 0;
+            currentRows = r + 1;
+        }
+        row.ensureCapacity(width);
+
+        int max = Math.max(row.length, target.length);
+        int first = -1;
+        int last = -1;
+        for (int c = 0; c < max; c++) {
+            if (!sameCell(row, target, c)) {
+                if (first < 0) {
+                    first = c;
+                }
+                last = c;
+            }
+        }
+        if (first < 0) {
+            return;
+        }
+        // don't write half of a double width character
+        while (first > 0 && (cell(target, first) == WIDE_TAIL || cell(row, first) == WIDE_TAIL)) {
+            first--;
+        }
+        int end = Math.min(last + 1, target.length);
+        while (end < target.length && (cell(target, end) == WIDE_TAIL || cell(row, end) == WIDE_TAIL)) {
+            end++;
+        }
+        if (first < end) {
+            moveTo(r, first, true);
+            for (int c = first; c < end; c++) {
+                int cp = target.cells[c];
+                if (cp == WIDE_TAIL || cp == PROMPT) {
+                    continue;
+                }
+                setStyle(target.styles[c]);
+                int n = Character.toChars(cp, chars, 0);
+                screen.write(chars, 0, n);
+                int w = 1;
+                while (c + w < end && target.cells[c + w] == WIDE_TAIL) {
+                    w++;
+                }
+                advance(w);
+            }
+        }
+        if (row.length > target.length) {
+            moveTo(r, target.length, false);
+            setStyle(0);
+            clearRow(row, target.length);
+        }
+        row.copyFrom(target);
+    }
+
+    private void clearRow(final Row row, final int from) throws IOException {
+        if (!screen.clearToEndOfLine()) {
+            int len = row.length - from;
+            for (int i = 0; i < len; i++) {
+                chars[0] = ' ';
+                screen.write(chars, 0, 1);
+                advance(1);
+            }
+        }
+        row.length = from;
+    }
+
+    private static int cell(final Row row, final int c) {
+        return c < row.length ? row.cells[c] : ' ';
+    }
+
+    private static boolean sameCell(final Row row, final Row target, final int c) {
+        if (c >= row.length || c >= target.length) {
+            // empty cells only match empty cells
+            return c >= row.length && c >= target.length;
+        }
+        int cp = target.cells[c];
+        if (cp == PROMPT) {
+            return true;
+        }
+        return row.cells[c] == cp && row.styles[c] == target.styles[c];
+    }
+
+    private void setStyle(final int style) throws IOException {
+        if (this.style != style) {
+            screen.setStyle(style);
+            this.style = style;
+        }
+    }
+
+    private void setCursor(final int pos) {
+        cursorRow = pos / width;
+        cursorCol = pos % width;
+        pendingWrap = false;
+        if (pos > 0 && cursorCol == 0) {
+            if (!screen.hasAutoMargin()) {
+                cursorRow--;
+                cursorCol = width - 1;
+            } else if (screen.hasWeirdWrap()) {
+                cursorRow--;
+                cursorCol = width;
+                pendingWrap = true;
+            }
+        }
+    }
+
+    /**
+     * Update the cursor after writing <code>w</code> cells.
+     */
+    private void advance(final int w) {
+        setCursor(getCursor() + w);
+    }
+
+    private void resolvePendingWrap() throws IOException {
+        if (pendingWrap) {
+            // a carriage return leaves the cursor on the same row
+            screen.carriageReturn();
+            cursorCol = 0;
+            pendingWrap = false;
+        }
+    }
+
+    private void moveTo(final int row, final int col, final boolean write) throws IOException {
+        if (pendingWrap && write && row == cursorRow + 1 && col == 0) {
+            // the next character will wrap to the expected position
+            cursorRow = row;
+            cursorCol = 0;
+            pendingWrap = false;
+            return;
+        }
+        resolvePendingWrap();
+        int from = getCursor();
+        int to = row * width + col;
+        if (from != to) {
+            screen.moveCursor(from, to, displayed(row, col));
+        }
+        cursorRow = row;
+        cursorCol = col;
+    }
+
+    /**
+     * Returns the characters displayed on the cursor row from the cursor to
+     * the given column, or null if they can't be written again as they are.
+     */
+    private CharSequence displayed(final int row, final int col) {
+        if (row != cursorRow || col <= cursorCol || row >= currentRows) {
+            return null;
+        }
+        Row r = current[row];
+        if (col > r.length || (col < r.length && r.cells[col] == WIDE_TAIL)) {
+            return null;
+        }
+        text.setLength(0);
+        for (int c = cursorCol; c < col; c++) {
+            int cp = r.cells[c];
+            if (cp == WIDE_TAIL && c > cursorCol) {
+                continue;
+            }
+            if (cp < 0 || r.styles[c] != style) {
+                return null;
+            }
+            text.appendCodePoint(cp);
+        }
+        return text;
+    }
+}
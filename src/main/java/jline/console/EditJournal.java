@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The edits of a {@link CursorBuffer}, which can be undone and redone.
+ * <p/>
+ * Only the inserted and deleted chars are recorded, so the memory used is
+ * proportional to the edits rather than to the length of the buffer.  The
+ * edits are grouped, each group being undone at once: a group is closed
+ * by {@link #endGroup()}, which the reader calls before each command.
+ * <p/>
+ * The changes made to the {@link CursorBuffer#buffer} directly can't be
+ * undone: when one is detected, the journal is cleared.
+ *
+ * @since 2.15
+ */
+final class EditJournal
+{
+    /**
+     * Chars inserted or deleted at a position.
+     */
+    private static final class Edit
+    {
+        private final boolean insertion;
+        private int index;
+        private final StringBuilder text;
+
+        private Edit(final boolean insertion, final int index, final CharSequence text) {
+            this.insertion = insertion;
+            this.index = index;
+            this.text = new StringBuilder(text);
+        }
+    }
+
+    /**
+     * The edits undone at once, with the position of the cursor before and
+     * after them.
+     */
+    private static final class Group
+    {
+        private final List<Edit> edits = new ArrayList<Edit>(2);
+        private final int cursorBefore;
+        private int cursorAfter;
+
+        private Group(final int cursorBefore) {
+            this.cursorBefore = cursorBefore;
+        }
+    }
+
+    private final CursorBuffer buf;
+
+    private final List<Group> undoable = new ArrayList<Group>();
+    private final List<Group> redoable = new ArrayList<Group>();
+
+    /** The group receiving the edits, or null until the next edit. */
+    private Group current;
+
+    /** The position of the cursor when the last group was closed. */
+    private int mark;
+
+    /** The length of the buffer expected from the recorded edits. */
+    private int expectedLength;
+
+    /** True while edits are undone or redone, which must not be recorded. */
+    private boolean replaying;
+
+    EditJournal(final CursorBuffer buf) {
+        this.buf = buf;
+        buf.setJournal(this);
+        clear();
+    }
+
+    /**
+     * Forget all the edits.
+     */
+    void clear() {
+        undoable.clear();
+        redoable.clear();
+        current = null;
+        mark = buf.cursor;
+        expectedLength = buf.length();
+    }
+
+    /**
+     * Close the current group: the following edits are undone separately.
+     */
+    void endGroup() {
+        if (current != null) {
+            current.cursorAfter = buf.cursor;
+            undoable.add(current);
+            current = null;
+        }
+        mark = buf.cursor;
+    }
+
+    /**
+     * Returns the number of groups which can be undone, after closing the
+     * current one.
+     */
+    int size() {
+        endGroup();
+        return undoable.size();
+    }
+
+    /**
+     * Undo the last group of edits.
+     *
+     * @return false if there is nothing to undo
+     */
+    boolean undo() {
+        endGroup();
+        if (!check() || undoable.isEmpty()) {
+            return false;
+        }
+        Group group = undoable.remove(undoable.size() - 1);
+        undo(group);
+        redoable.add(group);
+        return true;
+    }
+
+    /**
+     * Redo the last group of edits undone, unless the buffer has been
+     * edited since.
+     *
+     * @return false if there is nothing to redo
+     */
+    boolean redo() {
+        endGroup();
+        if (!check() || redoable.isEmpty()) {
+            return false;
+        }
+        Group group = redoable.remove(redoable.size() - 1);
+        replaying = true;
+        try {
+            for (Edit edit : group.edits) {
+                if (edit.insertion) {
+                    buf.insert(edit.index, edit.text);
+                } else {
+                    buf.delete(edit.index, edit.index + edit.text.length());
+                }
+            }
+        } finally {
+            replaying = false;
+        }
+        undoable.add(group);
+        moveCursor(group.cursorAfter);
+        return true;
+    }
+
+    /**
+     * Undo all the edits, which can then be redone.
+     *
+     * @return false if there is nothing to undo
+     */
+    boolean revert() {
+        if (!undo()) {
+            return false;
+        }
+        while (undo()) {
+            // keep undoing
+        }
+        return true;
+    }
+
+    /**
+     * Undo the groups recorded after the given size, and forget them.
+     */
+    void rollback(final int size) {
+        endGroup();
+        if (!check()) {
+            return;
+        }
+        while (undoable.size() > size) {
+            undo(undoable.remove(undoable.size() - 1));
+        }
+        redoable.clear();
+    }
+
+    /**
+     * Forget the groups recorded after the given size, whose edits leave
+     * the buffer as it was.
+     */
+    void discard(final int size) {
+        endGroup();
+        if (undoable.size() > size) {
+            undoable.subList(size, undoable.size()).clear();
+        }
+    }
+
+    /**
+     * Merge the groups recorded after the given size, so that they are
+     * undone at once.
+     */
+    void merge(final int size) {
+        endGroup();
+        if (undoable.size() <= size + 1) {
+            return;
+        }
+        Group first = undoable.get(size);
+        for (int i = size + 1; i < undoable.size(); i++) {
+            first.edits.addAll(undoable.get(i).edits);
+            first.cursorAfter = undoable.get(i).cursorAfter;
+        }
+        undoable.subList(size + 1, undoable.size()).clear();
+    }
+
+    private void undo(final Group group) {
+        replaying = true;
+        try {
+            for (int i = group.edits.size() - 1; i >= 0; i--) {
+                Edit edit = group.edits.get(i);
+                if (edit.insertion) {
+                    buf.delete(edit.index, edit.index + edit.text.length());
+                } else {
+                    buf.insert(edit.index, edit.text);
+                }
+            }
+        } finally {
+            replaying = false;
+        }
+        moveCursor(group.cursorBefore);
+    }
+
+    private void moveCursor(final int cursor) {
+        buf.cursor = Math.min(cursor, buf.length());
+        expectedLength = buf.length();
+        mark = buf.cursor;
+    }
+
+    /**
+     * Clear the journal if the buffer has been changed without it.
+     */
+    private boolean check() {
+        if (expectedLength != buf.length()) {
+            clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Record chars just inserted into the buffer.
+     */
+    void inserted(final int index, final int len) {
+        if (replaying) {
+            return;
+        }
+        if (expectedLength != buf.length() - len) {
+            clear();
+            return;
+        }
+        expectedLength = buf.length();
+        if (len == 0) {
+            return;
+        }
+        CharSequence text = buf.subSequence(index, index + len);
+        Edit last = lastEdit();
+        if (last != null && last.insertion && index == last.index + last.text.length()) {
+            // typing
+            last.text.append(text);
+        } else {
+            current.edits.add(new Edit(true, index, text));
+        }
+    }
+
+    /**
+     * Record chars about to be deleted from the buffer.
+     */
+    void deleting(final int start, final int end) {
+        if (replaying) {
+            return;
+        }
+        if (expectedLength != buf.length()) {
+            clear();
+        }
+        expectedLength = buf.length() - (end - start);
+        if (start == end) {
+            return;
+        }
+        CharSequence text = buf.subSequence(start, end);
+        Edit last = lastEdit();
+        if (last != null && !last.insertion && end == last.index) {
+            // backspace
+            last.text.insert(0, text);
+            last.index = start;
+        } else if (last != null && !last.insertion && start == last.index) {
+            // delete
+            last.text.append(text);
+        } else {
+            current.edits.add(new Edit(false, start, text));
+        }
+    }
+
+    /**
+     * Returns the last edit of the current group, opening it if needed.
+     */
+    private Edit lastEdit() {
+        if (current == null) {
+            current = new Group(mark);
+            redoable.clear();
+            return null;
+        }
+        return current.edits.isEmpty() ? null : current.edits.get(current.edits.size() - 1);
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A {@link Writer} collecting the console output into a reusable buffer.
+ * <p/>
+ * While a frame is open, flushes are deferred: everything written for one
+ * edit operation reaches the terminal in a single write when the frame is
+ * ended, instead of one write per cursor move or printed character.
+ * Outside of a frame, {@link #flush()} behaves as usual, and large outputs
+ * are streamed in chunks as the buffer fills up.
+ * <p/>
+ * Large frames can be wrapped in synchronized update markers, which make
+ * the terminal hold the display until the whole frame has been received.
+ * <p/>
+ * When writing to an {@link OutputStream}, the characters are encoded into
+ * a reusable byte buffer, with dedicated encoders for UTF-8, US-ASCII and
+ * ISO-8859-1.
+ *
+ * @since 2.15
+ */
+class FrameWriter
+    extends Writer
+{
+    static final String BEGIN_SYNCHRONIZED_UPDATE = "\033[?2026h";
+
+    static final String END_SYNCHRONIZED_UPDATE = "\033[?2026l";
+
+    /**
+     * Frames shorter than this are written without synchronized update markers.
+     */
+    static final int SYNCHRONIZED_UPDATE_THRESHOLD = 256;
+
+    /**
+     * The size of the buffer above which the output is written without
+     * waiting for a flush, outside of a frame.
+     */
+    static final int CHUNK_SIZE = 8192;
+
+    /**
+     * The size of the buffer above which a frame is written in several parts.
+     */
+    static final int MAX_FRAME_SIZE = 1 << 20;
+
+    private static final int UTF_8 = 0;
+    private static final int SINGLE_BYTE = 1;
+    private static final int GENERIC = 2;
+
+    private final Writer out;
+
+    private final OutputStream stream;
+
+    private final int encoding;
+
+    /**
+     * The highest char encoded as itself by a single byte encoding.
+     */
+    private final char maxChar;
+
+    private final CharsetEncoder encoder;
+
+    private final byte[] bytes;
+
+    private char[] buffer = new char[1024];
+
+    private int count;
+
+    private boolean inFrame;
+
+    private boolean synchronizedUpdates;
+
+    /**
+     * The begin marker of a synchronized update has been written for the
+     * current frame.
+     */
+    private boolean inSynchronizedUpdate;
+
+    public FrameWriter(final Writer out) {
+        this.out = out;
+        this.stream = null;
+        this.encoding = GENERIC;
+        this.maxChar = 0;
+        this.encoder = null;
+        this.bytes = null;
+    }
+
+    public FrameWriter(final OutputStream out, final String charsetName) throws UnsupportedEncodingException {
+        Charset charset;
+        try {
+            charset = Charset.forName(charsetName);
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedEncodingException(charsetName);
+        }
+        this.out = null;
+        this.stream = out;
+        this.bytes = new byte[CHUNK_SIZE * 3];
+        String name = charset.name();
+        if ("UTF-8".equals(name)) {
+            this.encoding = UTF_8;
+            this.maxChar = 0;
+            this.encoder = null;
+        } else if ("US-ASCII".equals(name) || "ISO-8859-1".equals(name)) {
+            this.encoding = SINGLE_BYTE;
+            this.maxChar = "US-ASCII".equals(name) ? (char) 0x7f : (char) 0xff;
+            this.encoder = null;
+        } else {
+            this.encoding = GENERIC;
+            this.maxChar = 0;
+            this.encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    }
+
+    public void setSynchronizedUpdates(final boolean synchronizedUpdates) {
+        this.synchronizedUpdates = synchronizedUpdates;
+    }
+
+    public boolean isSynchronizedUpdates() {
+        return synchronizedUpdates;
+    }
+
+    /**
+     * Start collecting output for a frame.  Calling this method while a frame
+     * is already open has no effect.
+     */
+    public void beginFrame() {
+        synchronized (lock) {
+            inFrame = true;
+        }
+    }
+
+    /**
+     * End the current frame, writing and flushing its content.
+     */
+    public void endFrame() throws IOException {
+        synchronized (lock) {
+            inFrame = false;
+            commit();
+        }
+    }
+
+    public boolean isInFrame() {
+        synchronized (lock) {
+            return inFrame;
+        }
+    }
+
+    /**
+     * Write and flush the output collected so far, keeping the frame open.
+     * This must be called before blocking for input, so that the user sees
+     * the result of the previous operations.
+     */
+    public void commit() throws IOException {
+        synchronized (lock) {
+            if (count == 0 && !inSynchronizedUpdate) {
+                return;
+            }
+            boolean sync = synchronizedUpdates && (inSynchronizedUpdate || count >= SYNCHRONIZED_UPDATE_THRESHOLD);
+            if (sync && !inSynchronizedUpdate) {
+                output(BEGIN_SYNCHRONIZED_UPDATE);
+            }
+            drain(false);
+            if (sync) {
+                output(END_SYNCHRONIZED_UPDATE);
+                inSynchronizedUpdate = false;
+            }
+            if (buffer.length > CHUNK_SIZE) {
+                // don't keep the memory of a large frame
+                char[] smaller = new char[CHUNK_SIZE];
+                System.arraycopy(buffer, 0, smaller, 0, count);
+                buffer = smaller;
+            }
+            if (out != null) {
+                out.flush();
+            } else {
+                stream.flush();
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the buffer collecting the output.
+     */
+    int getCapacity() {
+        synchronized (lock) {
+            return buffer.length;
+        }
+    }
+
+    @Override
+    public void write(final int c) throws IOException {
+        synchronized (lock) {
+            if (count == buffer.length) {
+                reserve();
+            }
+            buffer[count++] = (char) c;
+        }
+    }
+
+    @Override
+    public void write(final char[] cbuf, int off, int len) throws IOException {
+        synchronized (lock) {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    reserve();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(cbuf, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) throws IOException {
+        append(str, off, off + len);
+    }
+
+    @Override
+    public Writer append(final CharSequence csq) throws IOException {
+        CharSequence str = csq != null ? csq : "null";
+        return append(str, 0, str.length());
+    }
+
+    /**
+     * Append the given chars, copying them in bulk from the usual character
+     * sequences, and in chunks for the large ones.
+     */
+    @Override
+    public Writer append(final CharSequence csq, int start, final int end) throws IOException {
+        CharSequence str = csq != null ? csq : "null";
+        synchronized (lock) {
+            while (start < end) {
+                if (count == buffer.length) {
+                    reserve();
+                }
+                int n = Math.min(end - start, buffer.length - count);
+                if (str instanceof String) {
+                    ((String) str).getChars(start, start + n, buffer, count);
+                } else if (str instanceof StringBuilder) {
+                    ((StringBuilder) str).getChars(start, start + n, buffer, count);
+                } else if (str instanceof StringBuffer) {
+                    ((StringBuffer) str).getChars(start, start + n, buffer, count);
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        buffer[count + i] = str.charAt(start + i);
+                    }
+                }
+                count += n;
+                start += n;
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            if (!inFrame) {
+                commit();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            inFrame = false;
+            commit();
+            drain(true);
+            if (out != null) {
+                out.close();
+            } else {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Make room in the full buffer, growing it up to the size allowed for a
+     * frame or for a chunk, or else writing its content.
+     */
+    private void reserve() throws IOException {
+        int max = inFrame ? MAX_FRAME_SIZE : CHUNK_SIZE;
+        if (buffer.length < max) {
+            char[] larger = new char[Math.min(buffer.length * 2, max)];
+            System.arraycopy(buffer, 0, larger, 0, count);
+            buffer = larger;
+        } else {
+            if (inFrame && synchronizedUpdates && !inSynchronizedUpdate) {
+                output(BEGIN_SYNCHRONIZED_UPDATE);
+                inSynchronizedUpdate = true;
+            }
+            drain(false);
+        }
+    }
+
+    /**
+     * Write the content of the buffer, without flushing.  A trailing high
+     * surrogate is kept in the buffer until its low surrogate is written,
+     * unless this is the end of the output.
+     */
+    private void drain(final boolean endOfInput) throws IOException {
+        int written = output(buffer, 0, count, endOfInput);
+        count -= written;
+        if (count > 0) {
+            System.arraycopy(buffer, written, buffer, 0, count);
+        }
+    }
+
+    private void output(final String str) throws IOException {
+        char[] chars = str.toCharArray();
+        output(chars, 0, chars.length, false);
+    }
+
+    /**
+     * Write or encode the given chars.
+     *
+     * @return the number of chars written
+     */
+    private int output(final char[] chars, final int off, final int len, final boolean endOfInput)
+        throws IOException
+    {
+        if (out != null) {
+            out.write(chars, off, len);
+            return len;
+        }
+        switch (encoding) {
+            case UTF_8:
+                return encodeUtf8(chars, off, len, endOfInput);
+            case SINGLE_BYTE:
+                return encodeSingleByte(chars, off, len, endOfInput);
+            default:
+                return encode(chars, off, len, endOfInput);
+        }
+    }
+
+    private int encodeUtf8(final char[] chars, final int off, final int len, final boolean endOfInput)
+        throws IOException
+    {
+        byte[] b = bytes;
+        // at most 3 bytes per char, a surrogate pair taking 4 bytes
+        int limit = b.length - 4;
+        int n = 0;
+        int i = off;
+        int end = off + len;
+        while (i < end) {
+            if (n >= limit) {
+                stream.write(b, 0, n);
+                n = 0;
+            }
+            char c = chars[i];
+            if (c < 0x80) {
+                b[n++] = (byte) c;
+                i++;
+            } else if (c < 0x800) {
+                b[n++] = (byte) (0xc0 | (c >> 6));
+                b[n++] = (byte) (0x80 | (c & 0x3f));
+                i++;
+            } else if (Character.isHighSurrogate(c)) {
+                if (i + 1 < end) {
+                    char low = chars[i + 1];
+                    if (Character.isLowSurrogate(low)) {
+                        int cp = Character.toCodePoint(c, low);
+                        b[n++] = (byte) (0xf0 | (cp >> 18));
+                        b[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                        b[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                        b[n++] = (byte) (0x80 | (cp & 0x3f));
+                        i += 2;
+                    } else {
+                        b[n++] = '?';
+                        i++;
+                    }
+                } else if (endOfInput) {
+                    b[n++] = '?';
+                    i++;
+                } else {
+                    // wait for the low surrogate
+                    break;
+                }
+            } else if (Character.isLowSurrogate(c)) {
+                b[n++] = '?';
+                i++;
+            } else {
+                b[n++] = (byte) (0xe0 | (c >> 12));
+                b[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[n++] = (byte) (0x80 | (c & 0x3f));
+                i++;
+            }
+        }
+        if (n > 0) {
+            stream.write(b, 0, n);
+        }
+        return i - off;
+    }
+
+    private int encodeSingleByte(final char[] chars, final int off, final int len, final boolean endOfInput)
+        throws IOException
+    {
+        byte[] b = bytes;
+        int n = 0;
+        int i = off;
+        int end = off + len;
+        while (i < end) {
+            if (n == b.length) {
+                stream.write(b, 0, n);
+                n = 0;
+            }
+            char c = chars[i];
+            if (c <= maxChar) {
+                b[n++] = (byte) c;
+            } else {
+                if (Character.isHighSurrogate(c)) {
+                    if (i + 1 == end && !endOfInput) {
+                        // wait for the low surrogate
+                        break;
+                    }
+                    if (i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+                        // a single replacement for the pair
+                        i++;
+                    }
+                }
+                b[n++] = '?';
+            }
+            i++;
+        }
+        if (n > 0) {
+            stream.write(b, 0, n);
+        }
+        return i - off;
+    }
+
+    private int encode(final char[] chars, final int off, final int len, final boolean endOfInput)
+        throws IOException
+    {
+        CharBuffer in = CharBuffer.wrap(chars, off, len);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (encoder.encode(in, buf, endOfInput).isOverflow()) {
+            stream.write(bytes, 0, buf.position());
+            buf.clear();
+        }
+        if (endOfInput) {
+            while (encoder.flush(buf).isOverflow()) {
+                stream.write(bytes, 0, buf.position());
+                buf.clear();
+            }
+            encoder.reset();
+        }
+        if (buf.position() > 0) {
+            stream.write(bytes, 0, buf.position());
+        }
+        return in.position() - off;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+/**
+ * The chars of a {@link CursorBuffer}, stored in an array with a gap at the
+ * position of the last edit.
+ * <p/>
+ * Inserting or deleting chars moves the gap to the edit, shifting only the
+ * chars between the previous edit and this one: edits at the cursor take a
+ * constant time, whatever the length of the buffer.
+ *
+ * @since 2.15
+ */
+final class GapBuffer
+    implements CharSequence
+{
+    private char[] text = new char[16];
+    private int gapStart = 0;
+    private int gapEnd = text.length;
+
+    public int length() {
+        return text.length - (gapEnd - gapStart);
+    }
+
+    public char charAt(final int index) {
+        if (index < 0 || index >= length()) {
+            throw new StringIndexOutOfBoundsException(index);
+        }
+        return text[index < gapStart ? index : index + gapEnd - gapStart];
+    }
+
+    public CharSequence subSequence(final int start, final int end) {
+        return substring(start, end);
+    }
+
+    String substring(final int start, final int end) {
+        checkRange(start, end);
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Copy the chars between <code>start</code> (inclusive) and
+     * <code>end</code> (exclusive) into the given array.
+     */
+    void getChars(int start, final int end, final char[] dst, int offset) {
+        checkRange(start, end);
+        if (start < gapStart) {
+            int n = Math.min(end, gapStart) - start;
+            System.arraycopy(text, start, dst, offset, n);
+            start += n;
+            offset += n;
+        }
+        if (start < end) {
+            System.arraycopy(text, start + gapEnd - gapStart, dst, offset, end - start);
+        }
+    }
+
+    void insert(final int index, final char c) {
+        checkRange(index, index);
+        moveGap(index);
+        ensureGap(1);
+        text[gapStart++] = c;
+    }
+
+    void insert(final int index, final CharSequence str) {
+        checkRange(index, index);
+        int len = str.length();
+        moveGap(index);
+        ensureGap(len);
+        if (str instanceof String) {
+            ((String) str).getChars(0, len, text, gapStart);
+        } else if (str instanceof GapBuffer) {
+            ((GapBuffer) str).getChars(0, len, text, gapStart);
+        } else {
+            for (int i = 0; i < len; i++) {
+                text[gapStart + i] = str.charAt(i);
+            }
+        }
+        gapStart += len;
+    }
+
+    void delete(final int start, final int end) {
+        checkRange(start, end);
+        moveGap(start);
+        gapEnd += end - start;
+    }
+
+    void setCharAt(final int index, final char c) {
+        if (index < 0 || index >= length()) {
+            throw new StringIndexOutOfBoundsException(index);
+        }
+        text[index < gapStart ? index : index + gapEnd - gapStart] = c;
+    }
+
+    @Override
+    public String toString() {
+        return substring(0, length());
+    }
+
+    private void checkRange(final int start, final int end) {
+        if (start < 0 || start > end || end > length()) {
+            throw new StringIndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length());
+        }
+    }
+
+    private void moveGap(final int index) {
+        if (index < gapStart) {
+            int n = gapStart - index;
+            System.arraycopy(text, index, text, gapEnd - n, n);
+            gapStart -= n;
+            gapEnd -= n;
+        } else if (index > gapStart) {
+            int n = index - gapStart;
+            System.arraycopy(text, gapEnd, text, gapStart, n);
+            gapStart += n;
+            gapEnd += n;
+        }
+    }
+
+    private void ensureGap(final int n) {
+        if (gapEnd - gapStart >= n) {
+            return;
+        }
+        int capacity = Math.max(text.length * 2, length() + n + 16);
+        char[] array = new char[capacity];
+        int tail = text.length - gapEnd;
+        System.arraycopy(text, 0, array, 0, gapStart);
+        System.arraycopy(text, gapEnd, array, capacity - tail, tail);
+        text = array;
+        gapEnd = capacity - tail;
+    }
+}
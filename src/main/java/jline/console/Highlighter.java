@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+/**
+ * Gives the style of the chars of the buffer edited by a {@link ConsoleReader}.
+ * <p/>
+ * The styles are cached between calls: after an edit, the highlighter is only
+ * given the range of chars which have changed, and the styles of the other
+ * chars computed by the previous calls, shifted after the changed range.  A
+ * lexer can restart from the beginning of the token preceding the range,
+ * and stop as soon as it finds the same tokens as before after the range.
+ * <p/>
+ * The styles are combinations of the attributes and colors defined in
+ * {@link AttributedString}.  They are displayed when the terminal is
+ * supported.
+ *
+ * @see ConsoleReader#setHighlighter(Highlighter)
+ * @since 2.15
+ */
+public interface Highlighter
+{
+    /**
+     * Update the styles of the buffer.
+     * <p/>
+     * This may be called from another thread than the one reading the line,
+     * see {@link ConsoleReader#setHighlighterExecutor(java.util.concurrent.Executor)}:
+     * the buffer and the styles are then copies, which are discarded if the
+     * buffer changes before the highlighter has returned.
+     *
+     * @param buffer the content of the buffer
+     * @param start  the index of the first char which has changed since the
+     *               previous call
+     * @param end    the index after the last char which has changed; the
+     *               styles of the chars from this index are those of the
+     *               previous call
+     * @param styles the style of each char of the buffer, which must be
+     *               updated at least between <code>start</code> and
+     *               <code>end</code>; the styles of the changed chars are 0
+     */
+    void highlight(CharSequence buffer, int start, int end, int[] styles);
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.util.Arrays;
+
+/**
+ * The styles given by a {@link Highlighter} to the chars of a buffer.
+ * <p/>
+ * The styles are kept between edits: the changes of the buffer are tracked
+ * by the {@link CursorBuffer}, the styles after a changed range are shifted
+ * and only the chars which have changed since the last highlighting are
+ * given to the highlighter.
+ *
+ * @since 2.15
+ */
+final class Highlighting
+{
+    private final Highlighter highlighter;
+
+    private int[] styles = new int[16];
+
+    /** The length of the buffer the styles are for. */
+    private int length;
+
+    /** The range of chars to highlight again, empty if start > end. */
+    private int pendingStart = Integer.MAX_VALUE;
+    private int pendingEnd = -1;
+
+    /** Incremented each time the buffer changes. */
+    private int version;
+
+    private CursorBuffer.Damage damage;
+
+    Highlighting(final Highlighter highlighter) {
+        this.highlighter = highlighter;
+    }
+
+    Highlighter getHighlighter() {
+        return highlighter;
+    }
+
+    /**
+     * Take the changes of the buffer into account, shifting the styles of the
+     * unchanged chars.
+     *
+     * @return true if the buffer has changed since the previous call
+     */
+    boolean update(final CursorBuffer buf) {
+        if (damage == null || damage.getBuffer() != buf) {
+            if (damage != null) {
+                damage.getBuffer().untrack(damage);
+            }
+            damage = buf.track();
+        }
+        if (!damage.isDamaged() && buf.length() == length) {
+            return false;
+        }
+        int len = buf.length();
+        int start = damage.getStart();
+        int end = damage.getEnd();
+        int delta = damage.getLengthChange();
+        if (length != len - delta) {
+            // the styles are for another content
+            start = 0;
+            end = len;
+            delta = len - length;
+        }
+        int[] target = styles;
+        if (len > styles.length) {
+            target = new int[Math.max(len, styles.length * 2)];
+            System.arraycopy(styles, 0, target, 0, start);
+        }
+        System.arraycopy(styles, end - delta, target, end, len - end);
+        Arrays.fill(target, start, end, 0);
+        styles = target;
+        length = len;
+
+        if (pendingStart > pendingEnd) {
+            pendingStart = start;
+            pendingEnd = end;
+        } else {
+            // the pending range may be followed by the changed one, or shifted after it
+            pendingEnd = Math.max(end, pendingEnd >= end - delta ? pendingEnd + delta : 0);
+            pendingStart = Math.min(pendingStart, start);
+        }
+        damage.reset();
+        version++;
+        return true;
+    }
+
+    /**
+     * Returns the styles of the chars, some of which may not be highlighted
+     * yet.
+     */
+    int[] getStyles() {
+        return styles;
+    }
+
+    /**
+     * Highlight the chars which have changed.
+     *
+     * @param buffer the buffer, as of the last call to {@link #update(CursorBuffer)}
+     * @return the styles of the chars
+     */
+    int[] highlight(final CharSequence buffer) {
+        if (pendingStart <= pendingEnd) {
+            highlighter.highlight(buffer, pendingStart, pendingEnd, styles);
+            pendingStart = Integer.MAX_VALUE;
+            pendingEnd = -1;
+        }
+        return styles;
+    }
+
+    /**
+     * Returns a job highlighting a copy of the buffer and of the styles in
+     * another thread, or null if nothing has changed.
+     *
+     * @param buffer the buffer, as of the last call to {@link #update(CursorBuffer)}
+     */
+    Job newJob(final CharSequence buffer) {
+        if (pendingStart > pendingEnd) {
+            return null;
+        }
+        int[] copy = new int[length];
+        System.arraycopy(styles, 0, copy, 0, length);
+        return new Job(buffer.toString(), pendingStart, pendingEnd, copy, version);
+    }
+
+    /**
+     * Use the styles computed by the job, unless the buffer has changed since
+     * it was created.
+     *
+     * @return true if the styles have been used
+     */
+    boolean apply(final Job job) {
+        if (job.owner() != this || job.version != version || !job.done) {
+            return false;
+        }
+        styles = job.styles;
+        pendingStart = Integer.MAX_VALUE;
+        pendingEnd = -1;
+        return true;
+    }
+
+    final class Job
+        implements Runnable
+    {
+        private final String text;
+        private final int start;
+        private final int end;
+        private final int[] styles;
+        private final int version;
+        private volatile boolean done;
+
+        private Job(final String text, final int start, final int end, final int[] styles, final int version) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            this.styles = styles;
+            this.version = version;
+        }
+
+        private Highlighting owner() {
+            return Highlighting.this;
+        }
+
+        public void run() {
+            highlighter.highlight(text, start, end, styles);
+            done = true;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A keyboard macro: the bindings decoded while it was recorded, with the
+ * keys they were bound to.
+ * <p/>
+ * The macro is replayed by executing the bindings again, without reading
+ * and decoding its keys.
+ *
+ * @since 2.15
+ */
+final class KeyboardMacro
+{
+    private final List<Object> bindings = new ArrayList<Object>();
+
+    /** The keys of all the bindings, one after the other. */
+    private final StringBuilder keys = new StringBuilder();
+
+    /** The end of the keys of each binding in {@link #keys}. */
+    private int[] ends = new int[16];
+
+    void add(final Object binding, final CharSequence bound) {
+        if (bindings.size() == ends.length) {
+            int[] array = new int[ends.length * 2];
+            System.arraycopy(ends, 0, array, 0, ends.length);
+            ends = array;
+        }
+        keys.append(bound);
+        ends[bindings.size()] = keys.length();
+        bindings.add(binding);
+    }
+
+    /**
+     * Remove the last binding, which ended or called a macro.
+     */
+    void removeLast() {
+        if (!bindings.isEmpty()) {
+            bindings.remove(bindings.size() - 1);
+            keys.setLength(bindings.isEmpty() ? 0 : ends[bindings.size() - 1]);
+        }
+    }
+
+    int size() {
+        return bindings.size();
+    }
+
+    Object getBinding(final int index) {
+        return bindings.get(index);
+    }
+
+    /**
+     * Append the keys of a binding to the given buffer.
+     */
+    void appendKeys(final int index, final StringBuilder sb) {
+        sb.append(keys, index == 0 ? 0 : ends[index - 1], ends[index]);
+    }
+}
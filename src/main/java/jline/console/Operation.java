@@ -158,4 +158,6 @@ public enum Operation {
     VI_PREVIOUS_HISTORY,
     VI_INSERT_COMMENT,
     VI_BEGINNING_OF_LINE_OR_ARG_DIGIT,
+    INSERT_NEWLINE,
+    REDO,
 }
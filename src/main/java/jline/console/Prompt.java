@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static jline.internal.Preconditions.checkNotNull;
+
+/**
+ * A prompt made of segments, some of which are computed in the background,
+ * such as the status of a repository.
+ * <p/>
+ * When a line is read with {@link ConsoleReader#readLine(Prompt)}, the
+ * prompt is displayed at once with a placeholder for each computed segment,
+ * and displayed again as the segments are computed, keeping the buffer
+ * being edited.  The segments may contain ANSI escape sequences.
+ *
+ * @since 2.15
+ */
+public final class Prompt
+{
+    static final class Segment
+    {
+        private final String placeholder;
+        private final Callable<String> value;
+        private volatile String text;
+
+        /** Incremented when the value is computed again, or no longer needed. */
+        private int generation;
+
+        private Segment(final String placeholder, final Callable<String> value) {
+            this.placeholder = placeholder;
+            this.value = value;
+            this.text = placeholder;
+        }
+
+        Callable<String> getValue() {
+            return value;
+        }
+
+        /**
+         * Display the placeholder until the value is computed again.
+         *
+         * @return the generation of the computation
+         */
+        synchronized int reset() {
+            text = placeholder;
+            return ++generation;
+        }
+
+        /**
+         * Ignore the values of the computations in progress.
+         */
+        synchronized void cancel() {
+            generation++;
+        }
+
+        /**
+         * Set the value computed, unless the computation has been cancelled.
+         *
+         * @return false if the computation has been cancelled
+         */
+        synchronized boolean setText(final String text, final int generation) {
+            if (generation != this.generation) {
+                return false;
+            }
+            this.text = text;
+            return true;
+        }
+    }
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * Append a segment which is always the same.
+     */
+    public Prompt append(final String text) {
+        segments.add(new Segment(checkNotNull(text), null));
+        return this;
+    }
+
+    /**
+     * Append a segment computed each time a line is read with this prompt.
+     *
+     * @param placeholder the text displayed until the value is computed
+     * @param value       computes the text of the segment, and may take a
+     *                    while; if it throws an exception, the placeholder
+     *                    is kept
+     */
+    public Prompt append(final String placeholder, final Callable<String> value) {
+        segments.add(new Segment(checkNotNull(placeholder), checkNotNull(value)));
+        return this;
+    }
+
+    List<Segment> getSegments() {
+        return segments;
+    }
+
+    /**
+     * Returns the prompt, with the segments computed so far.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Segment segment : segments) {
+            sb.append(segment.text);
+        }
+        return sb.toString();
+    }
+}
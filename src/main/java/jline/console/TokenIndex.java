@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+/**
+ * An index of the word boundaries and brackets of a {@link CursorBuffer}.
+ * <p/>
+ * The positions are kept sorted, so that the word or bracket around a
+ * position is found by a binary search.  The index is updated when it is
+ * used: the changes of the buffer are tracked with a
+ * {@link CursorBuffer.Damage}, the positions after the changed range are
+ * shifted and only the changed chars are scanned again.
+ *
+ * @since 2.15
+ */
+final class TokenIndex
+{
+    /**
+     * A sorted list of positions.
+     */
+    private static final class Positions
+    {
+        private int[] values = new int[16];
+        private int size;
+
+        /**
+         * Returns the index of the first position greater than or equal to
+         * the given one.
+         */
+        int lowerBound(final int pos) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] < pos) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void add(final int pos) {
+            if (size == values.length) {
+                int[] array = new int[size * 2];
+                System.arraycopy(values, 0, array, 0, size);
+                values = array;
+            }
+            values[size++] = pos;
+        }
+
+        /**
+         * Remove the positions in [from, to), and shift the following ones
+         * by delta.
+         *
+         * @return the index of the first position removed, where the new
+         *         positions of the range must be inserted
+         */
+        int remove(final int from, final int to, final int delta) {
+            int first = lowerBound(from);
+            int last = lowerBound(to);
+            System.arraycopy(values, last, values, first, size - last);
+            size -= last - first;
+            for (int i = first; i < size; i++) {
+                values[i] += delta;
+            }
+            return first;
+        }
+
+        /**
+         * Insert sorted positions at the given index.
+         */
+        void insert(final int index, final Positions positions) {
+            if (positions.size == 0) {
+                return;
+            }
+            if (size + positions.size > values.length) {
+                int[] array = new int[Math.max(size + positions.size, size * 2)];
+                System.arraycopy(values, 0, array, 0, size);
+                values = array;
+            }
+            System.arraycopy(values, index, values, index + positions.size, size - index);
+            System.arraycopy(positions.values, 0, values, index, positions.size);
+            size += positions.size;
+        }
+    }
+
+    private final CursorBuffer buf;
+
+    /** The chars other than letters and digits which are part of words. */
+    private String wordChars = "";
+
+    /**
+     * The positions where words start or end: the positions at even indexes
+     * are the starts, the ones at odd indexes are the ends.
+     */
+    private final Positions words = new Positions();
+
+    /** The positions of the brackets. */
+    private final Positions brackets = new Positions();
+
+    /** The positions found in the changed range. */
+    private final Positions scanned = new Positions();
+
+    private CursorBuffer.Damage damage;
+
+    /** The length of the buffer the positions are for, or -1. */
+    private int length = -1;
+
+    TokenIndex(final CursorBuffer buf) {
+        this.buf = buf;
+    }
+
+    String getWordChars() {
+        return wordChars;
+    }
+
+    void setWordChars(final String wordChars) {
+        if (!this.wordChars.equals(wordChars)) {
+            this.wordChars = wordChars;
+            length = -1;
+        }
+    }
+
+    boolean isWordChar(final char c) {
+        return Character.isLetterOrDigit(c) || wordChars.indexOf(c) >= 0;
+    }
+
+    /**
+     * Returns the start of the last word starting before the given position,
+     * or 0 if there is none.
+     */
+    int previousWordStart(final int pos) {
+        update();
+        int i = words.lowerBound(pos) - 1;
+        if ((i & 1) != 0) {
+            i--;
+        }
+        return i >= 0 ? words.values[i] : 0;
+    }
+
+    /**
+     * Returns the end of the first word ending after the given position, or
+     * the length of the buffer if there is none.
+     */
+    int nextWordEnd(final int pos) {
+        update();
+        int i = words.lowerBound(pos + 1);
+        if ((i & 1) == 0) {
+            i++;
+        }
+        return i < words.size ? words.values[i] : buf.length();
+    }
+
+    /**
+     * Returns the position of the bracket matching the one at the given
+     * position, or -1 if there is none.
+     */
+    int matchingBracket(final int pos) {
+        update();
+        int type = bracketType(buf.charAt(pos));
+        if (type == 0) {
+            return -1;
+        }
+        int move = (type < 0) ? -1 : 1;
+        int count = 1;
+        for (int i = brackets.lowerBound(pos) + move; i >= 0 && i < brackets.size; i += move) {
+            int curType = bracketType(buf.charAt(brackets.values[i]));
+            if (curType == type) {
+                ++count;
+            } else if (curType == -type && --count == 0) {
+                return brackets.values[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Given a character determines what type of bracket it is (paren,
+     * square, curly, or none).
+     * @param ch The character to check
+     * @return 1 is square, 2 curly, 3 parent, or zero for none.  The value
+     *   will be negated if it is the closing form of the bracket.
+     */
+    static int bracketType(final char ch) {
+        switch (ch) {
+            case '[': return  1;
+            case ']': return -1;
+            case '{': return  2;
+            case '}': return -2;
+            case '(': return  3;
+            case ')': return -3;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Take the changes of the buffer into account.
+     */
+    private void update() {
+        if (damage == null) {
+            damage = buf.track();
+        }
+        int len = buf.length();
+        if (!damage.isDamaged() && length == len) {
+            return;
+        }
+        int start = damage.getStart();
+        int end = damage.getEnd();
+        int delta = damage.getLengthChange();
+        if (length != len - delta) {
+            // the positions are for another content
+            words.size = 0;
+            brackets.size = 0;
+            start = 0;
+            end = len;
+            delta = 0;
+        }
+        // a word boundary depends on the chars on both sides of it
+        int index = words.remove(start, end - delta + 1, delta);
+        scanned.size = 0;
+        boolean word = start > 0 && isWordChar(buf.charAt(start - 1));
+        for (int i = start; i <= end; i++) {
+            boolean next = i < len && isWordChar(buf.charAt(i));
+            if (next != word) {
+                scanned.add(i);
+            }
+            word = next;
+        }
+        words.insert(index, scanned);
+
+        index = brackets.remove(start, end - delta, delta);
+        scanned.size = 0;
+        for (int i = start; i < end; i++) {
+            if (bracketType(buf.charAt(i)) != 0) {
+                scanned.add(i);
+            }
+        }
+        brackets.insert(index, scanned);
+
+        damage.reset();
+        length = len;
+    }
+}
@@ -8,6 +8,7 @@
  */
 package jline.console.completer;
 
+import jline.console.AttributedString;
 import jline.console.ConsoleReader;
 import jline.console.CursorBuffer;
 import jline.internal.Ansi;
@@ -16,6 +17,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
@@ -58,13 +60,13 @@ public class CandidateListCompletionHandler
     public boolean complete(final ConsoleReader reader, final List<CharSequence> candidates, final int pos) throws
         IOException
     {
-        CursorBuffer buf = reader.getCursorBuffer();
+        CursorBuffer buf = reader.getLineBuffer();
 
         // if there is only one completion, then fill in the buffer
         if (candidates.size() == 1) {
-            String value = Ansi.stripAnsi(candidates.get(0).toString());
+            String value = visibleText(candidates.get(0));
 
-            if (buf.cursor == buf.buffer.length()
+            if (buf.cursor == buf.length()
                     && printSpaceAfterFullCompletion
                     && !value.endsWith(" ")) {
                 value += " ";
@@ -95,7 +97,7 @@ public class CandidateListCompletionHandler
     public static void setBuffer(final ConsoleReader reader, final CharSequence value, final int offset) throws
         IOException
     {
-        while ((reader.getCursorBuffer().cursor > offset) && reader.backspace()) {
+        while ((reader.getLineBuffer().cursor > offset) && reader.backspace()) {
             // empty
         }
 
@@ -144,15 +146,7 @@ public class CandidateListCompletionHandler
 
         // copy the values and make them distinct, without otherwise affecting the ordering. Only do it if the sizes differ.
         if (distinct.size() != candidates.size()) {
-            Collection<CharSequence> copy = new ArrayList<CharSequence>();
-
-            for (CharSequence next : candidates) {
-                if (!copy.contains(next)) {
-                    copy.add(next);
-                }
-            }
-
-            candidates = copy;
+            candidates = new ArrayList<CharSequence>(new LinkedHashSet<CharSequence>(candidates));
         }
 
         reader.println();
@@ -177,10 +171,7 @@ public class CandidateListCompletionHandler
         String first = null;
         String[] strings = new String[candidates.size() - 1];
         for (int i = 0; i < candidates.size(); i++) {
-            String str = candidates.get(i).toString();
-            if (stripAnsi) {
-                str = Ansi.stripAnsi(str);
-            }
+            String str = stripAnsi ? visibleText(candidates.get(i)) : candidates.get(i).toString();
             if (first == null) {
                 first = str;
             } else {
@@ -202,6 +193,17 @@ public class CandidateListCompletionHandler
         return candidate.toString();
     }
 
+    /**
+     * Returns the text of a candidate without its ANSI sequences.  The text
+     * of an {@link AttributedString} has already been stripped.
+     */
+    private static String visibleText(final CharSequence candidate) {
+        if (candidate instanceof AttributedString) {
+            return candidate.toString();
+        }
+        return Ansi.stripAnsi(candidate.toString());
+    }
+
     /**
      * @return true is all the elements of <i>candidates</i> start with <i>starts</i>
      */
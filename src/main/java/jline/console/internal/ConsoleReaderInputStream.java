@@ -7,117 +7,143 @@
  * http://www.opensource.org/licenses/bsd-license.php
  */
 package jline.console.internal;
- 
+
 import jline.console.ConsoleReader;
- 
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.SequenceInputStream;
-import java.util.Enumeration;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 // FIXME: Clean up API and move to jline.console.runner package
 
 /**
  * An {@link InputStream} implementation that wraps a {@link ConsoleReader}.
  * It is useful for setting up the {@link System#in} for a generic console.
+ * <p/>
+ * Each line read from the console is encoded once, using the encoding of the
+ * console, into a reusable byte buffer which is then served to bulk reads.
+ * Reads never block past the end of the current line, so line oriented
+ * consumers (e.g. a {@link java.io.BufferedReader}) see the line as soon as
+ * it has been accepted.
  *
  * @author <a href="mailto:mwp1@cornell.edu">Marc Prud'hommeaux</a>
  * @since 2.7
  */
 class ConsoleReaderInputStream
-    extends SequenceInputStream
+    extends InputStream
 {
     private static InputStream systemIn = System.in;
- 
+
     public static void setIn() throws IOException {
         setIn(new ConsoleReader());
     }
- 
+
     public static void setIn(final ConsoleReader reader) {
         System.setIn(new ConsoleReaderInputStream(reader));
     }
- 
+
     /**
      * Restore the original {@link System#in} input stream.
      */
     public static void restoreIn() {
         System.setIn(systemIn);
     }
- 
+
+    private final ConsoleReader reader;
+
+    private final CharsetEncoder encoder;
+
+    private ByteBuffer bytes = ByteBuffer.allocate(256);
+
+    private boolean eof = false;
+
     public ConsoleReaderInputStream(final ConsoleReader reader) {
-        super(new ConsoleEnumeration(reader));
+        this.reader = reader;
+        this.encoder = Charset.forName(reader.getEncoding()).newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // nothing has been read yet
+        bytes.flip();
     }
- 
-    private static class ConsoleEnumeration
-        implements Enumeration<InputStream>
-    {
-        private final ConsoleReader reader;
-        private ConsoleLineInputStream next = null;
-        private ConsoleLineInputStream prev = null;
- 
-        public ConsoleEnumeration(final ConsoleReader reader) {
-            this.reader = reader;
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
         }
- 
-        public InputStream nextElement() {
-            if (next != null) {
-                InputStream n = next;
-                prev = next;
-                next = null;
- 
-                return n;
-            }
- 
-            return new ConsoleLineInputStream(reader);
+        return bytes.get() & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException();
+        } else if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
         }
- 
-        public boolean hasMoreElements() {
-            // the last line was null
-            if ((prev != null) && (prev.wasNull == true)) {
-                return false;
-            }
- 
-            if (next == null) {
-                next = (ConsoleLineInputStream) nextElement();
-            }
- 
-            return next != null;
+
+        if (!fill()) {
+            return -1;
         }
+        int n = Math.min(len, bytes.remaining());
+        bytes.get(b, off, n);
+        return n;
     }
- 
-    private static class ConsoleLineInputStream
-        extends InputStream
-    {
-        private final ConsoleReader reader;
-        private String line = null;
-        private int index = 0;
-        private boolean eol = false;
-        protected boolean wasNull = false;
- 
-        public ConsoleLineInputStream(final ConsoleReader reader) {
-            this.reader = reader;
+
+    @Override
+    public int available() {
+        return bytes.remaining();
+    }
+
+    /**
+     * Make sure there are bytes to be read, reading a new line from the
+     * console if the current one has been fully consumed.
+     *
+     * @return false if the end of the console input has been reached
+     */
+    private boolean fill() throws IOException {
+        if (bytes.hasRemaining()) {
+            return true;
+        }
+        if (eof) {
+            return false;
+        }
+
+        String line = reader.readLine();
+        if (line == null) {
+            eof = true;
+            return false;
         }
- 
-        public int read() throws IOException {
-            if (eol) {
-                return -1;
-            }
- 
-            if (line == null) {
-                line = reader.readLine();
-            }
- 
-            if (line == null) {
-                wasNull = true;
-                return -1;
-            }
- 
-            if (index >= line.length()) {
-                eol = true;
-                return '\n'; // lines are ended with a newline
-            }
- 
-            return line.charAt(index++);
+
+        bytes.clear();
+        encoder.reset();
+        // lines are ended with a newline; encoded together, so that a lone
+        // surrogate at the end of the line is replaced rather than dropped
+        encode(CharBuffer.wrap(line + "\n"), true);
+        while (encoder.flush(bytes) == CoderResult.OVERFLOW) {
+            grow();
         }
+        bytes.flip();
+        return true;
+    }
+
+    private void encode(final CharBuffer chars, final boolean endOfInput) {
+        while (encoder.encode(chars, bytes, endOfInput) == CoderResult.OVERFLOW) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        ByteBuffer larger = ByteBuffer.allocate(bytes.capacity() * 2);
+        bytes.flip();
+        larger.put(bytes);
+        bytes = larger;
     }
-}
\ No newline at end of file
+}
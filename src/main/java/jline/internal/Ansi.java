@@ -8,11 +8,6 @@
  */
 package jline.internal;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-
-import org.fusesource.jansi.AnsiOutputStream;
-
 /**
  * Ansi support.
  *
@@ -21,17 +16,86 @@ import org.fusesource.jansi.AnsiOutputStream;
  */
 public class Ansi {
 
+    private static final char ESC = '\033';
+
+    private static final char BEL = '\007';
+
+    /**
+     * Removes the escape sequences from the given string.  The string itself
+     * is returned when it doesn't contain any escape character.
+     */
     public static String stripAnsi(String str) {
         if (str == null) return "";
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            AnsiOutputStream aos = new AnsiOutputStream(baos);
-            aos.write(str.getBytes());
-            aos.close();
-            return baos.toString();
-        } catch (IOException e) {
+        int esc = str.indexOf(ESC);
+        if (esc < 0) {
             return str;
         }
+        StringBuilder sb = new StringBuilder(str.length());
+        int start = 0;
+        while (esc >= 0) {
+            sb.append(str, start, esc);
+            start = esc + escapeLength(str, esc);
+            esc = str.indexOf(ESC, start);
+        }
+        sb.append(str, start, str.length());
+        return sb.toString();
+    }
+
+    /**
+     * Returns the length of the escape sequence starting at the given index,
+     * or 0 if there is no escape character at this index.  Control sequences
+     * (<code>ESC [</code>), operating system commands and other control strings
+     * (<code>ESC ]</code>, <code>ESC P</code>...) and two or three characters
+     * escape sequences are recognized.  A truncated sequence extends to the end
+     * of the string.
+     *
+     * @since 2.15
+     */
+    public static int escapeLength(CharSequence str, int index) {
+        int len = str.length();
+        if (index >= len || str.charAt(index) != ESC) {
+            return 0;
+        }
+        int i = index + 1;
+        if (i == len) {
+            return 1;
+        }
+        char c = str.charAt(i++);
+        if (c == '[') {
+            // parameters and intermediate bytes, up to the final byte
+            while (i < len) {
+                c = str.charAt(i);
+                if (c >= 0x40 && c <= 0x7e) {
+                    i++;
+                    break;
+                }
+                if (c < 0x20 || c > 0x3f) {
+                    break;
+                }
+                i++;
+            }
+        } else if (c == ']' || c == 'P' || c == 'X' || c == '^' || c == '_') {
+            // control strings, terminated by BEL or ESC \
+            while (i < len) {
+                c = str.charAt(i++);
+                if (c == BEL) {
+                    break;
+                }
+                if (c == ESC && i < len && str.charAt(i) == '\\') {
+                    i++;
+                    break;
+                }
+            }
+        } else if (c < 0x20 || c > 0x7e) {
+            // not an escape sequence, only the escape character is dropped
+            return 1;
+        } else {
+            // intermediate bytes, up to the final byte
+            while (c >= 0x20 && c <= 0x2f && i < len) {
+                c = str.charAt(i++);
+            }
+        }
+        return i - index;
     }
 
 }
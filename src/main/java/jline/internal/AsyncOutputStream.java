@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream whose flushes return at once, the bytes being written to
+ * the wrapped stream by a separate thread.
+ * <p/>
+ * The bytes flushed while the thread is writing are queued, and all of them
+ * are written at once by the next write of the thread: when the terminal
+ * is slow, successive frames are merged instead of being written one by
+ * one, and the terminal ends up showing the last one.  The queue is bounded:
+ * when it is full, the writes wait for the thread to catch up.
+ * <p/>
+ * An exception thrown by the wrapped stream is reported by the next write
+ * or flush.
+ *
+ * <p>VERY IMPORTANT NOTES
+ * <ul>
+ *   <li> The {@link #shutdown()} method must be called in order to write the
+ *          remaining bytes and stop the thread.
+ * </ul>
+ * @since 2.15
+ */
+public class AsyncOutputStream
+    extends OutputStream
+    implements Runnable
+{
+    /**
+     * The default number of bytes which can be queued.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    /**
+     * The default time in milliseconds to wait for the queued bytes to be
+     * written, by {@link #drain()} and {@link #shutdown()}.
+     */
+    public static final long DEFAULT_TIMEOUT = 1000;
+
+    private final OutputStream out;
+    private final int capacity;
+
+    private byte[] pending = new byte[8192];   // The bytes queued
+    private int pendingLength;
+    private byte[] writing = new byte[8192];   // The bytes written by the thread
+
+    private boolean flushRequested = false;
+    private boolean isWriting = false;
+    private boolean isShutdown = false;
+    private IOException exception = null;
+
+    /**
+     * Creates an <code>AsyncOutputStream</code> and starts the thread
+     * writing to the wrapped stream.
+     *
+     * @param out      the stream to write to
+     * @param capacity the number of bytes which can be queued before the
+     *                 writes wait for the thread
+     */
+    public AsyncOutputStream(OutputStream out, int capacity) {
+        this.out = Preconditions.checkNotNull(out);
+        this.capacity = capacity;
+        Thread t = new Thread(this);
+        t.setName("AsyncOutputStreamThread");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            checkState();
+            int n = Math.min(len, capacity - pendingLength);
+            if (n == 0) {
+                // the queue is full
+                flushRequested = true;
+                notifyAll();
+                await();
+                continue;
+            }
+            if (pendingLength + n > pending.length) {
+                byte[] array = new byte[Math.min(capacity, Math.max(pendingLength + n, pending.length * 2))];
+                System.arraycopy(pending, 0, array, 0, pendingLength);
+                pending = array;
+            }
+            System.arraycopy(b, off, pending, pendingLength, n);
+            pendingLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Let the thread write the queued bytes, without waiting for it.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        checkState();
+        if (pendingLength > 0) {
+            flushRequested = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the bytes written so far have been written to the wrapped
+     * stream, for at most {@link #DEFAULT_TIMEOUT} milliseconds.
+     *
+     * @return false if the bytes haven't all been written in time
+     */
+    public boolean drain() throws IOException {
+        return drain(DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Wait until the bytes written so far have been written to the wrapped
+     * stream, for at most the given time.
+     *
+     * @param timeout the time to wait in milliseconds
+     * @return false if the bytes haven't all been written in time
+     */
+    public synchronized boolean drain(final long timeout) throws IOException {
+        flush();
+        long deadline = System.currentTimeMillis() + timeout;
+        while ((pendingLength > 0 || isWriting) && exception == null) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            await(remaining);
+        }
+        checkState();
+        return true;
+    }
+
+    /**
+     * Write the remaining bytes, waiting for at most {@link #DEFAULT_TIMEOUT}
+     * milliseconds, and stop the thread.  The wrapped stream is not closed.
+     *
+     * @return false if the bytes haven't all been written in time
+     */
+    public boolean shutdown() throws IOException {
+        return shutdown(DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Write the remaining bytes, waiting for at most the given time, and
+     * stop the thread.  The bytes which couldn't be written in time are
+     * dropped.  The wrapped stream is not closed.
+     *
+     * @param timeout the time to wait in milliseconds
+     * @return false if the bytes haven't all been written in time
+     */
+    public synchronized boolean shutdown(final long timeout) throws IOException {
+        if (isShutdown) {
+            return true;
+        }
+        try {
+            return drain(timeout);
+        } finally {
+            isShutdown = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Shut the stream down, and close the wrapped stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            shutdown();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (exception != null) {
+            IOException toBeThrown = exception;
+            exception = null;
+            throw toBeThrown;
+        }
+        if (isShutdown) {
+            throw new IOException("Stream shut down");
+        }
+    }
+
+    private void await() throws IOException {
+        await(0);
+    }
+
+    private void await(final long timeout) throws IOException {
+        try {
+            wait(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    public void run() {
+        Log.debug("AsyncOutputStream start");
+        while (true) {
+            int len;
+            synchronized (this) {
+                while (!flushRequested && !isShutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        /* IGNORED */
+                    }
+                }
+                if (!flushRequested) {
+                    break;
+                }
+                // take everything queued so far
+                byte[] array = writing;
+                writing = pending;
+                pending = array;
+                len = pendingLength;
+                pendingLength = 0;
+                flushRequested = false;
+                isWriting = true;
+                notifyAll();
+            }
+            IOException failure = null;
+            try {
+                out.write(writing, 0, len);
+                out.flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+            synchronized (this) {
+                isWriting = false;
+                if (failure != null) {
+                    exception = failure;
+                }
+                notifyAll();
+            }
+        }
+        Log.debug("AsyncOutputStream shutdown");
+    }
+}
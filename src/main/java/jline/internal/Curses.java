@@ -10,23 +10,18 @@ package jline.internal;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.Stack;
 
 /**
  * Curses helper methods.
+ * <p/>
+ * Capability strings are compiled once into a {@link Program}: parameterless
+ * capabilities are reduced to their literal characters, the others to a
+ * small stack based byte code which is run without allocating.
  *
  * @author <a href="mailto:gnodet@gmail.com">Guillaume Nodet</a>
  */
 public class Curses {
 
-    private static Object[] sv = new Object[26];
-    private static Object[] dv = new Object[26];
-
-    private static final int IFTE_NONE = 0;
-    private static final int IFTE_IF = 1;
-    private static final int IFTE_THEN = 2;
-    private static final int IFTE_ELSE = 3;
-
     /**
      * Print the given terminal capabilities
      *
@@ -36,305 +31,634 @@ public class Curses {
      * @throws IOException if an error occurs
      */
     public static void tputs(Writer out, String str, Object... params) throws IOException {
-        int index = 0;
-        int length = str.length();
-        int ifte = IFTE_NONE;
-        boolean exec = true;
-        Stack<Object> stack = new Stack<Object>();
-        while (index < length) {
-            char ch = str.charAt(index++);
-            switch (ch) {
-                case '\\':
-                    ch = str.charAt(index++);
-                    if (ch >= '0' && ch <= '9') {
-                        throw new UnsupportedOperationException(); // todo
-                    } else {
+        compile(str).tputs(out, params);
+    }
+
+    /**
+     * Compile the given capability string.
+     *
+     * @param str the capability, as found in the terminfo database
+     * @return the compiled program
+     * @throws IllegalArgumentException if the capability is malformed
+     * @throws UnsupportedOperationException if the capability uses an unsupported operation
+     */
+    public static Program compile(String str) {
+        return new Compiler(str).compile();
+    }
+
+    //
+    // Byte code
+    //
+
+    private static final int OP_TEXT = 0;           // offset, length
+    private static final int OP_PARAM = 1;          // index
+    private static final int OP_PARAM_LENGTH = 2;   // index
+    private static final int OP_CONST = 3;          // value
+    private static final int OP_SET_DYNAMIC = 4;    // index
+    private static final int OP_GET_DYNAMIC = 5;    // index
+    private static final int OP_SET_STATIC = 6;     // index
+    private static final int OP_GET_STATIC = 7;     // index
+    private static final int OP_LENGTH = 8;
+    private static final int OP_ADD = 9;
+    private static final int OP_SUB = 10;
+    private static final int OP_MUL = 11;
+    private static final int OP_DIV = 12;
+    private static final int OP_MOD = 13;
+    private static final int OP_AND = 14;
+    private static final int OP_OR = 15;
+    private static final int OP_XOR = 16;
+    private static final int OP_EQ = 17;
+    private static final int OP_GT = 18;
+    private static final int OP_LT = 19;
+    private static final int OP_LOGICAL_AND = 20;
+    private static final int OP_LOGICAL_OR = 21;
+    private static final int OP_NOT = 22;
+    private static final int OP_COMPLEMENT = 23;
+    private static final int OP_INCREMENT = 24;
+    private static final int OP_PRINT_DECIMAL = 25;
+    private static final int OP_PRINT_CHAR = 26;
+    private static final int OP_JUMP_IF_ZERO = 27;  // target
+    private static final int OP_JUMP = 28;          // target
+
+    private static final int MAX_PARAMS = 9;
+
+    /**
+     * A compiled capability.
+     * <p/>
+     * Programs are immutable and can be shared between threads: the state
+     * needed while running (stack, parameters and variables) is kept per
+     * call, so concurrent sessions can't corrupt each other.
+     */
+    public static final class Program {
+
+        private final char[] text;
+
+        private final int[] code;
+
+        private final boolean usesVariables;
+
+        private Program(char[] text, int[] code, boolean usesVariables) {
+            this.text = text;
+            this.code = code;
+            this.usesVariables = usesVariables;
+        }
+
+        /**
+         * @return true if the capability needs to be evaluated, false if it
+         *         is made of literal characters only
+         */
+        public boolean hasParameters() {
+            return code != null;
+        }
+
+        /**
+         * @return the literal characters of a parameterless capability, or
+         *         null if the capability needs to be evaluated
+         */
+        public char[] getText() {
+            return code == null ? text : null;
+        }
+
+        public void tputs(Writer out) throws IOException {
+            if (code == null) {
+                out.write(text, 0, text.length);
+            } else {
+                execute(out, null, State.acquire().params(0, 0, 0));
+            }
+        }
+
+        public void tputs(Writer out, int p1) throws IOException {
+            if (code == null) {
+                out.write(text, 0, text.length);
+            } else {
+                execute(out, null, State.acquire().params(1, p1, 0));
+            }
+        }
+
+        public void tputs(Writer out, int p1, int p2) throws IOException {
+            if (code == null) {
+                out.write(text, 0, text.length);
+            } else {
+                execute(out, null, State.acquire().params(2, p1, p2));
+            }
+        }
+
+        public void tputs(Writer out, Object... params) throws IOException {
+            if (code == null) {
+                out.write(text, 0, text.length);
+            } else {
+                State state = State.acquire().params(0, 0, 0);
+                for (int i = 0; i < params.length && i < MAX_PARAMS; i++) {
+                    state.params[i] = toParameter(params[i]);
+                }
+                execute(out, params, state);
+            }
+        }
+
+        private void execute(Writer out, Object[] objects, State state) throws IOException {
+            state.busy = true;
+            try {
+                run(out, objects, state);
+            }
+            finally {
+                state.busy = false;
+            }
+        }
+
+        private void run(Writer out, Object[] objects, State state) throws IOException {
+            final int[] code = this.code;
+            final int[] params = state.params;
+            int[] stack = state.stack;
+            int sp = 0;
+            if (usesVariables) {
+                for (int i = 0; i < 26; i++) {
+                    state.dynamic[i] = 0;
+                    state.statics[i] = 0;
+                }
+            }
+            int pc = 0;
+            while (pc < code.length) {
+                int op = code[pc++];
+                if (sp + 1 >= stack.length) {
+                    int[] larger = new int[stack.length * 2];
+                    System.arraycopy(stack, 0, larger, 0, sp);
+                    stack = state.stack = larger;
+                }
+                switch (op) {
+                    case OP_TEXT:
+                        out.write(text, code[pc], code[pc + 1]);
+                        pc += 2;
+                        break;
+                    case OP_PARAM:
+                        stack[sp++] = params[code[pc++]];
+                        break;
+                    case OP_PARAM_LENGTH: {
+                        int index = code[pc++];
+                        if (objects != null && index < objects.length && objects[index] != null) {
+                            stack[sp++] = objects[index].toString().length();
+                        } else {
+                            stack[sp++] = decimalLength(params[index]);
+                        }
+                        break;
+                    }
+                    case OP_CONST:
+                        stack[sp++] = code[pc++];
+                        break;
+                    case OP_SET_DYNAMIC:
+                        state.dynamic[code[pc++]] = pop(stack, sp--);
+                        break;
+                    case OP_GET_DYNAMIC:
+                        stack[sp++] = state.dynamic[code[pc++]];
+                        break;
+                    case OP_SET_STATIC:
+                        state.statics[code[pc++]] = pop(stack, sp--);
+                        break;
+                    case OP_GET_STATIC:
+                        stack[sp++] = state.statics[code[pc++]];
+                        break;
+                    case OP_LENGTH:
+                        checkStack(sp, 1);
+                        stack[sp - 1] = decimalLength(stack[sp - 1]);
+                        break;
+                    case OP_NOT:
+                        checkStack(sp, 1);
+                        stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                        break;
+                    case OP_COMPLEMENT:
+                        checkStack(sp, 1);
+                        stack[sp - 1] = ~stack[sp - 1];
+                        break;
+                    case OP_INCREMENT:
+                        if (state.count >= 1 || objects != null) {
+                            params[0]++;
+                        }
+                        if (state.count >= 2 || objects != null) {
+                            params[1]++;
+                        }
+                        break;
+                    case OP_PRINT_DECIMAL:
+                        printDecimal(out, pop(stack, sp--), state.digits);
+                        break;
+                    case OP_PRINT_CHAR:
+                        out.write((char) pop(stack, sp--));
+                        break;
+                    case OP_JUMP_IF_ZERO:
+                        if (pop(stack, sp--) == 0) {
+                            pc = code[pc];
+                        } else {
+                            pc++;
+                        }
+                        break;
+                    case OP_JUMP:
+                        pc = code[pc];
+                        break;
+                    default: {
+                        checkStack(sp, 2);
+                        int v2 = stack[--sp];
+                        int v1 = stack[sp - 1];
+                        stack[sp - 1] = binary(op, v1, v2);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static int binary(int op, int v1, int v2) {
+        switch (op) {
+            case OP_ADD: return v1 + v2;
+            case OP_SUB: return v1 - v2;
+            case OP_MUL: return v1 * v2;
+            case OP_DIV: return v1 / v2;
+            case OP_MOD: return v1 % v2;
+            case OP_AND: return v1 & v2;
+            case OP_OR: return v1 | v2;
+            case OP_XOR: return v1 ^ v2;
+            case OP_EQ: return v1 == v2 ? 1 : 0;
+            case OP_GT: return v1 > v2 ? 1 : 0;
+            case OP_LT: return v1 < v2 ? 1 : 0;
+            case OP_LOGICAL_AND: return v1 != 0 && v2 != 0 ? 1 : 0;
+            case OP_LOGICAL_OR: return v1 != 0 || v2 != 0 ? 1 : 0;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private static int pop(int[] stack, int sp) {
+        checkStack(sp, 1);
+        return stack[sp - 1];
+    }
+
+    private static void checkStack(int sp, int needed) {
+        if (sp < needed) {
+            throw new IllegalArgumentException("Stack underflow");
+        }
+    }
+
+    private static int decimalLength(int v) {
+        int length = v < 0 ? 2 : 1;
+        for (long l = Math.abs((long) v); l >= 10; l /= 10) {
+            length++;
+        }
+        return length;
+    }
+
+    private static void printDecimal(Writer out, int v, char[] digits) throws IOException {
+        long l = v;
+        boolean negative = l < 0;
+        if (negative) {
+            l = -l;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (char) ('0' + (l % 10));
+            l /= 10;
+        } while (l > 0);
+        if (negative) {
+            digits[--pos] = '-';
+        }
+        out.write(digits, pos, digits.length - pos);
+    }
+
+    private static int toParameter(Object param) {
+        if (param instanceof Number) {
+            return ((Number) param).intValue();
+        } else if (param instanceof Boolean) {
+            return (Boolean) param ? 1 : 0;
+        } else if (param == null) {
+            return 0;
+        }
+        try {
+            return Integer.valueOf(param.toString());
+        } catch (NumberFormatException e) {
+            // only usable through %l
+            return 0;
+        }
+    }
+
+    /**
+     * The state needed while running a program, reused by all the calls
+     * made from a given thread.
+     */
+    private static final class State {
+
+        private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+            @Override
+            protected State initialValue() {
+                return new State();
+            }
+        };
+
+        /**
+         * Returns the state of the current thread, or a private one when
+         * called while a program is already running (e.g. from the writer).
+         */
+        static State acquire() {
+            State state = STATE.get();
+            return state.busy ? new State() : state;
+        }
+
+        int[] stack = new int[16];
+        final int[] params = new int[MAX_PARAMS];
+        final int[] dynamic = new int[26];
+        final int[] statics = new int[26];
+        final char[] digits = new char[11];
+        int count;
+        boolean busy;
+
+        State params(int count, int p1, int p2) {
+            this.count = count;
+            params[0] = p1;
+            params[1] = p2;
+            for (int i = 2; i < MAX_PARAMS; i++) {
+                params[i] = 0;
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Translates a capability string into a {@link Program}.
+     */
+    private static final class Compiler {
+
+        private final String str;
+        private final StringBuilder text = new StringBuilder();
+        private int[] code = new int[32];
+        private int length;
+        private int index;
+        private int textStart = -1;
+        private boolean usesVariables;
+
+        // nesting level of %? ... %; constructs
+        private int depth;
+
+        Compiler(String str) {
+            this.str = str;
+        }
+
+        Program compile() {
+            int[] falseJump = new int[8];
+            int[][] endJumps = new int[8][];
+            int[] endJumpCount = new int[8];
+            int len = str.length();
+            while (index < len) {
+                char ch = str.charAt(index++);
+                switch (ch) {
+                    case '\\':
+                        ch = next();
+                        if (ch >= '0' && ch <= '7') {
+                            int v = ch - '0';
+                            for (int i = 0; i < 2 && index < len
+                                    && str.charAt(index) >= '0' && str.charAt(index) <= '7'; i++) {
+                                v = v * 8 + (str.charAt(index++) - '0');
+                            }
+                            // a null character is represented by \200 in terminfo
+                            literal(v == 0 ? '\200' : (char) v);
+                        } else {
+                            switch (ch) {
+                                case 'e':
+                                case 'E':
+                                    literal((char) 27); // escape
+                                    break;
+                                case 'n':
+                                case 'l':
+                                    literal('\n');
+                                    break;
+                                case 'r':
+                                    literal('\r');
+                                    break;
+                                case 't':
+                                    literal('\t');
+                                    break;
+                                case 'b':
+                                    literal('\b');
+                                    break;
+                                case 'f':
+                                    literal('\f');
+                                    break;
+                                case 's':
+                                    literal(' ');
+                                    break;
+                                case ':':
+                                case '^':
+                                case '\\':
+                                case ',':
+                                    literal(ch);
+                                    break;
+                                default:
+                                    throw new IllegalArgumentException();
+                            }
+                        }
+                        break;
+                    case '^':
+                        ch = next();
+                        literal(ch == '?' ? (char) 127 : (char) (ch - '@'));
+                        break;
+                    case '$':
+                        // padding is not supported: skip delays such as $<5*/>
+                        if (index < len && str.charAt(index) == '<' && str.indexOf('>', index) > 0) {
+                            index = str.indexOf('>', index) + 1;
+                        } else {
+                            literal(ch);
+                        }
+                        break;
+                    case '%':
+                        ch = next();
                         switch (ch) {
-                            case 'e':
-                            case 'E':
-                                if (exec) {
-                                    out.write(27); // escape
-                                }
-                                break;
-                            case 'n':
-                                out.write('\n');
+                            case '%':
+                                literal('%');
                                 break;
-//                        case 'l':
-//                            rawPrint('\l');
-//                            break;
-                            case 'r':
-                                if (exec) {
-                                    out.write('\r');
+                            case 'p': {
+                                int param = next() - '1';
+                                if (param < 0 || param >= MAX_PARAMS) {
+                                    throw new IllegalArgumentException();
+                                }
+                                if (index + 1 < len && str.charAt(index) == '%' && str.charAt(index + 1) == 'l') {
+                                    index += 2;
+                                    emit(OP_PARAM_LENGTH, param);
+                                } else {
+                                    emit(OP_PARAM, param);
                                 }
                                 break;
-                            case 't':
-                                if (exec) {
-                                    out.write('\t');
+                            }
+                            case 'P':
+                                ch = next();
+                                usesVariables = true;
+                                if (ch >= 'a' && ch <= 'z') {
+                                    emit(OP_SET_DYNAMIC, ch - 'a');
+                                } else if (ch >= 'A' && ch <= 'Z') {
+                                    emit(OP_SET_STATIC, ch - 'A');
+                                } else {
+                                    throw new IllegalArgumentException();
                                 }
                                 break;
-                            case 'b':
-                                if (exec) {
-                                    out.write('\b');
+                            case 'g':
+                                ch = next();
+                                usesVariables = true;
+                                if (ch >= 'a' && ch <= 'z') {
+                                    emit(OP_GET_DYNAMIC, ch - 'a');
+                                } else if (ch >= 'A' && ch <= 'Z') {
+                                    emit(OP_GET_STATIC, ch - 'A');
+                                } else {
+                                    throw new IllegalArgumentException();
                                 }
                                 break;
-                            case 'f':
-                                if (exec) {
-                                    out.write('\f');
+                            case '\'':
+                                emit(OP_CONST, next());
+                                if (next() != '\'') {
+                                    throw new IllegalArgumentException();
                                 }
                                 break;
-                            case 's':
-                                if (exec) {
-                                    out.write(' ');
+                            case '{': {
+                                int start = index;
+                                while (next() != '}') ;
+                                emit(OP_CONST, Integer.parseInt(str.substring(start, index - 1)));
+                                break;
+                            }
+                            case 'l': emit(OP_LENGTH); break;
+                            case '+': emit(OP_ADD); break;
+                            case '-': emit(OP_SUB); break;
+                            case '*': emit(OP_MUL); break;
+                            case '/': emit(OP_DIV); break;
+                            case 'm': emit(OP_MOD); break;
+                            case '&': emit(OP_AND); break;
+                            case '|': emit(OP_OR); break;
+                            case '^': emit(OP_XOR); break;
+                            case '=': emit(OP_EQ); break;
+                            case '>': emit(OP_GT); break;
+                            case '<': emit(OP_LT); break;
+                            case 'A': emit(OP_LOGICAL_AND); break;
+                            case 'O': emit(OP_LOGICAL_OR); break;
+                            case '!': emit(OP_NOT); break;
+                            case '~': emit(OP_COMPLEMENT); break;
+                            case 'i': emit(OP_INCREMENT); break;
+                            case 'd': emit(OP_PRINT_DECIMAL); break;
+                            case 'c': emit(OP_PRINT_CHAR); break;
+                            case '?':
+                                if (depth == falseJump.length) {
+                                    falseJump = grow(falseJump);
+                                    endJumpCount = grow(endJumpCount);
+                                    int[][] larger = new int[depth * 2][];
+                                    System.arraycopy(endJumps, 0, larger, 0, depth);
+                                    endJumps = larger;
                                 }
+                                falseJump[depth] = -1;
+                                endJumpCount[depth] = 0;
+                                depth++;
                                 break;
-                            case ':':
-                            case '^':
-                            case '\\':
-                                if (exec) {
-                                    out.write(ch);
+                            case 't':
+                                if (depth == 0 || falseJump[depth - 1] >= 0) {
+                                    throw new IllegalArgumentException();
                                 }
+                                emit(OP_JUMP_IF_ZERO, -1);
+                                falseJump[depth - 1] = length - 1;
                                 break;
-                            default:
-                                throw new IllegalArgumentException();
-                        }
-                    }
-                    break;
-                case '^':
-                    ch = str.charAt(index++);
-                    if (exec) {
-                        out.write(ch - '@');
-                    }
-                    break;
-                case '%':
-                    ch = str.charAt(index++);
-                    switch (ch) {
-                        case '%':
-                            if (exec) {
-                                out.write('%');
-                            }
-                            break;
-                        case 'p':
-                            ch = str.charAt(index++);
-                            if (exec) {
-                                stack.push(params[ch - '1']);
-                            }
-                            break;
-                        case 'P':
-                            ch = str.charAt(index++);
-                            if (ch >= 'a' && ch <= 'z') {
-                                if (exec) {
-                                    dv[ch - 'a'] = stack.pop();
+                            case 'e': {
+                                if (depth == 0 || falseJump[depth - 1] < 0) {
+                                    throw new IllegalArgumentException();
                                 }
-                            } else if (ch >= 'A' && ch <= 'Z') {
-                                if (exec) {
-                                    sv[ch - 'A'] = stack.pop();
+                                int d = depth - 1;
+                                emit(OP_JUMP, -1);
+                                if (endJumps[d] == null) {
+                                    endJumps[d] = new int[4];
+                                } else if (endJumpCount[d] == endJumps[d].length) {
+                                    endJumps[d] = grow(endJumps[d]);
                                 }
-                            } else {
-                                throw new IllegalArgumentException();
+                                endJumps[d][endJumpCount[d]++] = length - 1;
+                                code[falseJump[d]] = length;
+                                falseJump[d] = -1;
+                                break;
                             }
-                            break;
-                        case 'g':
-                            ch = str.charAt(index++);
-                            if (ch >= 'a' && ch <= 'z') {
-                                if (exec) {
-                                    stack.push(dv[ch - 'a']);
+                            case ';': {
+                                if (depth == 0) {
+                                    throw new IllegalArgumentException();
                                 }
-                            } else if (ch >= 'A' && ch <= 'Z') {
-                                if (exec) {
-                                    stack.push(sv[ch - 'A']);
+                                int d = --depth;
+                                flushText();
+                                if (falseJump[d] >= 0) {
+                                    code[falseJump[d]] = length;
                                 }
-                            } else {
-                                throw new IllegalArgumentException();
-                            }
-                            break;
-                        case '\'':
-                            ch = str.charAt(index++);
-                            if (exec) {
-                                stack.push((int) ch);
-                            }
-                            ch = str.charAt(index++);
-                            if (ch != '\'') {
-                                throw new IllegalArgumentException();
-                            }
-                            break;
-                        case '{':
-                            int start = index;
-                            while (str.charAt(index++) != '}') ;
-                            if (exec) {
-                                int v = Integer.valueOf(str.substring(start, index - 1));
-                                stack.push(v);
-                            }
-                            break;
-                        case 'l':
-                            if (exec) {
-                                stack.push(stack.pop().toString().length());
-                            }
-                            break;
-                        case '+':
-                            if (exec) {
-                                int v2 = toInteger(stack.pop());
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 + v2);
-                            }
-                            break;
-                        case '-':
-                            if (exec) {
-                                int v2 = toInteger(stack.pop());
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 - v2);
-                            }
-                            break;
-                        case '*':
-                            if (exec) {
-                                int v2 = toInteger(stack.pop());
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 * v2);
-                            }
-                            break;
-                        case '/':
-                            if (exec) {
-                                int v2 = toInteger(stack.pop());
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 / v2);
-                            }
-                            break;
-                        case 'm':
-                            if (exec) {
-                                int v2 = toInteger(stack.pop());
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 % v2);
-                            }
-                            break;
-                        case '&':
-                            if (exec) {
-                                int v2 = toInteger(stack.pop());
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 & v2);
-                            }
-                            break;
-                        case '|':
-                            if (exec) {
-                                int v2 = toInteger(stack.pop());
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 | v2);
-                            }
-                            break;
-                        case '^':
-                            if (exec) {
-                                int v2 = toInteger(stack.pop());
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 ^ v2);
-                            }
-                            break;
-                        case '=':
-                            if (exec) {
-                                int v2 = toInteger(stack.pop());
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 == v2);
-                            }
-                            break;
-                        case '>':
-                            if (exec) {
-                                int v2 = toInteger(stack.pop());
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 > v2);
-                            }
-                            break;
-                        case '<':
-                            if (exec) {
-                                int v2 = toInteger(stack.pop());
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 < v2);
-                            }
-                            break;
-                        case 'A':
-                            if (exec) {
-                                int v2 = toInteger(stack.pop());
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 != 0 && v2 != 0);
-                            }
-                            break;
-                        case '!':
-                            if (exec) {
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 == 0);
-                            }
-                            break;
-                        case '~':
-                            if (exec) {
-                                int v1 = toInteger(stack.pop());
-                                stack.push(~v1);
-                            }
-                            break;
-                        case 'O':
-                            if (exec) {
-                                int v2 = toInteger(stack.pop());
-                                int v1 = toInteger(stack.pop());
-                                stack.push(v1 != 0 || v2 != 0);
-                            }
-                            break;
-                        case '?':
-                            if (ifte != IFTE_NONE) {
-                                throw new IllegalArgumentException();
-                            } else {
-                                ifte = IFTE_IF;
-                            }
-                            break;
-                        case 't':
-                            if (ifte != IFTE_IF && ifte != IFTE_ELSE) {
-                                throw new IllegalArgumentException();
-                            } else {
-                                ifte = IFTE_THEN;
-                            }
-                            exec = toInteger(stack.pop()) != 0;
-                            break;
-                        case 'e':
-                            if (ifte != IFTE_THEN) {
-                                throw new IllegalArgumentException();
-                            } else {
-                                ifte = IFTE_ELSE;
-                            }
-                            exec = !exec;
-                            break;
-                        case ';':
-                            if (ifte == IFTE_NONE || ifte == IFTE_IF) {
-                                throw new IllegalArgumentException();
-                            } else {
-                                ifte = IFTE_NONE;
-                            }
-                            exec = true;
-                            break;
-                        case 'i':
-                            if (params.length >= 1) {
-                                params[0] = toInteger(params[0]) + 1;
-                            }
-                            if (params.length >= 2) {
-                                params[1] = toInteger(params[1]) + 1;
+                                for (int i = 0; i < endJumpCount[d]; i++) {
+                                    code[endJumps[d][i]] = length;
+                                }
+                                break;
                             }
-                            break;
-                        case 'd':
-                            out.write(Integer.toString(toInteger(stack.pop())));
-                            break;
-                        default:
-                            throw new UnsupportedOperationException();
-                    }
-                    break;
-                default:
-                    if (exec) {
-                        out.write(ch);
-                    }
-                    break;
+                            default:
+                                throw new UnsupportedOperationException();
+                        }
+                        break;
+                    default:
+                        literal(ch);
+                        break;
+                }
+            }
+            if (depth != 0) {
+                throw new IllegalArgumentException();
+            }
+            flushText();
+            char[] chars = new char[text.length()];
+            text.getChars(0, chars.length, chars, 0);
+            if (length == 0 || (length == 3 && code[0] == OP_TEXT)) {
+                return new Program(chars, null, false);
+            }
+            int[] compiled = new int[length];
+            System.arraycopy(code, 0, compiled, 0, length);
+            return new Program(chars, compiled, usesVariables);
+        }
+
+        private char next() {
+            if (index >= str.length()) {
+                throw new IllegalArgumentException("Unexpected end of capability: " + str);
+            }
+            return str.charAt(index++);
+        }
+
+        private void literal(char c) {
+            if (textStart < 0) {
+                textStart = text.length();
+            }
+            text.append(c);
+        }
+
+        private void flushText() {
+            if (textStart >= 0) {
+                int start = textStart;
+                textStart = -1;
+                emit(OP_TEXT, start, text.length() - start);
+            }
+        }
+
+        private void emit(int op) {
+            flushText();
+            ensure(1);
+            code[length++] = op;
+        }
+
+        private void emit(int op, int arg) {
+            flushText();
+            ensure(2);
+            code[length++] = op;
+            code[length++] = arg;
+        }
+
+        private void emit(int op, int arg1, int arg2) {
+            ensure(3);
+            code[length++] = op;
+            code[length++] = arg1;
+            code[length++] = arg2;
+        }
+
+        private void ensure(int n) {
+            if (length + n > code.length) {
+                code = grow(code);
             }
         }
-    }
 
-    private static int toInteger(Object pop) {
-        if (pop instanceof Number) {
-            return ((Number) pop).intValue();
-        } else if (pop instanceof Boolean) {
-            return (Boolean) pop ? 1 : 0;
-        } else {
-            return Integer.valueOf(pop.toString());
+        private static int[] grow(int[] array) {
+            int[] larger = new int[array.length * 2];
+            System.arraycopy(array, 0, larger, 0, array.length);
+            return larger;
         }
     }
 
@@ -86,6 +86,45 @@ public class InfoCmp {
         return names != null ? names : new String[] { name };
     }
 
+    /**
+     * String capabilities used when editing a line.
+     * <p/>
+     * The constants are named after the long terminfo names, and their
+     * ordinals can be used to index a cache of compiled programs.
+     */
+    public enum Capability {
+        bell,
+        carriage_return,
+        clear_screen,
+        clr_bol,
+        clr_eol,
+        clr_eos,
+        column_address,
+        cursor_down,
+        cursor_left,
+        cursor_right,
+        cursor_up,
+        delete_character,
+        enter_insert_mode,
+        exit_insert_mode,
+        insert_character,
+        parm_dch,
+        parm_down_cursor,
+        parm_ich,
+        parm_left_cursor,
+        parm_right_cursor,
+        parm_up_cursor,
+        enter_bold_mode,
+        enter_dim_mode,
+        enter_italics_mode,
+        enter_underline_mode,
+        enter_blink_mode,
+        enter_reverse_mode,
+        exit_attribute_mode,
+        set_a_foreground,
+        set_a_background
+    }
+
     private static final Map<String, String[]> NAMES;
     static {
         String[][] list = {
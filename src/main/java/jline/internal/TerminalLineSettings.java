@@ -182,6 +182,17 @@ public final class TerminalLineSettings
         return getPropertyAsString(name, config);
     }
 
+    /**
+     * Discard the cached stty properties, so that they are queried again the
+     * next time they are needed, for instance when the terminal has been
+     * resized.
+     *
+     * @since 2.15
+     */
+    public void invalidate() {
+        configLastFetched = 0;
+    }
+
     private boolean fetchConfig(String name) {
         long currentTime = System.currentTimeMillis();
         try {
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import org.junit.Test;
+
+import static jline.console.AttributedString.BOLD;
+import static jline.console.AttributedString.FOREGROUND;
+import static jline.console.AttributedString.FOREGROUND_SHIFT;
+import static jline.console.AttributedString.UNDERLINE;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link AttributedString}.
+ */
+public class AttributedStringTest
+{
+    @Test
+    public void testFromAnsi() {
+        String ansi = "a\033[1;31mbc\033[22;4md\033[0me";
+        AttributedString str = AttributedString.fromAnsi(ansi);
+        assertEquals("abcde", str.toString());
+        assertEquals(5, str.length());
+        assertEquals(0, str.styleAt(0));
+        int red = FOREGROUND | (1 << FOREGROUND_SHIFT);
+        assertEquals(BOLD | red, str.styleAt(1));
+        assertEquals(BOLD | red, str.styleAt(2));
+        assertEquals(UNDERLINE | red, str.styleAt(3));
+        assertEquals(0, str.styleAt(4));
+        assertEquals(ansi, str.toAnsi());
+    }
+
+    @Test
+    public void testExtendedColors() {
+        AttributedString str = AttributedString.fromAnsi("\033[38;5;208mx\033[39;1my");
+        assertEquals(FOREGROUND | (208 << FOREGROUND_SHIFT), str.styleAt(0));
+        assertEquals(BOLD, str.styleAt(1));
+    }
+
+    @Test
+    public void testSubSequenceAndToAnsi() {
+        AttributedString str = AttributedString.fromAnsi("ab\033[1mcd\033[0mef");
+        AttributedString sub = str.subSequence(1, 5);
+        assertEquals("bcde", sub.toString());
+        assertEquals(0, sub.styleAt(0));
+        assertEquals(BOLD, sub.styleAt(1));
+        assertEquals(0, sub.styleAt(3));
+        assertEquals("b\033[0;1mcd\033[0me", sub.toAnsi());
+        assertEquals(sub, AttributedString.fromAnsi(sub.toAnsi()));
+        assertEquals("plain", new AttributedString("plain").toAnsi());
+    }
+
+    @Test
+    public void testColumnLength() {
+        assertEquals(8, AttributedString.fromAnsi("\033[1m中文\033[0m abc").columnLength());
+        assertEquals(11, new AttributedString("ab\tc\u0001").columnLength());
+    }
+}
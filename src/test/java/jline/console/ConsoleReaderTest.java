@@ -15,10 +15,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 import jline.TerminalFactory;
+import jline.Terminal2;
+import jline.TerminalSupport;
 import jline.WindowsTerminal;
 import jline.console.completer.AggregateCompleter;
 import jline.console.completer.ArgumentCompleter;
@@ -118,6 +125,287 @@ public class ConsoleReaderTest
         }
     }
 
+    @Test
+    public void testPrintColumns() throws Exception {
+        output = new ByteArrayOutputStream();
+        ConsoleReader consoleReader = new ConsoleReader(null, new ByteArrayInputStream(new byte[0]), output,
+            new TerminalSupport(true) {
+                @Override
+                public int getWidth() {
+                    return 10;
+                }
+            });
+        consoleReader.printColumns(Arrays.asList("aa", "bb", "cc", "dd", "ee"));
+        consoleReader.flush();
+        String sep = System.getProperty("line.separator");
+        // sorted down the columns, without trailing padding
+        assertEquals("aa   dd" + sep + "bb   ee" + sep + "cc" + sep, output.toString());
+    }
+
+    private static class EditingTerminal
+        extends TerminalSupport
+        implements Terminal2
+    {
+        private final Map<String, String> caps = new HashMap<String, String>();
+
+        int width = 80;
+
+        EditingTerminal() {
+            super(true);
+            setAnsiSupported(true);
+            caps.put("carriage_return", "^M");
+            caps.put("cursor_left", "^H");
+            caps.put("cursor_right", "\\E[C");
+            caps.put("clr_eol", "\\E[K");
+            caps.put("insert_character", "\\E[@");
+            caps.put("parm_ich", "\\E[%p1%d@");
+            caps.put("delete_character", "\\E[P");
+            caps.put("parm_dch", "\\E[%p1%dP");
+            caps.put("cursor_up", "\\E[A");
+            caps.put("clr_eos", "\\E[J");
+            caps.put("exit_attribute_mode", "\\E[0m");
+            caps.put("enter_bold_mode", "\\E[1m");
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        public boolean getBooleanCapability(String capability) {
+            return false;
+        }
+
+        public Integer getNumericCapability(String capability) {
+            return null;
+        }
+
+        public String getStringCapability(String capability) {
+            return caps.get(capability);
+        }
+    }
+
+    @Test
+    public void testInsertAndDeleteCharacters() throws Exception {
+        output = new ByteArrayOutputStream();
+        ConsoleReader consoleReader = new ConsoleReader(null,
+            new ByteArrayInputStream("abcdef\u0001X\u0004\u0004\u0005\b\r".getBytes()), output, new EditingTerminal());
+        assertEquals("Xcde", consoleReader.readLine());
+        // the characters after the cursor are shifted by the terminal, not printed again
+        String expected = "abcdef" + "\r" + "\033[@X" + "\033[P" + "\033[P" + "cdef" + "\b\033[P"
+            + System.getProperty("line.separator");
+        assertEquals(expected, output.toString());
+    }
+
+    @Test
+    public void testOverwriteCharacters() throws Exception {
+        output = new ByteArrayOutputStream();
+        ConsoleReader consoleReader = new ConsoleReader(null,
+            new ByteArrayInputStream("abcd\u0001\u0006x\r\u0001\u0006x\r".getBytes()), output, new EditingTerminal());
+        consoleReader.getCursorBuffer().setOverTyping(true);
+        String sep = System.getProperty("line.separator");
+        assertEquals("axcd", consoleReader.readLine());
+        // the replaced character is printed over, nothing is shifted
+        assertEquals("abcd" + "\r" + "a" + "x" + "cd" + sep, output.toString());
+        output.reset();
+        // the rest of the line is drawn again when the width changes
+        assertEquals("axcd", consoleReader.readLine(null, null, "a\tcd"));
+        assertEquals("a        cd" + "\r" + "a" + "x" + "cd\033[K\b\b" + "cd" + sep, output.toString());
+    }
+
+    @Test
+    public void testReflowAfterResize() throws Exception {
+        output = new ByteArrayOutputStream();
+        final EditingTerminal terminal = new EditingTerminal();
+        terminal.width = 10;
+        final ConsoleReader consoleReader = new ConsoleReader(null,
+            new ByteArrayInputStream("abc\u0014defghijkl\u0014\u0014\r".getBytes()), output, terminal);
+        final int[] widths = { 20, 10, 5 };
+        consoleReader.addTriggeredAction('\u0014', new ActionListener() {
+            int n;
+
+            public void actionPerformed(ActionEvent e) {
+                terminal.width = widths[n++];
+                try {
+                    consoleReader.reflow();
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        assertEquals("abcdefghijkl", consoleReader.readLine("> "));
+        // nothing moves while the line fits on the first row, then the
+        // cursor goes back to the first row of the line to draw it again
+        String expected = "> abcdefghijkl"
+            + "\r\033[J> abcdefghijkl"
+            + "\r\033[A\033[J> abcdefghijkl"
+            + System.getProperty("line.separator");
+        assertEquals(expected, output.toString());
+    }
+
+    @Test
+    public void testTriggeredActionKeepsUndo() throws Exception {
+        output = new ByteArrayOutputStream();
+        final ConsoleReader consoleReader = new ConsoleReader(null,
+            new ByteArrayInputStream("abc\b\u0014\u001f\rab \u0014\r".getBytes()), output, new EditingTerminal());
+        final boolean[] change = new boolean[1];
+        consoleReader.addTriggeredAction('\u0014', new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                CursorBuffer buf = consoleReader.getCursorBuffer();
+                if (change[0]) {
+                    buf.buffer.setCharAt(0, 'X');
+                }
+            }
+        });
+        // the listener only looked at the buffer, the edits can be undone
+        assertEquals("abc", consoleReader.readLine("> "));
+        // a direct change of the same length is taken into account
+        change[0] = true;
+        assertEquals("Xb ", consoleReader.readLine("> "));
+    }
+
+    @Test
+    public void testMirrorOnceHandedOut() throws Exception {
+        output = new ByteArrayOutputStream();
+        final ConsoleReader consoleReader = new ConsoleReader(null,
+            new ByteArrayInputStream("f\t\u0014\rab\u0014\u0014c\r".getBytes()), output, new EditingTerminal());
+        consoleReader.addCompleter(new StringsCompleter("foo"));
+        final List<String> fields = new ArrayList<String>();
+        final CursorBuffer[] cached = new CursorBuffer[1];
+        consoleReader.addTriggeredAction('\u0014', new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (cached[0] == null) {
+                    // the bundled completion handler doesn't update the field
+                    assertFalse(consoleReader.getLineBuffer().isMirrored());
+                    cached[0] = consoleReader.getCursorBuffer();
+                } else if (fields.isEmpty()) {
+                    // a reference kept from a previous line is up to date
+                    fields.add(cached[0].buffer.toString());
+                } else {
+                    // and the changes made directly through it are taken into account
+                    cached[0].buffer.append('b');
+                }
+            }
+        });
+        assertEquals("foo ", consoleReader.readLine("> "));
+        assertEquals("abcb", consoleReader.readLine("> "));
+        assertEquals(Arrays.asList("ab"), fields);
+    }
+
+    @Test
+    public void testPrintAbove() throws Exception {
+        output = new ByteArrayOutputStream();
+        final ConsoleReader consoleReader = new ConsoleReader(null,
+            new ByteArrayInputStream("ab\u0014c\r".getBytes()), output, new EditingTerminal());
+        consoleReader.addTriggeredAction('\u0014', new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                consoleReader.printAbove("hello");
+                consoleReader.printAbove("world");
+            }
+        });
+        String sep = System.getProperty("line.separator");
+        consoleReader.printAbove("first");
+        assertEquals("first" + sep, output.toString());
+        assertEquals("abc", consoleReader.readLine("> "));
+        // the queued lines are printed at once, and the line drawn again once
+        String expected = "first" + sep + "> ab"
+            + "\r\033[Jhello" + sep + "world" + sep + "> ab"
+            + "c" + sep;
+        assertEquals(expected, output.toString());
+    }
+
+    @Test
+    public void testStatus() throws Exception {
+        output = new ByteArrayOutputStream();
+        ConsoleReader consoleReader = new ConsoleReader(null,
+            new ByteArrayInputStream("ab\r".getBytes()), output, new EditingTerminal());
+        consoleReader.setStatus("ready");
+        assertEquals("ab", consoleReader.readLine("> "));
+        // the status is drawn below the line, and erased before the line
+        // is accepted
+        String expected = "> \033[K\r\nready\033[A\b\b\bab"
+            + "\r\n\033[J\033[A\033[C\033[C\033[C\033[C"
+            + System.getProperty("line.separator");
+        assertEquals(expected, output.toString());
+    }
+
+    private String readWithSegment(String placeholder) throws Exception {
+        output = new ByteArrayOutputStream();
+        final ConsoleReader consoleReader = new ConsoleReader(null,
+            new ByteArrayInputStream("ab\u0014c\r".getBytes()), output, new EditingTerminal());
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        consoleReader.setPromptExecutor(new Executor() {
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        // the segment is computed while the line is edited
+        consoleReader.addTriggeredAction('\u0014', new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                tasks.get(0).run();
+            }
+        });
+        Prompt prompt = new Prompt().append("[").append(placeholder, new Callable<String>() {
+            public String call() {
+                return "main";
+            }
+        }).append("]> ");
+        assertEquals("abc", consoleReader.readLine(prompt));
+        assertEquals("[main]> ", prompt.toString());
+        return output.toString();
+    }
+
+    @Test
+    public void testPromptSegments() throws Exception {
+        String sep = System.getProperty("line.separator");
+        // the buffer is drawn again after a longer prompt
+        assertEquals("[..]> ab\r\033[J[main]> abc" + sep, readWithSegment(".."));
+        // only the prompt is written when it keeps the same width
+        assertEquals("[....]> ab\r[main]> \033[C\033[Cc" + sep, readWithSegment("...."));
+    }
+
+    @Test
+    public void testLateSegmentIsIgnored() throws Exception {
+        output = new ByteArrayOutputStream();
+        ConsoleReader consoleReader = new ConsoleReader(null,
+            new ByteArrayInputStream("a\rb\r".getBytes()), output, new EditingTerminal());
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        consoleReader.setPromptExecutor(new Executor() {
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        final String[] values = { "old", "new" };
+        final int[] calls = new int[1];
+        Prompt prompt = new Prompt().append("..", new Callable<String>() {
+            public String call() {
+                return values[calls[0]++];
+            }
+        }).append("> ");
+        assertEquals("a", consoleReader.readLine(prompt));
+        assertEquals("b", consoleReader.readLine(prompt));
+        // the value computed for the first line is not displayed with the second one
+        tasks.get(0).run();
+        assertEquals("..> ", prompt.toString());
+        tasks.get(1).run();
+        assertEquals("..> ", prompt.toString());
+    }
+
+    @Test
+    public void testHighlighter() throws Exception {
+        output = new ByteArrayOutputStream();
+        ConsoleReader consoleReader = new ConsoleReader(null,
+            new ByteArrayInputStream("a1\r".getBytes()), output, new EditingTerminal());
+        consoleReader.setHighlighter(new HighlightingTest.DigitHighlighter());
+        consoleReader.setHighlighterExecutor(new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        assertEquals("a1", consoleReader.readLine("> "));
+        assertTrue(output.toString(), output.toString().contains("a\033[0m\033[1m1\033[0m"));
+    }
+
     @Test
     public void testReadlineWithUnicode() throws Exception {
         System.setProperty("input.encoding", "UTF-8");
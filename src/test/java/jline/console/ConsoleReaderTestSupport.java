@@ -132,6 +132,11 @@ public abstract class ConsoleReaderTestSupport
             case BACKWARD_KILL_WORD:   return new String(new char[]{27, 127});
             case YANK:                 return "\u0019";
             case YANK_POP:             return new String(new char[]{27, 121});
+            case UNDO:                 return "\037";
+            case REVERT_LINE:          return "\033r";
+            case START_KBD_MACRO:      return "\030(";
+            case END_KBD_MACRO:        return "\030)";
+            case CALL_LAST_KBD_MACRO:  return "\030e";
             default:
               throw new IllegalArgumentException(key.toString());
         }
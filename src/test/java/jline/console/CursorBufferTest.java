@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the display width and line indexes of {@link CursorBuffer}.
+ */
+public class CursorBufferTest
+{
+    private static final int WIDTH = 80;
+
+    private static final String[] PIECES = {
+        "a", "bc", "\t", "中", "́", "😀", "\u200d", "\ud83c\udffb", "\u0001", "hello world "
+    };
+
+    /**
+     * Compare the index with the columns computed the simple way, scanning
+     * from the start of the buffer.
+     */
+    private static void check(CursorBuffer buf, int pos) {
+        CharSequence str = buf.buffer;
+        int cur = pos;
+        int previous = -1;
+        for (int i = 0; i <= str.length(); ) {
+            assertEquals("column of " + i + " in " + buf, cur - pos, buf.columns(i, pos, WIDTH));
+            if (i == str.length()) {
+                break;
+            }
+            int ucs = Character.codePointAt(str, i);
+            i += Character.charCount(ucs);
+            if (ucs == '\t') {
+                cur += CursorBuffer.tabWidth(cur, WIDTH);
+            } else if (ucs < 32) {
+                cur += 2;
+            } else {
+                cur += Math.max(WCWidth.wcwidth(previous, ucs), 0);
+            }
+            previous = ucs;
+        }
+    }
+
+    @Test
+    public void testTyping() {
+        CursorBuffer buf = new CursorBuffer();
+        for (int i = 0; i < 2000; i++) {
+            buf.write((char) ('a' + i % 26));
+        }
+        assertEquals(2000, buf.columns(2000, 0, WIDTH));
+        assertEquals(1500, buf.columns(1500, 0, WIDTH));
+        buf.cursor = 700;
+        buf.write("中中");
+        assertEquals(2004, buf.columns(2002, 0, WIDTH));
+        assertEquals(699, buf.columns(699, 0, WIDTH));
+        check(buf, 3);
+    }
+
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(42);
+        CursorBuffer buf = new CursorBuffer();
+        for (int n = 0; n < 2000; n++) {
+            int op = random.nextInt(10);
+            int len = buf.length();
+            if (op < 6 || len == 0) {
+                buf.cursor = random.nextInt(len + 1);
+                String piece = PIECES[random.nextInt(PIECES.length)];
+                if (random.nextBoolean()) {
+                    buf.write(piece);
+                } else {
+                    StringBuilder sb = new StringBuilder();
+                    for (int i = random.nextInt(20); i > 0; i--) {
+                        sb.append(piece);
+                    }
+                    buf.insert(buf.cursor, sb);
+                }
+            } else if (op < 9) {
+                int start = random.nextInt(len);
+                int end = Math.min(len, start + 1 + random.nextInt(op == 8 && random.nextInt(10) == 0 ? 600 : 3));
+                buf.delete(start, end);
+            } else {
+                int index = random.nextInt(len);
+                buf.setCharAt(index, random.nextBoolean() ? '\t' : 'x');
+            }
+            if (n % 200 == 0) {
+                check(buf, n % 7);
+            }
+        }
+        check(buf, 0);
+    }
+
+    @Test
+    public void testDirectChanges() {
+        CursorBuffer buf = new CursorBuffer();
+        buf.write("abc\tdef");
+        check(buf, 2);
+        // changes in length are detected
+        buf.buffer.append("中");
+        check(buf, 2);
+        // others must be notified
+        buf.buffer.setCharAt(0, '\t');
+        buf.invalidate();
+        check(buf, 2);
+        buf.setLength(2);
+        check(buf, 2);
+        buf.clear();
+        assertEquals(0, buf.columns(0, 5, WIDTH));
+    }
+
+    @Test
+    public void testMirror() {
+        CursorBuffer buf = new CursorBuffer();
+        buf.setMirrored(false);
+        buf.write("hello");
+        assertEquals("", buf.buffer.toString());
+        assertEquals("hello", buf.toString());
+        buf.setMirrored(true);
+        assertEquals("hello", buf.buffer.toString());
+        buf.cursor = 0;
+        buf.write("> ");
+        assertEquals("> hello", buf.buffer.toString());
+
+        // direct changes of the field are taken into account
+        buf.buffer.append(" world");
+        assertEquals(13, buf.length());
+        assertEquals('w', buf.charAt(8));
+        buf.buffer.setCharAt(0, '<');
+        buf.invalidate();
+        assertEquals("< hello world", buf.toString());
+        assertEquals(13, buf.columns(13, 0, WIDTH));
+
+        // but not once they're out of date
+        buf.setMirrored(false);
+        buf.delete(0, 2);
+        buf.buffer.setLength(0);
+        assertEquals("hello world", buf.toString());
+        buf.setMirrored(true);
+        assertEquals("hello world", buf.buffer.toString());
+    }
+
+    @Test
+    public void testLines() {
+        Random random = new Random(3);
+        CursorBuffer buf = new CursorBuffer();
+        for (int n = 0; n < 1000; n++) {
+            int len = buf.length();
+            if (random.nextInt(3) > 0 || len == 0) {
+                buf.cursor = random.nextInt(len + 1);
+                buf.write(random.nextBoolean() ? "\n" : "ab\ncd");
+            } else {
+                int start = random.nextInt(len);
+                buf.delete(start, Math.min(len, start + 1 + random.nextInt(4)));
+            }
+            String str = buf.toString();
+            int line = 0;
+            for (int i = 0; i <= str.length(); i++) {
+                assertEquals(line, buf.getLineOf(i));
+                if (i == str.length() || str.charAt(i) == '\n') {
+                    assertEquals(i, buf.getLineEnd(line));
+                    line++;
+                }
+            }
+            assertEquals(line, buf.getLineCount());
+            assertEquals(0, buf.getLineStart(0));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.EnumMap;
+import java.util.Map;
+
+import jline.internal.Curses;
+import jline.internal.InfoCmp.Capability;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link CursorMotion}.
+ */
+public class CursorMotionTest
+{
+    private static final int WIDTH = 80;
+
+    private final Map<Capability, Curses.Program> caps = new EnumMap<Capability, Curses.Program>(Capability.class);
+
+    private final CursorMotion motion = new CursorMotion()
+    {
+        @Override
+        protected Curses.Program getCapability(final Capability cap) {
+            return caps.get(cap);
+        }
+    };
+
+    private void cap(Capability cap, String str) {
+        caps.put(cap, Curses.compile(str));
+    }
+
+    private void xterm() {
+        cap(Capability.carriage_return, "^M");
+        cap(Capability.cursor_left, "^H");
+        cap(Capability.cursor_right, "\\E[C");
+        cap(Capability.cursor_up, "\\E[A");
+        cap(Capability.parm_left_cursor, "\\E[%p1%dD");
+        cap(Capability.parm_right_cursor, "\\E[%p1%dC");
+        cap(Capability.parm_up_cursor, "\\E[%p1%dA");
+        cap(Capability.column_address, "\\E[%i%p1%dG");
+    }
+
+    private String move(int from, int to, CharSequence text) throws IOException {
+        StringWriter out = new StringWriter();
+        motion.move(out, from, to, WIDTH, text);
+        return out.toString();
+    }
+
+    @Test
+    public void testShortMoves() throws IOException {
+        xterm();
+        assertEquals("\b", move(10, 9, null));
+        assertEquals("\b\b\b", move(10, 7, null));
+        assertEquals("\033[C", move(10, 11, null));
+        assertEquals("\033[2C", move(10, 12, null));
+        assertEquals("", move(10, 10, null));
+    }
+
+    @Test
+    public void testCarriageReturn() throws IOException {
+        xterm();
+        assertEquals("\r", move(50, 0, null));
+        assertEquals("\033[2G", move(50, 1, null));
+        caps.remove(Capability.column_address);
+        assertEquals("\r\033[C", move(50, 1, null));
+        assertEquals("\r\033[C", move(WIDTH + 50, WIDTH + 1, null));
+    }
+
+    @Test
+    public void testRewriteText() throws IOException {
+        xterm();
+        assertEquals("ab", move(10, 12, "ab"));
+        assertEquals("\033[5C", move(10, 15, "abcde"));
+        // the text can't be used across rows
+        assertEquals("\033[A\033[2C", move(WIDTH + 10, 12, "ab"));
+    }
+
+    @Test
+    public void testMovesDown() throws IOException {
+        xterm();
+        assertEquals("\r\n\n\033[5C", move(10, 2 * WIDTH + 5, null));
+    }
+
+    @Test
+    public void testColumnAddress() throws IOException {
+        xterm();
+        caps.remove(Capability.parm_right_cursor);
+        assertEquals("\033[21G", move(10, 20, null));
+    }
+
+    @Test
+    public void testMissingCapabilities() throws IOException {
+        cap(Capability.cursor_left, "^H");
+        cap(Capability.cursor_right, "\\E[C");
+        assertEquals("\033[C\033[C", move(10, 12, null));
+        assertEquals("\b\b", move(12, 10, null));
+    }
+}
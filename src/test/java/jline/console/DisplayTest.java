@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import jline.TerminalSupport;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link Display}, using a small terminal emulator.
+ */
+public class DisplayTest
+{
+    private static final int WIDTH = 10;
+
+    /**
+     * Emulates a terminal with auto margins and the eat_newline_glitch.
+     */
+    private static class VirtualScreen
+        implements Display.Screen
+    {
+        final List<StringBuilder> rows = new ArrayList<StringBuilder>();
+        int row;
+        int col;
+        boolean pending;
+        int written;
+
+        VirtualScreen() {
+            rows.add(new StringBuilder());
+        }
+
+        StringBuilder row(int r) {
+            while (rows.size() <= r) {
+                rows.add(new StringBuilder());
+            }
+            return rows.get(r);
+        }
+
+        public void write(char[] chars, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                int w = chars[i] >= 0x1100 ? 2 : 1;
+                if (pending || col + w > WIDTH) {
+                    row++;
+                    col = 0;
+                    pending = false;
+                }
+                StringBuilder sb = row(row);
+                while (sb.length() < col + w) {
+                    sb.append(' ');
+                }
+                sb.setCharAt(col, chars[i]);
+                if (w == 2) {
+                    sb.setCharAt(col + 1, '\u0000');
+                }
+                written++;
+                col += w;
+                if (col == WIDTH) {
+                    col = WIDTH - 1;
+                    pending = true;
+                }
+            }
+        }
+
+        public void moveCursor(int from, int to, CharSequence text) {
+            assertTrue("cursor is not at the expected position", !pending);
+            assertEquals(row * WIDTH + col, from);
+            row = to / WIDTH;
+            col = to % WIDTH;
+            row(row);
+        }
+
+        public void carriageReturn() {
+            col = 0;
+            pending = false;
+        }
+
+        public boolean clearToEndOfLine() {
+            StringBuilder sb = row(row);
+            if (sb.length() > col) {
+                sb.setLength(col);
+            }
+            return true;
+        }
+
+        public boolean clearToEndOfScreen() {
+            clearToEndOfLine();
+            while (rows.size() > row + 1) {
+                rows.remove(rows.size() - 1);
+            }
+            return true;
+        }
+
+        public void setStyle(int style) {
+        }
+
+        public boolean hasAutoMargin() {
+            return true;
+        }
+
+        public boolean hasWeirdWrap() {
+            return true;
+        }
+
+        String text() {
+            StringBuilder sb = new StringBuilder();
+            for (StringBuilder r : rows) {
+                sb.append(r).append('|');
+            }
+            return sb.toString();
+        }
+    }
+
+    private VirtualScreen screen;
+    private Display display;
+
+    @Before
+    public void setUp() {
+        screen = new VirtualScreen();
+        // the prompt has been printed
+        screen.write("> ".toCharArray(), 0, 2);
+        display = new Display(screen);
+        display.clear(2, WIDTH);
+    }
+
+    private void update(String buffer, int cursor) throws IOException {
+        display.update(2, buffer, null, cursor, null, WIDTH);
+    }
+
+    @Test
+    public void testWrappedLine() throws IOException {
+        update("abcdefghijklmnop", 16);
+        assertEquals("> abcdefgh|ijklmnop|", screen.text());
+        assertEquals(1, screen.row);
+        assertEquals(8, screen.col);
+    }
+
+    @Test
+    public void testOnlyChangedCellsAreWritten() throws IOException {
+        update("abcdefghijklmnop", 16);
+        screen.written = 0;
+        update("abcdeXghijklmnop", 6);
+        assertEquals("> abcdeXgh|ijklmnop|", screen.text());
+        assertEquals(1, screen.written);
+        assertEquals(0, screen.row);
+        assertEquals(8, screen.col);
+    }
+
+    @Test
+    public void testCursorMovesDontWrite() throws IOException {
+        update("abcdefghijklmnop", 16);
+        screen.written = 0;
+        update("abcdefghijklmnop", 3);
+        assertEquals(0, screen.written);
+        assertEquals(0, screen.row);
+        assertEquals(5, screen.col);
+    }
+
+    @Test
+    public void testShrinkClearsRows() throws IOException {
+        update("abcdefghijklmnopqrstuvwxyz", 26);
+        assertEquals("> abcdefgh|ijklmnopqr|stuvwxyz|", screen.text());
+        update("abc", 3);
+        assertEquals("> abc||", screen.text());
+        assertEquals(0, screen.row);
+        assertEquals(5, screen.col);
+    }
+
+    @Test
+    public void testExactFill() throws IOException {
+        update("abcdefgh", 8);
+        assertEquals("> abcdefgh||", screen.text());
+        assertEquals(1, screen.row);
+        assertEquals(0, screen.col);
+        update("abcdefghi", 9);
+        assertEquals("> abcdefgh|i|", screen.text());
+        update("abcdefgh", 4);
+        assertEquals("> abcdefgh||", screen.text());
+        assertEquals(0, screen.row);
+        assertEquals(6, screen.col);
+    }
+
+    @Test
+    public void testInsertAtStartOfLongLine() throws IOException {
+        update("abcdefghijklmnop", 0);
+        update("Xabcdefghijklmnop", 1);
+        assertEquals("> Xabcdefg|hijklmnop|", screen.text());
+        assertEquals(0, screen.row);
+        assertEquals(3, screen.col);
+    }
+
+    @Test
+    public void testControlCharactersAndTabs() throws IOException {
+        update("a\u0001b\tc", 5);
+        assertEquals("> a^Ab  c|", screen.text());
+    }
+
+    @Test
+    public void testWideCharacterIsNotSplit() throws IOException {
+        update("abcdefg中", 8);
+        assertEquals("> abcdefg |中|", screen.text().replace("\u0000", ""));
+    }
+
+    @Test
+    public void testMask() throws IOException {
+        display.update(2, "secret", null, 6, '*', WIDTH);
+        assertEquals("> ******|", screen.text());
+        display.update(2, "secret", null, 6, ConsoleReader.NULL_MASK, WIDTH);
+        assertEquals("> |", screen.text());
+    }
+
+    @Test
+    public void testHorizontalScroll() throws IOException {
+        display.setHorizontalScroll(true);
+        update("abcdef", 6);
+        assertEquals("> abcdef|", screen.text());
+        update("abcdefgh", 8);
+        assertEquals("> <gh|", screen.text());
+        assertEquals(0, screen.row);
+        assertEquals(5, screen.col);
+        update("abcdefghijklmnop", 3);
+        assertEquals("> <bcdef>|", screen.text());
+        assertEquals(5, screen.col);
+        // the window doesn't move while the cursor is visible
+        update("abcdefghijklmnop", 4);
+        assertEquals("> <bcdef>|", screen.text());
+        assertEquals(6, screen.col);
+        update("abcdefghijklmnop", 0);
+        assertEquals("> abcdef>|", screen.text());
+        assertEquals(2, screen.col);
+    }
+
+    @Test
+    public void testHorizontalScrollOnlyWritesTheWindow() throws IOException {
+        display.setHorizontalScroll(true);
+        CursorBuffer buf = new CursorBuffer();
+        for (int i = 0; i < 10000; i++) {
+            buf.write((char) ('a' + i % 26));
+        }
+        display.update(2, buf, null, null, WIDTH);
+        assertEquals(1, screen.rows.size());
+        screen.written = 0;
+        buf.write('X');
+        display.update(2, buf, null, null, WIDTH);
+        assertTrue(screen.written < WIDTH);
+        assertEquals("> <opX|", screen.text());
+    }
+
+    @Test
+    public void testStatus() throws IOException {
+        CursorBuffer buf = new CursorBuffer();
+        buf.write("abc");
+        display.setStatus(new AttributedString("50%"));
+        display.update(2, buf, null, null, WIDTH);
+        assertEquals("> abc|50%|", screen.text());
+        assertEquals(0, screen.row);
+        assertEquals(5, screen.col);
+        // only the changed cells of the status are written
+        screen.written = 0;
+        display.setStatus(new AttributedString("60%"));
+        display.update(2, buf, null, null, WIDTH);
+        assertEquals("> abc|60%|", screen.text());
+        assertEquals(1, screen.written);
+        assertEquals(5, screen.col);
+        // the status moves down when the line wraps
+        buf.write("defghij");
+        display.update(2, buf, null, null, WIDTH);
+        assertEquals("> abcdefgh|ij|60%|", screen.text());
+        assertEquals(1, screen.row);
+        assertEquals(2, screen.col);
+        display.setStatus(null);
+        display.update(2, buf, null, null, WIDTH);
+        assertEquals("> abcdefgh|ij||", screen.text());
+        assertEquals(1, screen.row);
+    }
+
+    @Test
+    public void testMultiLine() throws IOException {
+        display.setSecondaryPrompt(new AttributedString(". "));
+        CursorBuffer buf = new CursorBuffer();
+        buf.write("ab\ncdefghijk\n");
+        display.update(2, buf, null, null, WIDTH);
+        assertEquals("> ab|. cdefghij|k|. |", screen.text());
+        assertEquals(3, screen.row);
+        assertEquals(2, screen.col);
+    }
+
+    @Test
+    public void testOnlyEditedLinesAreWritten() throws IOException {
+        display.setSecondaryPrompt(new AttributedString(". "));
+        CursorBuffer buf = new CursorBuffer();
+        for (int i = 0; i < 1000; i++) {
+            buf.write("l" + i + "\n");
+        }
+        display.update(2, buf, null, null, WIDTH);
+        screen.written = 0;
+        buf.cursor = buf.getLineStart(500) + 1;
+        buf.write("X");
+        display.update(2, buf, null, null, WIDTH);
+        assertEquals(4, screen.written);
+        assertEquals(". lX500", screen.rows.get(500).toString());
+        assertEquals(500, screen.row);
+        // moving the cursor to another line doesn't write anything
+        screen.written = 0;
+        buf.cursor = buf.getLineStart(10);
+        display.update(2, buf, null, null, WIDTH);
+        assertEquals(0, screen.written);
+        assertEquals(10, screen.row);
+        assertEquals(2, screen.col);
+    }
+
+    @Test
+    public void testIncrementalUpdates() throws IOException {
+        String[] pieces = { "a", "bcd", "\n", "\n\n", "efghijklmnop", "\t", "中" };
+        Random random = new Random(7);
+        display.setSecondaryPrompt(new AttributedString(". "));
+        CursorBuffer buf = new CursorBuffer();
+        for (int n = 0; n < 500; n++) {
+            int len = buf.length();
+            int op = random.nextInt(4);
+            if (op < 2 || len == 0) {
+                buf.cursor = random.nextInt(len + 1);
+                buf.write(pieces[random.nextInt(pieces.length)]);
+            } else if (op == 2) {
+                int start = random.nextInt(len);
+                buf.delete(start, Math.min(len, start + 1 + random.nextInt(4)));
+                buf.cursor = Math.min(buf.cursor, buf.length());
+            } else {
+                buf.cursor = random.nextInt(len + 1);
+            }
+            AttributedString status = new AttributedString("status " + n % 3);
+            display.setStatus(status);
+            display.update(2, buf, null, null, WIDTH);
+
+            // compare with a display laying out the whole buffer
+            VirtualScreen expected = new VirtualScreen();
+            expected.write("> ".toCharArray(), 0, 2);
+            Display full = new Display(expected);
+            full.setSecondaryPrompt(new AttributedString(". "));
+            full.setStatus(status);
+            full.clear(2, WIDTH);
+            full.update(2, buf.toString(), null, buf.cursor, null, WIDTH);
+            // the rows below the line may have been visited by the cursor
+            assertEquals(expected.text().replaceAll("\\|+$", "|"), screen.text().replaceAll("\\|+$", "|"));
+            assertEquals(expected.row, screen.row);
+            assertEquals(expected.col, screen.col);
+        }
+    }
+
+    @Test
+    public void testReadLine() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ConsoleReader console = new ConsoleReader(null, output, new TerminalSupport(true) {
+            {
+                setAnsiSupported(true);
+            }
+        });
+        console.setDiffRenderingEnabled(true);
+        console.setInput(new ByteArrayInputStream("hello\u0001X\u0005!\r".getBytes()));
+        assertEquals("Xhello!", console.readLine("> "));
+        String out = output.toString();
+        // the insertion rewrites the shifted characters, the moves to the
+        // beginning and the end of the line use the shortest sequences
+        assertEquals("> \033[Khello\033[3GXhello\033[4G\033[9G!"
+                + System.getProperty("line.separator"), out);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link EditJournal}.
+ */
+public class EditJournalTest
+{
+    @Test
+    public void testUndoRedo() {
+        CursorBuffer buf = new CursorBuffer();
+        EditJournal journal = new EditJournal(buf);
+        buf.write("hello");
+        journal.endGroup();
+        buf.write(" world");
+        journal.endGroup();
+        buf.cursor = 0;
+        journal.endGroup();
+        buf.delete(0, 1);
+        buf.delete(0, 1);
+        journal.endGroup();
+        assertEquals("llo world", buf.toString());
+
+        assertTrue(journal.undo());
+        assertEquals("hello world", buf.toString());
+        assertEquals(0, buf.cursor);
+        assertTrue(journal.undo());
+        assertEquals("hello", buf.toString());
+        assertEquals(5, buf.cursor);
+
+        assertTrue(journal.redo());
+        assertEquals("hello world", buf.toString());
+        assertEquals(11, buf.cursor);
+
+        // an edit drops the edits undone
+        buf.write('!');
+        assertFalse(journal.redo());
+        assertEquals("hello world!", buf.toString());
+
+        assertTrue(journal.revert());
+        assertEquals("", buf.toString());
+        assertFalse(journal.undo());
+    }
+
+    @Test
+    public void testSetCharAt() {
+        CursorBuffer buf = new CursorBuffer();
+        buf.write("abc");
+        EditJournal journal = new EditJournal(buf);
+        buf.setCharAt(1, 'X');
+        buf.setOverTyping(true);
+        buf.cursor = 0;
+        buf.write('Y');
+        assertEquals("YXc", buf.toString());
+        assertTrue(journal.undo());
+        assertEquals("abc", buf.toString());
+    }
+
+    @Test
+    public void testDirectChange() {
+        CursorBuffer buf = new CursorBuffer();
+        EditJournal journal = new EditJournal(buf);
+        buf.write("abc");
+        journal.endGroup();
+        buf.buffer.append("def");
+        assertFalse(journal.undo());
+        assertEquals("abcdef", buf.toString());
+    }
+
+    @Test
+    public void testRollbackAndMerge() {
+        CursorBuffer buf = new CursorBuffer();
+        EditJournal journal = new EditJournal(buf);
+        buf.write("abc");
+        int mark = journal.size();
+        buf.write("d");
+        journal.endGroup();
+        buf.delete(0, 2);
+        journal.rollback(mark);
+        assertEquals("abc", buf.toString());
+        assertEquals(3, buf.cursor);
+
+        buf.write("d");
+        journal.endGroup();
+        buf.write("e");
+        journal.merge(mark);
+        assertEquals(mark + 1, journal.size());
+        assertTrue(journal.undo());
+        assertEquals("abc", buf.toString());
+    }
+
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(42);
+        CursorBuffer buf = new CursorBuffer();
+        EditJournal journal = new EditJournal(buf);
+        List<String> states = new ArrayList<String>();
+        states.add("");
+        for (int i = 0; i < 500; i++) {
+            int len = buf.length();
+            int start = random.nextInt(len + 1);
+            switch (random.nextInt(4)) {
+                case 0:
+                    buf.cursor = start;
+                    buf.write((char) ('a' + random.nextInt(26)));
+                    break;
+                case 1:
+                    buf.insert(start, "xyz".substring(random.nextInt(3)));
+                    break;
+                case 2:
+                    buf.delete(start, start + random.nextInt(len - start + 1));
+                    break;
+                default:
+                    if (len > 0) {
+                        buf.setCharAt(random.nextInt(len), '#');
+                    }
+                    break;
+            }
+            if (random.nextInt(3) == 0 || i == 499) {
+                // a group is recorded if there were edits
+                if (journal.size() == states.size()) {
+                    states.add(buf.toString());
+                }
+            }
+        }
+        for (int i = states.size() - 1; i > 0; i--) {
+            assertEquals(states.get(i), buf.toString());
+            journal.undo();
+        }
+        assertEquals("", buf.toString());
+        for (int i = 1; i < states.size(); i++) {
+            journal.redo();
+            assertEquals(states.get(i), buf.toString());
+        }
+    }
+}
@@ -12,6 +12,7 @@ import org.junit.Test;
 
 import static jline.console.Operation.BACKWARD_WORD;
 import static jline.console.Operation.*;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Tests various features of editing lines.
@@ -41,6 +42,17 @@ public class EditLineTest
         assertBuffer("This is a ", b = b.op(BACKWARD_WORD).op(KILL_WORD));
     }
 
+    @Test
+    public void testWordCharacters() throws Exception {
+        assertBuffer("foo_bar baz_", new Buffer("foo_bar baz_qux").op(BACKWARD_KILL_WORD));
+        console.setWordCharacters("_");
+        assertBuffer("foo_bar ", new Buffer("foo_bar baz_qux").op(BACKWARD_KILL_WORD));
+        assertBuffer("foo_bar X baz_qux",
+            new Buffer("foo_bar baz_qux").op(BACKWARD_WORD).append("X "));
+        assertBuffer(" baz_qux",
+            new Buffer("foo_bar baz_qux").op(BACKWARD_WORD).op(BACKWARD_WORD).op(KILL_WORD));
+    }
+
     @Test
     public void testMoveToEnd() throws Exception {
         assertBuffer("This is a XtestX",
@@ -172,11 +184,74 @@ public class EditLineTest
         assertBuffer("", b = b.back());
     }
 
+    @Test
+    public void testKillLongLine() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        Buffer b = new Buffer(sb.toString());
+        for (int i = 0; i < 1000; i++) {
+            b.op(BACKWARD_CHAR);
+        }
+        assertBuffer(sb.substring(1000), b.ctrlU());
+        // the rest of the line is not drawn again for each char killed
+        assertTrue(consoleOutputStream.size() < 10 * sb.length());
+    }
+
+    @Test
+    public void testKeyboardMacro() throws Exception {
+        Buffer b = new Buffer().op(START_KBD_MACRO).append("ab").op(BACKWARD_CHAR).op(END_KBD_MACRO);
+        assertBuffer("aaabbb", b.op(CALL_LAST_KBD_MACRO).op(CALL_LAST_KBD_MACRO));
+        // a macro recorded while another one is called contains its keys
+        b = new Buffer().op(START_KBD_MACRO).append("x").op(END_KBD_MACRO)
+            .op(START_KBD_MACRO).op(CALL_LAST_KBD_MACRO).append("y").op(END_KBD_MACRO);
+        assertBuffer("xxyxy", b.op(CALL_LAST_KBD_MACRO));
+    }
+
+    @Test
+    public void testLongKeyboardMacro() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        Buffer b = new Buffer().op(START_KBD_MACRO).append(sb.toString()).op(END_KBD_MACRO);
+        for (int i = 0; i < 500; i++) {
+            b.op(BACKWARD_CHAR);
+        }
+        int size = b.getBytes().length;
+        b.op(CALL_LAST_KBD_MACRO);
+        assertBuffer(sb.substring(0, 500) + sb + sb.substring(500), b);
+        // the rest of the line is not drawn again for each char of the macro
+        assertTrue(consoleOutputStream.size() < 5 * size);
+    }
+
     @Test
     public void testBuffer() throws Exception {
         assertBuffer("This is a test", new Buffer("This is a test"));
     }
 
+    @Test
+    public void testUndo() throws Exception {
+        // the chars typed in a row are undone at once
+        assertBuffer("", new Buffer("This is a test").op(UNDO));
+        assertBuffer("This is a test", new Buffer("This is a test").op(UNIX_WORD_RUBOUT).op(UNDO));
+        assertBuffer("ab", new Buffer("abc").back().back().op(UNDO));
+        assertBuffer("This is a Ytest",
+            new Buffer("This is a test").op(BACKWARD_WORD)
+                .append('X')
+                .op(UNDO)
+                .append('Y'));
+        assertBuffer("", new Buffer("abc").back().append("d").op(REVERT_LINE));
+    }
+
+    @Test
+    public void testUndoAbortedSearch() throws Exception {
+        // the aborted search leaves the line as it was
+        assertBuffer("abc", new Buffer("abc").ctrl('R').append('d').ctrl('G'));
+        assertBuffer("", new Buffer("abc").ctrl('R').append('d').ctrl('G').op(UNDO));
+    }
+
     @Test
     public void testAbortPartialBuffer() throws Exception {
         console.setBellEnabled(true);
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import jline.TerminalSupport;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link FrameWriter}.
+ */
+public class FrameWriterTest
+{
+    private static class CountingWriter
+        extends StringWriter
+    {
+        int writes;
+        int flushes;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            writes++;
+            super.write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str) {
+            writes++;
+            super.write(str);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    @Test
+    public void testFlushOutsideFrame() throws IOException {
+        CountingWriter target = new CountingWriter();
+        FrameWriter out = new FrameWriter(target);
+        out.write("abc");
+        assertEquals("", target.toString());
+        out.flush();
+        assertEquals("abc", target.toString());
+        assertEquals(1, target.flushes);
+    }
+
+    @Test
+    public void testFrameIsWrittenOnce() throws IOException {
+        CountingWriter target = new CountingWriter();
+        FrameWriter out = new FrameWriter(target);
+        out.beginFrame();
+        for (int i = 0; i < 10; i++) {
+            out.write('a' + i);
+            out.flush();
+        }
+        assertEquals("", target.toString());
+        out.endFrame();
+        assertEquals("abcdefghij", target.toString());
+        assertEquals(1, target.writes);
+        assertEquals(1, target.flushes);
+
+        // empty frames don't touch the terminal
+        out.beginFrame();
+        out.endFrame();
+        assertEquals(1, target.flushes);
+    }
+
+    @Test
+    public void testSynchronizedUpdates() throws IOException {
+        StringWriter target = new StringWriter();
+        FrameWriter out = new FrameWriter(target);
+        out.setSynchronizedUpdates(true);
+
+        out.beginFrame();
+        out.write("small");
+        out.endFrame();
+        assertEquals("small", target.toString());
+
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < FrameWriter.SYNCHRONIZED_UPDATE_THRESHOLD; i++) {
+            large.append('x');
+        }
+        target.getBuffer().setLength(0);
+        out.beginFrame();
+        out.write(large.toString());
+        out.endFrame();
+        assertEquals(FrameWriter.BEGIN_SYNCHRONIZED_UPDATE + large + FrameWriter.END_SYNCHRONIZED_UPDATE,
+                target.toString());
+    }
+
+    @Test
+    public void testReadLineWritesOncePerKey() throws Exception {
+        final int[] writes = new int[1];
+        ByteArrayOutputStream output = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                writes[0]++;
+                super.write(b, off, len);
+            }
+        };
+        ConsoleReader console = new ConsoleReader(null, output, new TerminalSupport(true) { });
+        console.setInput(new ByteArrayInputStream("abc\u0001\u000b\n".getBytes()));
+        assertEquals("", console.readLine());
+        // at most one write for each of the five editing keys and the final newline
+        assertTrue(writes[0] <= 6);
+    }
+
+    private static byte[] write(String encoding, String... parts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FrameWriter out = new FrameWriter(bytes, encoding);
+        for (String part : parts) {
+            out.write(part);
+            out.flush();
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testEncoding() throws IOException {
+        String text = "abc \u00e9\u00e8 \u4e2d\u6587 \ud83d\ude00 \u0001";
+        for (String encoding : new String[] { "UTF-8", "ISO-8859-1", "US-ASCII", "UTF-16BE", "windows-1252" }) {
+            assertArrayEquals(encoding, text.getBytes(encoding), write(encoding, text));
+        }
+        // a surrogate pair split between two flushes
+        assertArrayEquals("\ud83d\ude00".getBytes("UTF-8"), write("UTF-8", "\ud83d", "\ude00"));
+        assertArrayEquals("?".getBytes("UTF-8"), write("UTF-8", "\ud83d"));
+    }
+
+    @Test
+    public void testLargeOutputIsStreamed() throws IOException {
+        final int[] writes = new int[1];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                writes[0]++;
+                super.write(b, off, len);
+            }
+        };
+        FrameWriter out = new FrameWriter(bytes, "UTF-8");
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10 * FrameWriter.CHUNK_SIZE; i++) {
+            large.append((char) ('a' + i % 26));
+        }
+        out.append(large);
+        // written in chunks before the flush
+        assertTrue(writes[0] >= 9);
+        out.flush();
+        assertEquals(large.toString(), bytes.toString("UTF-8"));
+    }
+
+    @Test
+    public void testLargeFrameIsReleased() throws IOException {
+        StringWriter target = new StringWriter();
+        FrameWriter out = new FrameWriter(target);
+        out.beginFrame();
+        for (int i = 0; i < 4 * FrameWriter.CHUNK_SIZE; i++) {
+            out.write('a' + i % 26);
+        }
+        assertTrue(out.getCapacity() > FrameWriter.CHUNK_SIZE);
+        out.endFrame();
+        assertEquals(4 * FrameWriter.CHUNK_SIZE, target.getBuffer().length());
+        assertTrue(out.getCapacity() <= FrameWriter.CHUNK_SIZE);
+    }
+}
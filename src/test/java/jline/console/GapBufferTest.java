@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link GapBuffer}.
+ */
+public class GapBufferTest
+{
+    @Test
+    public void testEdits() {
+        GapBuffer chars = new GapBuffer();
+        chars.insert(0, "world");
+        chars.insert(0, "hello ");
+        chars.insert(11, '!');
+        assertEquals("hello world!", chars.toString());
+        chars.delete(0, 6);
+        chars.setCharAt(0, 'W');
+        assertEquals("World!", chars.toString());
+        assertEquals('!', chars.charAt(5));
+        assertEquals("orl", chars.subSequence(1, 4).toString());
+    }
+
+    @Test(expected = StringIndexOutOfBoundsException.class)
+    public void testOutOfBounds() {
+        GapBuffer chars = new GapBuffer();
+        chars.insert(0, "abc");
+        chars.delete(1, 0);
+        chars.charAt(3);
+    }
+
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(11);
+        GapBuffer chars = new GapBuffer();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            int len = expected.length();
+            int start = random.nextInt(len + 1);
+            switch (random.nextInt(4)) {
+                case 0:
+                    chars.insert(start, (char) ('a' + i % 26));
+                    expected.insert(start, (char) ('a' + i % 26));
+                    break;
+                case 1:
+                    String str = "0123456789".substring(random.nextInt(10));
+                    chars.insert(start, random.nextBoolean() ? str : new StringBuilder(str));
+                    expected.insert(start, str);
+                    break;
+                case 2:
+                    int end = start + random.nextInt(Math.min(len - start, 8) + 1);
+                    chars.delete(start, end);
+                    expected.delete(start, end);
+                    break;
+                default:
+                    if (len > 0) {
+                        chars.setCharAt(len - 1 - start / 2, '#');
+                        expected.setCharAt(len - 1 - start / 2, '#');
+                    }
+                    break;
+            }
+            assertEquals(expected.length(), chars.length());
+            if (random.nextInt(10) == 0) {
+                assertEquals(expected.toString(), chars.toString());
+                int from = random.nextInt(expected.length() + 1);
+                assertEquals(expected.substring(from), chars.substring(from, chars.length()));
+            }
+        }
+        assertEquals(expected.toString(), chars.toString());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link Highlighting}.
+ */
+public class HighlightingTest
+{
+    /**
+     * Makes the digits bold, recording the ranges it is given.
+     */
+    static class DigitHighlighter
+        implements Highlighter
+    {
+        final List<String> calls = new ArrayList<String>();
+
+        public void highlight(CharSequence buffer, int start, int end, int[] styles) {
+            calls.add(start + "-" + end);
+            for (int i = start; i < end; i++) {
+                char c = buffer.charAt(i);
+                styles[i] = c >= '0' && c <= '9' ? AttributedString.BOLD : 0;
+            }
+        }
+    }
+
+    private static String styles(Highlighting highlighting, CursorBuffer buf) {
+        StringBuilder sb = new StringBuilder();
+        int[] styles = highlighting.getStyles();
+        for (int i = 0; i < buf.length(); i++) {
+            sb.append(styles[i] == AttributedString.BOLD ? 'B' : '.');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testOnlyChangesAreHighlighted() {
+        DigitHighlighter highlighter = new DigitHighlighter();
+        Highlighting highlighting = new Highlighting(highlighter);
+        CursorBuffer buf = new CursorBuffer();
+        buf.write("select 1 from t where a = 22");
+        assertTrue(highlighting.update(buf));
+        highlighting.highlight(buf.buffer);
+        assertEquals("0-28", highlighter.calls.get(0));
+        assertEquals(".......B..................BB", styles(highlighting, buf));
+
+        // nothing changed
+        assertFalse(highlighting.update(buf));
+
+        // the styles after the insertion are shifted
+        buf.cursor = 7;
+        buf.write("42, ");
+        highlighting.update(buf);
+        highlighting.highlight(buf.buffer);
+        assertEquals("7-11", highlighter.calls.get(1));
+        assertEquals(".......BB..B..................BB", styles(highlighting, buf));
+
+        // several changes are merged
+        buf.delete(0, 7);
+        buf.setCharAt(buf.length() - 1, 'x');
+        highlighting.update(buf);
+        highlighting.highlight(buf.buffer);
+        assertEquals("0-25", highlighter.calls.get(2));
+        assertEquals("BB..B..................B.", styles(highlighting, buf));
+
+        // direct changes highlight everything again
+        buf.buffer.append("3");
+        highlighting.update(buf);
+        highlighting.highlight(buf.buffer);
+        assertEquals("0-26", highlighter.calls.get(3));
+    }
+
+    @Test
+    public void testStaleJobsAreDiscarded() {
+        DigitHighlighter highlighter = new DigitHighlighter();
+        Highlighting highlighting = new Highlighting(highlighter);
+        CursorBuffer buf = new CursorBuffer();
+        buf.write("a1");
+        highlighting.update(buf);
+        Highlighting.Job stale = highlighting.newJob(buf.buffer);
+        buf.write("2");
+        highlighting.update(buf);
+        Highlighting.Job job = highlighting.newJob(buf.buffer);
+        job.run();
+        stale.run();
+        assertFalse(highlighting.apply(stale));
+        // the newer job covers the changes given to the stale one
+        assertEquals("0-3", highlighter.calls.get(0));
+        assertTrue(highlighting.apply(job));
+        assertEquals(".BB", styles(highlighting, buf));
+        assertEquals(null, highlighting.newJob(buf.buffer));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link TokenIndex}.
+ */
+public class TokenIndexTest
+{
+    private static final String[] PIECES = {
+        "a", "bc", " ", "-", "(", ")", "[x]", "{", "}", "foo bar", "_"
+    };
+
+    /**
+     * Compare the index with the positions found the simple way, scanning
+     * the buffer from the position.
+     */
+    private static void check(CursorBuffer buf, TokenIndex tokens) {
+        String str = buf.toString();
+        for (int pos = 0; pos <= str.length(); pos++) {
+            int start = pos;
+            while (start > 0 && !tokens.isWordChar(str.charAt(start - 1))) {
+                start--;
+            }
+            while (start > 0 && tokens.isWordChar(str.charAt(start - 1))) {
+                start--;
+            }
+            assertEquals("previous word of " + pos + " in " + str, start, tokens.previousWordStart(pos));
+
+            int end = pos;
+            while (end < str.length() && !tokens.isWordChar(str.charAt(end))) {
+                end++;
+            }
+            while (end < str.length() && tokens.isWordChar(str.charAt(end))) {
+                end++;
+            }
+            assertEquals("next word of " + pos + " in " + str, end, tokens.nextWordEnd(pos));
+
+            if (pos < str.length()) {
+                assertEquals("bracket at " + pos + " in " + str, match(str, pos), tokens.matchingBracket(pos));
+            }
+        }
+    }
+
+    private static int match(String str, int pos) {
+        int type = TokenIndex.bracketType(str.charAt(pos));
+        if (type == 0) {
+            return -1;
+        }
+        int move = type < 0 ? -1 : 1;
+        int count = 1;
+        for (int i = pos + move; i >= 0 && i < str.length(); i += move) {
+            int curType = TokenIndex.bracketType(str.charAt(i));
+            if (curType == type) {
+                count++;
+            } else if (curType == -type && --count == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testWords() {
+        CursorBuffer buf = new CursorBuffer();
+        TokenIndex tokens = new TokenIndex(buf);
+        buf.write("foo_bar baz");
+        assertEquals(4, tokens.previousWordStart(6));
+        assertEquals(3, tokens.nextWordEnd(0));
+        tokens.setWordChars("_");
+        assertEquals(0, tokens.previousWordStart(6));
+        assertEquals(7, tokens.nextWordEnd(0));
+        assertEquals(11, tokens.nextWordEnd(7));
+        assertEquals(11, tokens.nextWordEnd(11));
+    }
+
+    @Test
+    public void testBrackets() {
+        CursorBuffer buf = new CursorBuffer();
+        TokenIndex tokens = new TokenIndex(buf);
+        buf.write("f(a[1], {b})");
+        assertEquals(11, tokens.matchingBracket(1));
+        assertEquals(1, tokens.matchingBracket(11));
+        assertEquals(-1, tokens.matchingBracket(0));
+        buf.delete(11, 12);
+        assertEquals(-1, tokens.matchingBracket(1));
+        assertEquals(10, tokens.matchingBracket(8));
+    }
+
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(7);
+        CursorBuffer buf = new CursorBuffer();
+        TokenIndex tokens = new TokenIndex(buf);
+        for (int i = 0; i < 300; i++) {
+            int len = buf.length();
+            int start = random.nextInt(len + 1);
+            switch (random.nextInt(4)) {
+                case 0:
+                    buf.insert(start, PIECES[random.nextInt(PIECES.length)]);
+                    break;
+                case 1:
+                    buf.delete(start, start + random.nextInt(Math.min(len - start, 5) + 1));
+                    break;
+                case 2:
+                    if (len > 0) {
+                        buf.setCharAt(random.nextInt(len), PIECES[random.nextInt(PIECES.length)].charAt(0));
+                    }
+                    break;
+                default:
+                    if (random.nextInt(10) == 0) {
+                        tokens.setWordChars(tokens.getWordChars().length() == 0 ? "-_" : "");
+                    }
+                    break;
+            }
+            // the index is updated after several edits too
+            if (random.nextInt(3) == 0) {
+                check(buf, tokens);
+            }
+        }
+        check(buf, tokens);
+    }
+}
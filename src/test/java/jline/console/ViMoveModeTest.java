@@ -1280,6 +1280,26 @@ public class ViMoveModeTest
         assertLine("def", b, true);
         assertTrue(console.isKeyMap(KeyMap.VI_INSERT));
     }
+
+    @Test
+    public void testUndo() throws Exception {
+        console.setKeyMap(KeyMap.VI_INSERT);
+        Buffer b = (new Buffer("abc"))
+            .escape()
+            .append("x")
+            .append("u");
+        assertBuffer("abc", b);
+
+        // everything typed in insert mode is undone at once
+        console.setKeyMap(KeyMap.VI_INSERT);
+        b = (new Buffer("abc"))
+            .escape()
+            .append("adef")
+            .back()
+            .escape()
+            .append("u");
+        assertBuffer("abc", b);
+    }
     
     /*
      * TODO - Test arrow key bindings
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link WCWidth}.
+ */
+public class WCWidthTest
+{
+    @Test
+    public void testControlCharacters() {
+        assertEquals(0, WCWidth.wcwidth(0));
+        assertEquals(-1, WCWidth.wcwidth('\n'));
+        assertEquals(-1, WCWidth.wcwidth(0x7f));
+        assertEquals(-1, WCWidth.wcwidth(0x9b));
+        assertEquals(-1, WCWidth.wcwidth(-1));
+        assertEquals(1, WCWidth.wcwidth(0x110000));
+    }
+
+    @Test
+    public void testNarrowCharacters() {
+        assertEquals(1, WCWidth.wcwidth('a'));
+        assertEquals(1, WCWidth.wcwidth(0xa0));
+        assertEquals(1, WCWidth.wcwidth(0xad));
+        assertEquals(1, WCWidth.wcwidth(0xe9));
+        assertEquals(1, WCWidth.wcwidth(0x3b1));
+        assertEquals(1, WCWidth.wcwidth(0xff61));
+    }
+
+    @Test
+    public void testZeroWidthCharacters() {
+        assertEquals(0, WCWidth.wcwidth(0x301));
+        assertEquals(0, WCWidth.wcwidth(0x200b));
+        assertEquals(0, WCWidth.wcwidth(0x200d));
+        assertEquals(0, WCWidth.wcwidth(0xfe0f));
+        assertEquals(0, WCWidth.wcwidth(0x1160));
+        assertEquals(0, WCWidth.wcwidth(0xe0100));
+    }
+
+    @Test
+    public void testWideCharacters() {
+        assertEquals(2, WCWidth.wcwidth(0x1100));
+        assertEquals(2, WCWidth.wcwidth(0x4e2d));
+        assertEquals(2, WCWidth.wcwidth(0xac00));
+        assertEquals(2, WCWidth.wcwidth(0xff01));
+        assertEquals(2, WCWidth.wcwidth(0x20000));
+        assertEquals(2, WCWidth.wcwidth(0x1f600));
+        assertEquals(2, WCWidth.wcwidth(0x1f9d1));
+        assertEquals(1, WCWidth.wcwidth(0x303f));
+    }
+
+    @Test
+    public void testJoiningSequences() {
+        // man ZWJ woman ZWJ girl
+        assertFalse(WCWidth.joins(-1, 0x1f468));
+        assertTrue(WCWidth.joins(0x200d, 0x1f469));
+        assertEquals(0, WCWidth.wcwidth(0x200d, 0x1f467));
+        assertEquals(2, WCWidth.wcwidth(0x1f468, 0x1f469));
+        // skin tone modifier
+        assertTrue(WCWidth.joins(0x1f44d, 0x1f3fb));
+        assertEquals(2, WCWidth.wcwidth('a', 0x1f3fb));
+        assertFalse(WCWidth.joins(0x200d, 'a'));
+    }
+}
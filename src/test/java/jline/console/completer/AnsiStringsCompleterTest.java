@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console.completer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jline.console.AttributedString;
+import jline.console.ConsoleReaderTestSupport;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link jline.console.completer.AnsiStringsCompleter}.
+ */
+public class AnsiStringsCompleterTest
+    extends ConsoleReaderTestSupport
+{
+    @Test
+    public void testCandidates() throws Exception {
+        AnsiStringsCompleter completer = new AnsiStringsCompleter("\033[1mfoo\033[0m", "bar");
+        List<CharSequence> candidates = new ArrayList<CharSequence>();
+        assertEquals(0, completer.complete("f", 1, candidates));
+        // the candidates keep their colors
+        assertEquals(Arrays.<CharSequence>asList("\033[1mfoo\033[0m"), candidates);
+
+        // and the strings can still be changed
+        completer.getStrings().remove("bar");
+        candidates.clear();
+        assertEquals(-1, completer.complete("b", 1, candidates));
+    }
+
+    @Test
+    public void testComplete() throws Exception {
+        console.addCompleter(new AnsiStringsCompleter("\033[1mfoo\033[0m", "\033[1mbar\033[0m", "\033[1mbaz\033[0m"));
+
+        assertBuffer("foo ", new Buffer("f").tab());
+        assertBuffer("baz ", new Buffer("baz").tab());
+    }
+
+    @Test
+    public void testAttributedCandidates() throws Exception {
+        console.addCompleter(new Completer() {
+            public int complete(String buffer, int cursor, List<CharSequence> candidates) {
+                candidates.add(AttributedString.fromAnsi("\033[1mfoo\033[0m"));
+                return 0;
+            }
+        });
+
+        assertBuffer("foo ", new Buffer("f").tab());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.console.internal;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import jline.TerminalSupport;
+import jline.console.ConsoleReader;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for {@link ConsoleReaderInputStream}.
+ */
+public class ConsoleReaderInputStreamTest
+{
+    private ConsoleReaderInputStream createStream(String input) throws Exception {
+        ConsoleReader reader = new ConsoleReader(null,
+            new ByteArrayInputStream(input.getBytes("UTF-8")),
+            new ByteArrayOutputStream(), new TerminalSupport(false) { }, "UTF-8");
+        return new ConsoleReaderInputStream(reader);
+    }
+
+    @Test
+    public void testNonAsciiLines() throws Exception {
+        ConsoleReaderInputStream in = createStream("héllo 世界\nsecond\n");
+        BufferedReader lines = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        assertEquals("héllo 世界", lines.readLine());
+        assertEquals("second", lines.readLine());
+        assertNull(lines.readLine());
+    }
+
+    @Test
+    public void testBulkReadStopsAtEndOfLine() throws Exception {
+        ConsoleReaderInputStream in = createStream("abc\ndef\n");
+        byte[] b = new byte[64];
+        assertEquals(4, in.read(b, 0, b.length));
+        assertEquals("abc\n", new String(b, 0, 4, "UTF-8"));
+        assertEquals('d', in.read());
+        assertEquals(3, in.available());
+        assertEquals(2, in.read(b, 0, 2));
+        assertEquals('\n', in.read());
+        assertEquals(-1, in.read(b, 0, b.length));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testTrailingHighSurrogate() throws Exception {
+        ConsoleReader reader = new ConsoleReader(null, new ByteArrayInputStream(new byte[0]),
+            new ByteArrayOutputStream(), new TerminalSupport(false) { }, "UTF-8")
+        {
+            private boolean read;
+
+            @Override
+            public String readLine() throws IOException {
+                if (read) {
+                    return null;
+                }
+                read = true;
+                return "ab\ud800";
+            }
+        };
+        BufferedReader lines = new BufferedReader(new InputStreamReader(new ConsoleReaderInputStream(reader), "UTF-8"));
+        // the lone surrogate is replaced, as String.getBytes() does
+        assertEquals("ab?", lines.readLine());
+        assertNull(lines.readLine());
+    }
+}
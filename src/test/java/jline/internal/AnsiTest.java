@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for {@link Ansi}.
+ */
+public class AnsiTest
+{
+    @Test
+    public void testPlainStringIsReturned() {
+        String str = "plain text";
+        assertSame(str, Ansi.stripAnsi(str));
+        assertEquals("", Ansi.stripAnsi(null));
+    }
+
+    @Test
+    public void testStripAnsi() {
+        assertEquals("foo bar", Ansi.stripAnsi("\033[1;31mfoo\033[0m bar"));
+        assertEquals("title", Ansi.stripAnsi("\033]0;window\007title"));
+        assertEquals("title", Ansi.stripAnsi("\033]0;window\033\\title"));
+        assertEquals("ab", Ansi.stripAnsi("a\033(Bb"));
+        assertEquals("ab", Ansi.stripAnsi("a\0337b"));
+        assertEquals("a", Ansi.stripAnsi("a\033[1"));
+        // characters which are neither ASCII nor in the platform charset survive
+        assertEquals("中é😀", Ansi.stripAnsi("\033[32m中é😀\033[m"));
+    }
+
+    @Test
+    public void testEscapeLength() {
+        assertEquals(0, Ansi.escapeLength("abc", 0));
+        assertEquals(5, Ansi.escapeLength("\033[31mx", 0));
+        assertEquals(6, Ansi.escapeLength("x\033[?25hx", 1));
+        assertEquals(1, Ansi.escapeLength("\033\n", 0));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2002-2016, the original author or authors.
+ *
+ * This software is distributable under the BSD license. See the terms of the
+ * BSD license in the documentation provided with this software.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package jline.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link AsyncOutputStream}.
+ */
+public class AsyncOutputStreamTest
+{
+    /**
+     * Records the writes, the first one blocking until it is released.
+     */
+    private static class SlowStream
+        extends OutputStream
+    {
+        final List<String> writes = new ArrayList<String>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            started.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            synchronized (writes) {
+                writes.add(new String(b, off, len));
+            }
+        }
+    }
+
+    @Test
+    public void testFramesAreMergedWhileTheStreamIsSlow() throws Exception {
+        SlowStream slow = new SlowStream();
+        AsyncOutputStream out = new AsyncOutputStream(slow, 1024);
+        out.write("a".getBytes());
+        out.flush();
+        slow.started.await();
+        // the stream is blocked, but the flushes return at once
+        out.write("b".getBytes());
+        out.flush();
+        out.write("c".getBytes());
+        out.flush();
+        slow.released.countDown();
+        out.drain();
+        assertEquals("[a, bc]", slow.writes.toString());
+        out.shutdown();
+    }
+
+    @Test
+    public void testFullQueue() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AsyncOutputStream out = new AsyncOutputStream(bytes, 4);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append(i);
+            out.write(String.valueOf(i).getBytes());
+        }
+        out.shutdown();
+        assertEquals(sb.toString(), bytes.toString());
+    }
+
+    @Test
+    public void testExceptionIsReported() throws Exception {
+        AsyncOutputStream out = new AsyncOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken");
+            }
+        }, 1024);
+        out.write('a');
+        try {
+            out.drain();
+            fail();
+        } catch (IOException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        out.shutdown();
+    }
+
+    @Test
+    public void testStalledStreamDoesNotBlockShutdown() throws Exception {
+        SlowStream slow = new SlowStream();
+        AsyncOutputStream out = new AsyncOutputStream(slow, 1024);
+        out.write("a".getBytes());
+        out.flush();
+        slow.started.await();
+        out.write("b".getBytes());
+        assertFalse(out.drain(20));
+        long start = System.currentTimeMillis();
+        assertFalse(out.shutdown(50));
+        assertTrue(System.currentTimeMillis() - start < AsyncOutputStream.DEFAULT_TIMEOUT);
+        slow.released.countDown();
+    }
+}
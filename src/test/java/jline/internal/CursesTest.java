@@ -13,6 +13,8 @@ import java.io.StringWriter;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author <a href="mailto:gnodet@gmail.com">Guillaume Nodet</a>
@@ -26,6 +28,72 @@ public class CursesTest {
 
     }
 
+    @Test
+    public void testConstant() throws Exception {
+        Curses.Program program = Curses.compile("\\E[K");
+        assertFalse(program.hasParameters());
+        assertEquals("\033[K", new String(program.getText()));
+        assertEquals("\033[K", tputs(program, 5));
+    }
+
+    @Test
+    public void testEscapes() throws Exception {
+        assertEquals("\033\r\n\b^\\,:\001\177", tputs("\\e\\r\\n\\b\\^\\\\\\,\\:^A^?"));
+        assertEquals("\033a\200", tputs("\\033\\141\\0"));
+        assertEquals("\007", tputs("$<100>\\007"));
+    }
+
+    @Test
+    public void testConditionals() throws Exception {
+        String setaf = "\\E[%?%p1%{8}%<%t3%p1%d%e%p1%{16}%<%t9%p1%{8}%-%d%e38;5;%p1%d%;m";
+        assertEquals("\033[31m", tputs(setaf, 1));
+        assertEquals("\033[94m", tputs(setaf, 12));
+        assertEquals("\033[38;5;200m", tputs(setaf, 200));
+        // nested conditionals
+        String nested = "%?%p1%t%?%p2%tA%eB%;%eC%;";
+        assertEquals("A", tputs(nested, 1, 1));
+        assertEquals("B", tputs(nested, 1, 0));
+        assertEquals("C", tputs(nested, 0, 1));
+        // literal newlines are only printed on the taken branch
+        assertEquals("x", tputs("%?%p1%t\\n%ex%;", 0));
+    }
+
+    @Test
+    public void testVariables() throws Exception {
+        assertEquals("3 5", tputs("%p1%Pa%p2%PZ%ga%d %gZ%d", 3, 5));
+        assertEquals("-12", tputs("%p1%p2%-%d", 3, 15));
+        assertEquals("A", tputs("%'A'%c"));
+        assertEquals("3", tputs("%p1%l%d", "abc"));
+    }
+
+    @Test
+    public void testIntParameters() throws Exception {
+        Curses.Program program = Curses.compile("\\E[%i%p1%d;%p2%dH");
+        assertTrue(program.hasParameters());
+        assertEquals("\033[1;1H", tputs(program, 0, 0));
+        assertEquals("\033[11;21H", tputs(program, 10, 20));
+        // %i must not leak into the next call
+        assertEquals("\033[11;21H", tputs(program, 10, 20));
+        assertEquals("\033[-5;1H", tputs(program, -6, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnbalancedConditional() throws Exception {
+        Curses.compile("%?%p1%tA");
+    }
+
+    private String tputs(Curses.Program program, int p1) throws Exception {
+        StringWriter sw = new StringWriter();
+        program.tputs(sw, p1);
+        return sw.toString();
+    }
+
+    private String tputs(Curses.Program program, int p1, int p2) throws Exception {
+        StringWriter sw = new StringWriter();
+        program.tputs(sw, p1, p2);
+        return sw.toString();
+    }
+
     private String tputs(String cap, Object... params) throws Exception {
         StringWriter sw = new StringWriter();
         Curses.tputs(sw, cap, params);